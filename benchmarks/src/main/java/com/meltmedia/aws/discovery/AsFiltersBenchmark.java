@@ -0,0 +1,50 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Turns the tags of the current instance into member filters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsFiltersBenchmark {
+	List<String> tagNames = Arrays.asList("cluster", "environment", "role");
+	List<Tag> tags = new ArrayList<Tag>();
+
+	@Setup
+	public void setUp() {
+		// a well tagged instance carries far more tags than discovery uses.
+		for (int i = 0; i < 40; i++) {
+			tags.add(new Tag("cost-center-" + i, "value-" + i));
+		}
+		tags.add(new Tag("cluster", "search"));
+		tags.add(new Tag("environment", "production"));
+		tags.add(new Tag("role", "data"));
+	}
+
+	@Benchmark
+	public List<Filter> asFilters() {
+		return AwsAutoDiscovery.asFilters(tagNames, tags);
+	}
+}
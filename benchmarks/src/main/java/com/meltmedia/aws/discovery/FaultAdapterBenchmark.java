@@ -0,0 +1,94 @@
+package com.meltmedia.aws.discovery;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Node;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+
+/**
+ * Reports a throttling fault, the work done on every failed EC2 call when a
+ * listener is registered. `structured` reads the fields of the event, while
+ * `legacy` is a `FaultListener`, which has the fault document serialized.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FaultAdapterBenchmark {
+	Node fault;
+	Request<DescribeInstancesRequest> request;
+	AmazonServiceException exception;
+	AwsAutoDiscovery.FaultAdapter adapter;
+	FaultEventListener[] structured;
+	FaultEventListener[] legacy;
+	Blackhole blackhole;
+
+	@Setup
+	public void setUp(final Blackhole blackhole) throws Exception {
+		this.blackhole = blackhole;
+		fault = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new ByteArrayInputStream(Ec2Responses.throttled().getBytes("UTF-8")));
+		request = new DefaultRequest<DescribeInstancesRequest>(
+				new DescribeInstancesRequest(), "AmazonEC2");
+		request.addParameter("Action", "DescribeInstances");
+		exception = new AmazonServiceException("Request limit exceeded.");
+		exception.setErrorCode("RequestLimitExceeded");
+		exception.setStatusCode(503);
+		adapter = new AwsAutoDiscovery.FaultAdapter();
+		structured = new FaultEventListener[] { new FaultEventListener() {
+			@Override
+			public void fault(FaultEvent event) {
+				blackhole.consume(event.getErrorCode());
+				blackhole.consume(event.getStatusCode());
+			}
+		} };
+		legacy = new FaultEventListener[] { new AwsAutoDiscovery.LegacyFaultListener(
+				new FaultListener() {
+					@Override
+					public void fault(String message) {
+						blackhole.consume(message);
+					}
+				}) };
+	}
+
+	@Benchmark
+	public void structured() throws Exception {
+		fail(structured);
+	}
+
+	@Benchmark
+	public void legacy() throws Exception {
+		fail(legacy);
+	}
+
+	private void fail(FaultEventListener[] listeners) throws Exception {
+		FaultEventListener[] routed = AwsAutoDiscovery.FaultAdapter.route(listeners);
+		try {
+			adapter.beforeRequest(request);
+			adapter.unmarshall(fault);
+			adapter.afterError(request, exception);
+		} finally {
+			AwsAutoDiscovery.FaultAdapter.route(routed);
+		}
+	}
+}
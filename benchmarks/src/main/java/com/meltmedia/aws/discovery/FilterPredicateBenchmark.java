@@ -0,0 +1,82 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Selects the members of one view from an inventory, with exact and wildcard
+ * filters.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterPredicateBenchmark {
+	@Param({ "1000", "10000" })
+	int size;
+
+	List<Instance> instances = new ArrayList<Instance>();
+	FilterPredicate exact = FilterPredicate.compile(Parsers
+			.filters("instance-state-name=running;tag:env=prod;tag:role=web"));
+	FilterPredicate wildcard = FilterPredicate.compile(Parsers
+			.filters("instance-state-name=running;tag:env=prod*;tag:role=w?b-*"));
+
+	@Setup
+	public void setUp() {
+		String[] roles = { "web-1", "web", "worker", "db" };
+		for (int i = 0; i < size; i++) {
+			List<Tag> tags = new ArrayList<Tag>();
+			for (int t = 0; t < 10; t++) {
+				tags.add(new Tag("cost-center-" + t, "value-" + t));
+			}
+			tags.add(new Tag("env", i % 2 == 0 ? "prod" : "dev"));
+			tags.add(new Tag("role", roles[i % roles.length]));
+			instances.add(new Instance()
+					.withInstanceId(String.format("i-%08x", i))
+					.withPrivateIpAddress(Ipv4.unpack(0x0a000000 + i))
+					.withState(new InstanceState().withName("running"))
+					.withPlacement(new Placement("us-east-1a"))
+					.withTags(tags));
+		}
+	}
+
+	@Benchmark
+	public int exact() {
+		return count(exact);
+	}
+
+	@Benchmark
+	public int wildcard() {
+		return count(wildcard);
+	}
+
+	private int count(FilterPredicate predicate) {
+		int count = 0;
+		for (Instance instance : instances) {
+			if (predicate.matches(instance)) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,88 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.ClientConfiguration;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+
+/**
+ * Runs the whole member query, signing, HTTP and unmarshalling included,
+ * against a local WireMock stand-in for EC2. Caching is off, so every call
+ * goes to the server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetPrivateIpAddressesBenchmark {
+	@Param({ "100", "1000" })
+	int instances;
+
+	@Param({ "false", "true" })
+	boolean projection;
+
+	WireMockServer server;
+	AwsAutoDiscovery discovery;
+
+	@Setup
+	public void setUp() throws Exception {
+		int port = freePort();
+		server = new WireMockServer(wireMockConfig().port(port));
+		server.start();
+		new WireMock("localhost", port).register(post(urlEqualTo("/"))
+				.withRequestBody(containing("Action=DescribeInstances"))
+				.willReturn(aResponse().withStatus(200)
+						.withBody(Ec2Responses.fleet(instances))));
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:" + port))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withProjection(projection)
+				.build()
+				.start();
+	}
+
+	@TearDown
+	public void tearDown() {
+		discovery.stop();
+		server.stop();
+	}
+
+	@Benchmark
+	public List<String> getPrivateIpAddresses() {
+		return discovery.getPrivateIpAddresses();
+	}
+
+	static int freePort() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
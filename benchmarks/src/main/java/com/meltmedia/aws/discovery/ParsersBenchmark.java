@@ -0,0 +1,41 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.ec2.model.Filter;
+
+/**
+ * Parses filter and tag name strings like the ones found in configuration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParsersBenchmark {
+	String filters = "instance-state-name=running,pending;tag:environment=production;"
+			+ "tag:cluster=search;vpc-id=vpc-1a2b3c4d;availability-zone=us-east-1a,us-east-1b,us-east-1c";
+	String tagNames = "cluster, environment, role, team,application";
+
+	@Benchmark
+	public List<Filter> filters() {
+		return Parsers.filters(filters);
+	}
+
+	@Benchmark
+	public List<String> tagNames() {
+		return Parsers.tagNames(tagNames);
+	}
+}
@@ -0,0 +1,78 @@
+package com.meltmedia.aws.discovery;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.StaxResponseHandler;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.transform.DescribeInstancesResultStaxUnmarshaller;
+
+/**
+ * Unmarshalls a DescribeInstances page and extracts the members, with the
+ * SDK's unmarshaller and with the streaming projection. Run with `-prof gc`
+ * to compare the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UnmarshallBenchmark {
+	@Param({ "100", "1000", "10000" })
+	int instances;
+
+	byte[] body;
+	StaxResponseHandler<DescribeInstancesResult> sdk;
+	DescribeInstancesProjection projection;
+
+	@Setup
+	public void setUp() throws Exception {
+		body = Ec2Responses.fleet(instances).getBytes("UTF-8");
+		sdk = new StaxResponseHandler<DescribeInstancesResult>(
+				new DescribeInstancesResultStaxUnmarshaller());
+		projection = new DescribeInstancesProjection(Arrays.asList("cluster"));
+	}
+
+	@Benchmark
+	public Membership sdkUnmarshaller() throws Exception {
+		return members(sdk.handle(response()).getResult());
+	}
+
+	@Benchmark
+	public Membership projection() throws Exception {
+		return members(projection.handle(response()).getResult());
+	}
+
+	HttpResponse response() {
+		HttpResponse response = new HttpResponse(null, null);
+		response.setContent(new ByteArrayInputStream(body));
+		return response;
+	}
+
+	static Membership members(DescribeInstancesResult result) {
+		Membership.Builder members = Membership.builder();
+		for (Reservation reservation : result.getReservations()) {
+			for (Instance instance : reservation.getInstances()) {
+				members.add(instance);
+			}
+		}
+		return members.build();
+	}
+}
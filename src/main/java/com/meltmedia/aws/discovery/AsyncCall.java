@@ -0,0 +1,187 @@
+package com.meltmedia.aws.discovery;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A blocking task run on an executor, exposed as a `CompletableFuture`.
+ *
+ * Unlike `CompletableFuture.supplyAsync`, cancelling the future interrupts the
+ * thread running the task, and a deadline can be set that fails the future
+ * with a `TimeoutException` and interrupts the task the same way. An
+ * interrupted task stops when it next waits on something interruptible, such
+ * as a rate limiter, and the interrupt is cleared before the thread is handed
+ * back to its executor.
+ */
+class AsyncCall<T> extends CompletableFuture<T> implements Runnable {
+
+	/**
+	 * Fires deadlines. Created on first use.
+	 */
+	private static class Deadlines {
+		static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(
+				1, new DaemonThreadFactory("aws-auto-discovery-deadline"));
+		static {
+			SCHEDULER.setRemoveOnCancelPolicy(true);
+		}
+	}
+
+	private final Callable<T> task;
+
+	// guarded by this.
+	private Thread runner;
+	private boolean interrupted;
+
+	private AsyncCall(Callable<T> task) {
+		this.task = task;
+	}
+
+	/**
+	 * Runs the task on the executor. A rejected task fails the future.
+	 */
+	static <T> AsyncCall<T> submit(Callable<T> task, Executor executor) {
+		AsyncCall<T> call = new AsyncCall<T>(task);
+		try {
+			executor.execute(call);
+		} catch (RejectedExecutionException e) {
+			call.completeExceptionally(e);
+		}
+		return call;
+	}
+
+	/**
+	 * Fails the future with a `TimeoutException` if it is not done before the
+	 * timeout. A timeout of zero or less sets no deadline.
+	 */
+	AsyncCall<T> withDeadline(final long timeout, final TimeUnit unit) {
+		if (timeout <= 0 || isDone()) {
+			return this;
+		}
+		final ScheduledFuture<?> timer = Deadlines.SCHEDULER.schedule(() -> {
+			if (completeExceptionally(new TimeoutException(String.format(
+					"not done within %d %s", timeout, unit.name().toLowerCase())))) {
+				interruptRunner();
+			}
+		}, timeout, unit);
+		whenComplete((value, failure) -> timer.cancel(false));
+		return this;
+	}
+
+	/**
+	 * Waits on a future that is shared with other callers. The returned future
+	 * completes with the source, or fails with a `TimeoutException` if the
+	 * source is not done before the timeout. Neither the deadline nor
+	 * cancelling the returned future touches the source, they only abandon
+	 * this caller's wait. A timeout of zero or less sets no deadline.
+	 */
+	static <T> CompletableFuture<T> abandonAfter(CompletableFuture<T> source,
+			final long timeout, final TimeUnit unit) {
+		final CompletableFuture<T> wait = new CompletableFuture<T>();
+		source.whenComplete((value, failure) -> {
+			if (failure != null) {
+				wait.completeExceptionally(cause(failure));
+			} else {
+				wait.complete(value);
+			}
+		});
+		if (timeout > 0 && !wait.isDone()) {
+			final ScheduledFuture<?> timer = Deadlines.SCHEDULER.schedule(
+					() -> wait.completeExceptionally(new TimeoutException(String
+							.format("not done within %d %s", timeout, unit.name()
+									.toLowerCase()))), timeout, unit);
+			wait.whenComplete((value, failure) -> timer.cancel(false));
+		}
+		return wait;
+	}
+
+	/**
+	 * Cancels the sources once the dependent future is done, so that
+	 * cancelling a future derived from an `AsyncCall` still interrupts it.
+	 *
+	 * @return the dependent future.
+	 */
+	static <U> CompletableFuture<U> cancelWhenDone(CompletableFuture<U> dependent,
+			final Future<?>... sources) {
+		dependent.whenComplete((value, failure) -> {
+			for (Future<?> source : sources) {
+				source.cancel(true);
+			}
+		});
+		return dependent;
+	}
+
+	@Override
+	public void run() {
+		synchronized (this) {
+			if (isDone()) {
+				return;
+			}
+			runner = Thread.currentThread();
+		}
+		try {
+			complete(task.call());
+		} catch (Throwable t) {
+			completeExceptionally(t);
+		} finally {
+			synchronized (this) {
+				runner = null;
+				if (interrupted) {
+					Thread.interrupted();
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		boolean cancelled = super.cancel(mayInterruptIfRunning);
+		if (cancelled && mayInterruptIfRunning) {
+			interruptRunner();
+		}
+		return cancelled;
+	}
+
+	private synchronized void interruptRunner() {
+		if (runner != null) {
+			interrupted = true;
+			runner.interrupt();
+		}
+	}
+
+	/**
+	 * Unwraps the `CompletionException` that dependent stages wrap failures
+	 * in.
+	 */
+	static Throwable cause(Throwable failure) {
+		while (failure instanceof CompletionException
+				&& failure.getCause() != null) {
+			failure = failure.getCause();
+		}
+		return failure;
+	}
+
+	/**
+	 * Creates the executor used when none is given: a virtual thread per task
+	 * on JDKs that have them, otherwise a cached pool of daemon threads.
+	 */
+	static ExecutorService newDefaultExecutor(String name) {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(new DaemonThreadFactory(name));
+		}
+	}
+}
@@ -16,16 +16,40 @@
 package com.meltmedia.aws.discovery;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.w3c.dom.Node;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.Request;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
@@ -37,10 +61,10 @@ import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
 import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.Filter;
 import com.amazonaws.services.ec2.model.Instance;
-import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.transform.Unmarshaller;
 import com.amazonaws.util.TimingInfo;
+import com.meltmedia.aws.discovery.DiscoveryMetrics.Operation;
 
 /**
  * A discovery component that uses the AWS EC2 API to find cluster members.
@@ -63,10 +87,102 @@ import com.amazonaws.util.TimingInfo;
  * AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
  *   .credentials("YOUR_AWS_ACCESS_KEY", "YOUR_AWS_SECRET_KEY")
  *   .withFilters(Parsers.filters("instance-state-name=running;instance-type=m1.small")
- *   .withEnvironment(EnvironmentInspector.build().inspect())
+ *   .withInstanceDetails(InstanceInspector.inspectOnce())
  *   .build();
  * ```
  *
+ * ### Caching
+ * 
+ * Every call to `getPrivateIpAddresses()` queries EC2 by default. When many
+ * threads ask for the members, put a cache in front of the query. Callers that
+ * arrive while a query is in flight wait for that query instead of starting
+ * their own, and hits older than the refresh ahead age start a background
+ * refresh.
+ * 
+ * ```
+ * AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+ *   .withTagNames(Parsers.tagNames("Type,Environment")
+ *   .withCacheTtl(30, TimeUnit.SECONDS)
+ *   .withRefreshAhead(20, TimeUnit.SECONDS)
+ *   .build();
+ * ```
+ *
+ * ### Tag Matching
+ * 
+ * The tags of the current instance are looked up once, when the component is
+ * started, and turned into filters for the member query. If the tags of the
+ * instance can change while the process is running, either call
+ * `refreshSelfTags()` or have the tags looked up again in the background.
+ * 
+ * ```
+ * AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+ *   .withTagNames(Parsers.tagNames("Type,Environment")
+ *   .withSelfTagRefreshInterval(10, TimeUnit.MINUTES)
+ *   .build();
+ * ```
+ *
+ * ### Large Fleets
+ * 
+ * The member query follows the NextToken of every DescribeInstances page, so
+ * no members are dropped on accounts with many instances. Use
+ * `withMaxResults(int)` to bound the size of each page, and
+ * `iteratePrivateIpAddresses()` to start on the first members before the later
+ * pages have been requested.
+ *
+ * ### Membership Events
+ * 
+ * Instead of polling the component and comparing lists, register a
+ * `MembershipListener` and set a poll interval. The poller starts with the
+ * component, and tells the listeners which members joined and left.
+ * 
+ * ```
+ * AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+ *   .withTagNames(Parsers.tagNames("Type,Environment")
+ *   .withPollInterval(10, TimeUnit.SECONDS)
+ *   .withPollJitter(2, TimeUnit.SECONDS)
+ *   .withMembershipListener(listener)
+ *   .build()
+ *   .start();
+ * ```
+ *
+ * ### Throttling
+ * 
+ * When EC2 answers with a throttling fault, the component backs off with
+ * decorrelated jitter and serves the last members it found until the backoff
+ * period ends. The poller waits out the backoff period too, and returns to the
+ * configured interval after the next successful query.
+ *
+ * ### Sharing Clients
+ * 
+ * Components in the same JVM that use the same endpoint and credentials can
+ * lease one EC2 client from an `Ec2ClientRegistry`, and share its connection
+ * pool. A registry created with a calls per second ceiling keeps all of the
+ * components that share a client under that ceiling. A `RateLimiter` can also
+ * be passed to several builders directly.
+ * 
+ * ```
+ * Ec2ClientRegistry registry = new Ec2ClientRegistry(5);
+ * AwsAutoDiscovery web = AwsAutoDiscovery.builder()
+ *   .withTagNames(Parsers.tagNames("Role")
+ *   .withClientRegistry(registry)
+ *   .build();
+ * ```
+ *
+ * ### Warm Starts
+ * 
+ * With a snapshot file, the instance details and the last members found are
+ * written to disk after each successful query. On the next start the instance
+ * details are read from the file instead of the metadata service, and the
+ * members in the file are served while a fresh query runs in the background.
+ * 
+ * ```
+ * AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+ *   .withTagNames(Parsers.tagNames("Type,Environment")
+ *   .withSnapshotFile(new File("/var/lib/myapp/discovery.snapshot"))
+ *   .build()
+ *   .start();
+ * ```
+ *
  * ### IAM Instance Profiles
  * 
  * To use the instance profile associated with an EC2 instance, simply omit the
@@ -75,7 +191,7 @@ import com.amazonaws.util.TimingInfo;
  * ```
  * AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
  *   .withTagNames(Parsers.tagNames("Type,Environment")
- *   .withEnvironment(EnvironmentInspector.build().inspect())
+ *   .withInstanceDetails(InstanceInspector.inspectOnce())
  *   .build();
  * ```
  *
@@ -92,163 +208,1758 @@ import com.amazonaws.util.TimingInfo;
 @SuppressWarnings("deprecation")
 public class AwsAutoDiscovery implements Closeable {
 
-	public static class Builder {
-		protected AWSCredentialsProvider provider = new DefaultAWSCredentialsProviderChain();
-		protected List<Filter> filters = new ArrayList<Filter>();
-		protected List<String> tagNames = new ArrayList<String>();
-		protected FaultListener faultListener;
-		protected InstanceDetails instanceDetails;
+	public static class Builder {
+		protected AWSCredentialsProvider provider = new DefaultAWSCredentialsProviderChain();
+		protected List<Filter> filters = new ArrayList<Filter>();
+		protected List<String> tagNames = new ArrayList<String>();
+		protected FaultListener faultListener;
+		protected FaultEventListener faultEventListener;
+		protected InstanceDetails instanceDetails;
+		protected InstanceInspector instanceInspector;
+		protected SnapshotStore snapshotStore;
+		protected long snapshotMaxAgeNanos = TimeUnit.DAYS.toNanos(1);
+		protected long cacheTtlNanos;
+		protected long refreshAheadNanos;
+		protected long selfTagRefreshNanos;
+		protected Integer maxResults;
+		protected long pollIntervalNanos;
+		protected long pollJitterNanos;
+		protected ScheduledExecutorService scheduler;
+		protected Executor executor;
+		protected List<MembershipListener> membershipListeners = new ArrayList<MembershipListener>();
+		protected long backoffBaseNanos = TimeUnit.SECONDS.toNanos(1);
+		protected long backoffCapNanos = TimeUnit.MINUTES.toNanos(5);
+		protected ClientConfiguration clientConfiguration = new ClientConfiguration();
+		protected Ec2ClientRegistry clientRegistry;
+		protected RateLimiter rateLimiter;
+		protected double maxCallsPerSecond;
+		protected Map<String, RateLimiter> regionRateLimiters = new HashMap<String, RateLimiter>();
+		protected boolean projection;
+		protected DiscoveryMetrics metrics = DiscoveryMetrics.NONE;
+		protected long hedgeDelayNanos;
+		protected double hedgePercentile;
+		protected int maxHedges = 1;
+		protected Locality locality = Locality.ANY;
+		protected int probePort;
+		protected long probeTimeoutNanos;
+		protected long probeTtlNanos = TimeUnit.SECONDS.toNanos(30);
+		protected ProbePolicy probePolicy = ProbePolicy.RANK_LAST;
+		protected Map<String, String> regionEndpoints = new LinkedHashMap<String, String>();
+		protected long regionTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+		protected InstanceInventory inventory;
+		protected int delegationPort;
+		protected long delegationStalenessNanos;
+
+		public Builder withCredentials(String accessKey, String secretKey) {
+			this.provider = new StaticCredentialsProvider(
+					new BasicAWSCredentials(accessKey, secretKey));
+			return this;
+		}
+
+		public Builder withCredentialProvider(AWSCredentialsProvider provider) {
+			this.provider = provider;
+			return this;
+		}
+
+		public Builder withFilters(Collection<Filter> filters) {
+			this.filters.addAll(filters);
+			return this;
+		}
+
+		public Builder withTagNames(Collection<String> tagNames) {
+			this.tagNames.addAll(tagNames);
+			return this;
+		}
+
+		public Builder withFaultListener(FaultListener faultListener) {
+			this.faultListener = faultListener;
+			return this;
+		}
+
+		/**
+		 * Receives a structured event for every failed call to AWS. Unlike a
+		 * `FaultListener`, the fault document is only serialized if the
+		 * listener asks for it.
+		 */
+		public Builder withFaultEventListener(
+				FaultEventListener faultEventListener) {
+			this.faultEventListener = faultEventListener;
+			return this;
+		}
+		
+		public Builder withInstanceDetails( InstanceDetails instanceDetails ) {
+			this.instanceDetails = instanceDetails;
+			return this;
+		}
+
+		/**
+		 * The inspector used to look up the instance details when they are not
+		 * supplied, for example one with shorter timeouts. The caller remains
+		 * responsible for closing it. Defaults to an inspector with the default
+		 * timeouts that is closed after the lookup.
+		 */
+		public Builder withInstanceInspector( InstanceInspector instanceInspector ) {
+			this.instanceInspector = instanceInspector;
+			return this;
+		}
+
+		/**
+		 * Caches the members found for the specified time. Defaults to zero,
+		 * which queries EC2 on every call.
+		 */
+		public Builder withCacheTtl(long ttl, TimeUnit unit) {
+			this.cacheTtlNanos = unit.toNanos(ttl);
+			return this;
+		}
+
+		/**
+		 * Starts a background refresh when a cached value older than the
+		 * specified age is served. Must be less than the cache TTL. Defaults to
+		 * zero, which disables refresh ahead.
+		 */
+		public Builder withRefreshAhead(long age, TimeUnit unit) {
+			this.refreshAheadNanos = unit.toNanos(age);
+			return this;
+		}
+
+		/**
+		 * Looks up the tags of the current instance again at the specified
+		 * interval. Defaults to zero, which only looks them up when the
+		 * component is started or refreshSelfTags() is called.
+		 */
+		public Builder withSelfTagRefreshInterval(long interval, TimeUnit unit) {
+			this.selfTagRefreshNanos = unit.toNanos(interval);
+			return this;
+		}
+
+		/**
+		 * Limits the number of instances returned by each page of the member
+		 * query. EC2 accepts values between 5 and 1000. Defaults to the EC2
+		 * page size.
+		 */
+		public Builder withMaxResults(int maxResults) {
+			if (maxResults < 5 || maxResults > 1000) {
+				throw new IllegalArgumentException(String.format(
+						"max results must be between 5 and 1000, got %d",
+						maxResults));
+			}
+			this.maxResults = maxResults;
+			return this;
+		}
+
+		/**
+		 * Polls the membership at the specified interval and notifies the
+		 * membership listeners of changes. Defaults to zero, which disables the
+		 * poller.
+		 */
+		public Builder withPollInterval(long interval, TimeUnit unit) {
+			this.pollIntervalNanos = unit.toNanos(interval);
+			return this;
+		}
+
+		/**
+		 * Adds a random delay of up to the specified amount to each poll
+		 * interval, so nodes started together do not poll in lockstep.
+		 */
+		public Builder withPollJitter(long jitter, TimeUnit unit) {
+			this.pollJitterNanos = unit.toNanos(jitter);
+			return this;
+		}
+
+		/**
+		 * The executor that runs the poller, refresh ahead queries and self tag
+		 * refreshes. A supplied executor is not shut down when the component is
+		 * closed. Defaults to a single daemon thread owned by the component.
+		 */
+		public Builder withScheduler(ScheduledExecutorService scheduler) {
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		/**
+		 * The executor that runs the queries behind the asynchronous methods.
+		 * A supplied executor is not shut down when the component is closed.
+		 * Defaults to a virtual thread per query on JDKs that have them,
+		 * otherwise a cached pool of daemon threads owned by the component.
+		 */
+		public Builder withExecutor(Executor executor) {
+			this.executor = executor;
+			return this;
+		}
+
+		public Builder withMembershipListener(MembershipListener listener) {
+			this.membershipListeners.add(listener);
+			return this;
+		}
+
+		/**
+		 * The smallest and largest delays used after EC2 throttles a query.
+		 * Defaults to one second and five minutes.
+		 */
+		public Builder withThrottleBackoff(long base, long cap, TimeUnit unit) {
+			if (base <= 0 || cap < base) {
+				throw new IllegalArgumentException(
+						"the base delay must be positive and no greater than the cap");
+			}
+			this.backoffBaseNanos = unit.toNanos(base);
+			this.backoffCapNanos = unit.toNanos(cap);
+			return this;
+		}
+
+		/**
+		 * The configuration for the EC2 client, including the SDK's own retry
+		 * policy.
+		 */
+		public Builder withClientConfiguration(
+				ClientConfiguration clientConfiguration) {
+			this.clientConfiguration = clientConfiguration;
+			return this;
+		}
+
+		/**
+		 * Leases the EC2 client from the registry, sharing it with other
+		 * components that use the same endpoint and credentials. Defaults to a
+		 * client owned by this component.
+		 */
+		public Builder withClientRegistry(Ec2ClientRegistry clientRegistry) {
+			this.clientRegistry = clientRegistry;
+			return this;
+		}
+
+		/**
+		 * Limits the calls this component makes to EC2 in the region it runs
+		 * in. Pass the same limiter to several builders to share one budget.
+		 * Overrides the limit of a client registry. EC2 limits each region
+		 * separately, so other regions are limited with
+		 * `withRegionRateLimiter`. Rate limited clients make no retries of
+		 * their own, so that every request takes a token.
+		 */
+		public Builder withRateLimiter(RateLimiter rateLimiter) {
+			this.rateLimiter = rateLimiter;
+			this.maxCallsPerSecond = 0;
+			return this;
+		}
+
+		/**
+		 * Limits the calls this component makes to EC2 to the specified rate,
+		 * with a limiter of its own for each region.
+		 */
+		public Builder withMaxCallsPerSecond(double callsPerSecond) {
+			this.rateLimiter = new TokenBucketRateLimiter(callsPerSecond);
+			this.maxCallsPerSecond = callsPerSecond;
+			return this;
+		}
+
+		/**
+		 * Limits the calls this component makes to EC2 in another region.
+		 * Overrides the rate of `withMaxCallsPerSecond` and the limit of a
+		 * client registry for that region.
+		 */
+		public Builder withRegionRateLimiter(String region,
+				RateLimiter rateLimiter) {
+			this.regionRateLimiters.put(region, rateLimiter);
+			return this;
+		}
+
+		/**
+		 * Reads DescribeInstances responses with a streaming parser that only
+		 * keeps the fields discovery uses, instead of building the SDK's full
+		 * object graph for every instance. Only the tags named by the tag names
+		 * and `tag:` filters are kept, unless a `tag-key` or `tag-value` filter
+		 * needs all of them. Defaults to false.
+		 */
+		public Builder withProjection(boolean projection) {
+			this.projection = projection;
+			return this;
+		}
+
+		/**
+		 * Records the latency of every EC2 and metadata call, throttles,
+		 * faults and refreshes. Also applied to the default instance inspector.
+		 * Defaults to no metrics.
+		 */
+		public Builder withMetrics(DiscoveryMetrics metrics) {
+			this.metrics = metrics != null ? metrics : DiscoveryMetrics.NONE;
+			return this;
+		}
+
+		/**
+		 * Also looks for members in the regions, such as `us-west-2`, querying
+		 * them concurrently with the region this instance runs in and merging
+		 * the members found. The member filters, including the tag filters,
+		 * are sent to every region. Defaults to only the local region.
+		 */
+		public Builder withRegions(Collection<String> regions) {
+			for (String region : regions) {
+				this.regionEndpoints.put(region, "ec2." + region
+						+ ".amazonaws.com");
+			}
+			return this;
+		}
+
+		/**
+		 * Also looks for members in the region, using the specified endpoint,
+		 * such as a VPC endpoint.
+		 */
+		public Builder withRegion(String region, String endpoint) {
+			this.regionEndpoints.put(region, endpoint);
+			return this;
+		}
+
+		/**
+		 * How long each region is waited on, when other regions are queried,
+		 * the region this instance runs in included. A region that fails, or
+		 * has not answered by then, is left out of the result, and the query
+		 * only fails when no region answers. Defaults to ten seconds.
+		 */
+		public Builder withRegionTimeout(long timeout, TimeUnit unit) {
+			this.regionTimeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+
+		/**
+		 * Selects the members from a shared inventory instead of querying EC2,
+		 * when every member filter can be evaluated on the client (see
+		 * `FilterPredicate`). Other filters are still sent to EC2. The
+		 * inventory must be loaded through the same endpoint and credentials as
+		 * this component, which `build()` checks. Defaults to
+		 * querying EC2.
+		 */
+		public Builder withInventory(InstanceInventory inventory) {
+			this.inventory = inventory;
+			return this;
+		}
+
+		/**
+		 * Lets one node of the cluster poll EC2 for the others. The members
+		 * elect the running member with the lowest instance id, which shares
+		 * what it finds with the others over UDP and TCP on the port, bound to
+		 * each node's private address. Every node must use the same port and
+		 * filters. The channel is not authenticated, so only use it inside a
+		 * trusted network. Defaults to zero, where every node polls EC2.
+		 */
+		public Builder withDelegatedPolling(int port) {
+			this.delegationPort = port;
+			return this;
+		}
+
+		/**
+		 * How long a follower serves the elected node's members after its
+		 * last update, before polling EC2 itself. The elected node sends an
+		 * update each time it queries EC2, so this should be a few poll
+		 * intervals. Defaults to three poll intervals, or 30 seconds without a
+		 * poll interval.
+		 */
+		public Builder withDelegationStaleness(long staleness, TimeUnit unit) {
+			this.delegationStalenessNanos = unit.toNanos(staleness);
+			return this;
+		}
+
+		/**
+		 * Checks that members accept TCP connections on the port before they
+		 * are returned, connecting to all of them in parallel. Members that
+		 * do not connect within the timeout are unreachable. Neither queries
+		 * nor getters wait on the probe: members are probed on the executor,
+		 * a new snapshot is published once they have been, and getters order
+		 * the members by the last results, taking members that have not been
+		 * probed yet to be reachable. Defaults to no probing.
+		 */
+		public Builder withLivenessProbe(int port, long timeout, TimeUnit unit) {
+			this.probePort = port;
+			this.probeTimeoutNanos = unit.toNanos(timeout);
+			return this;
+		}
+
+		/**
+		 * How long a probe result is reused. Defaults to 30 seconds.
+		 */
+		public Builder withLivenessTtl(long ttl, TimeUnit unit) {
+			this.probeTtlNanos = unit.toNanos(ttl);
+			return this;
+		}
+
+		/**
+		 * What is done with unreachable members. Defaults to
+		 * `ProbePolicy.RANK_LAST`.
+		 */
+		public Builder withProbePolicy(ProbePolicy probePolicy) {
+			this.probePolicy = probePolicy != null ? probePolicy
+					: ProbePolicy.RANK_LAST;
+			return this;
+		}
+
+		/**
+		 * Sends a second copy of any DescribeInstances call that has not
+		 * finished within the delay, and takes whichever copy succeeds first.
+		 * Defaults to zero, which never hedges.
+		 */
+		public Builder withHedging(long delay, TimeUnit unit) {
+			this.hedgeDelayNanos = unit.toNanos(delay);
+			this.hedgePercentile = 0;
+			return this;
+		}
+
+		/**
+		 * Hedges DescribeInstances calls that are slower than the percentile
+		 * of the latencies seen so far, such as 95. The initial delay is used
+		 * until enough calls have been seen.
+		 */
+		public Builder withHedging(double percentile, long initialDelay,
+				TimeUnit unit) {
+			this.hedgeDelayNanos = unit.toNanos(initialDelay);
+			this.hedgePercentile = percentile;
+			return this;
+		}
+
+		/**
+		 * The most hedged copies in flight at once. Defaults to one.
+		 */
+		public Builder withMaxHedges(int maxHedges) {
+			this.maxHedges = maxHedges;
+			return this;
+		}
+
+		/**
+		 * How the private IP addresses are ordered and filtered by how close
+		 * they are to this instance. Defaults to `Locality.ANY`, address
+		 * order.
+		 */
+		public Builder withLocality(Locality locality) {
+			this.locality = locality != null ? locality : Locality.ANY;
+			return this;
+		}
+
+		/**
+		 * Keeps the instance details and the last members found in the
+		 * specified file, for fast restarts. The file must be on storage that
+		 * is local to the instance.
+		 */
+		public Builder withSnapshotFile( File snapshotFile ) {
+			this.snapshotStore = new SnapshotStore(snapshotFile);
+			return this;
+		}
+
+		/**
+		 * How old the members in the snapshot file may be and still be served
+		 * on start. Older members are ignored and the first query is waited
+		 * on, though the instance details are still read from the file.
+		 * Defaults to one day.
+		 */
+		public Builder withSnapshotMaxAge( long maxAge, TimeUnit unit ) {
+			this.snapshotMaxAgeNanos = unit.toNanos(maxAge);
+			return this;
+		}
+
+		public AwsAutoDiscovery build() throws DiscoveryException {
+			SnapshotStore.Snapshot snapshot = null;
+			if( snapshotStore != null ) {
+				snapshot = snapshotStore.load();
+				if( instanceDetails == null && snapshot != null ) {
+					instanceDetails = snapshot.getInstanceDetails();
+				}
+			}
+			if( instanceDetails == null ) {
+				if( instanceInspector != null ) {
+					instanceDetails = instanceInspector.inspect();
+				}
+				else {
+					InstanceInspector inspector = InstanceInspector.builder()
+							.withMetrics(metrics).build();
+					try {
+						instanceDetails = inspector.inspect();
+					}
+					finally {
+						inspector.close();
+					}
+				}
+			}
+			if (refreshAheadNanos > 0 && refreshAheadNanos >= cacheTtlNanos) {
+				throw new IllegalArgumentException(
+						"the refresh ahead age must be less than the cache ttl");
+			}
+			if (inventory != null) {
+				// the inventory answers for this component, so it must see
+				// the instances this component would.
+				AwsAutoDiscovery source = inventory.getSource();
+				if (!source.getInstanceDetails().getEndpoint()
+						.equals(instanceDetails.getEndpoint())
+						|| !Ec2ClientRegistry.credentialsKey(source.credentialProvider)
+								.equals(Ec2ClientRegistry.credentialsKey(provider))) {
+					throw new IllegalArgumentException(
+							"the inventory must be loaded through the same endpoint and credentials");
+				}
+			}
+			AwsAutoDiscovery discovery = new AwsAutoDiscovery(this);
+			if( snapshot != null
+					&& snapshot.getInstanceDetails().getInstanceId()
+							.equals(instanceDetails.getInstanceId())
+					&& System.currentTimeMillis() - snapshot.getSavedAt() <= TimeUnit.NANOSECONDS
+							.toMillis(snapshotMaxAgeNanos) ) {
+				discovery.snapshot = snapshot;
+			}
+			return discovery;
+		}
+	}
+
+	protected AWSCredentialsProvider credentialProvider;
+	private InstanceDetails instanceEnvironment;
+	private Collection<Filter> filters;
+	private Collection<String> tagNames;
+	private FaultListener faultListener;
+	private FaultEventListener faultEventListener;
+	private long cacheTtlNanos;
+	private long refreshAheadNanos;
+	private long selfTagRefreshNanos;
+	private Integer maxResults;
+	private long pollIntervalNanos;
+	private long pollJitterNanos;
+	private boolean ownsScheduler;
+	private Executor executor;
+	private ExecutorService ownedExecutor;
+	private final List<MembershipListener> membershipListeners = new CopyOnWriteArrayList<MembershipListener>();
+	private ThrottleBackoff backoff = new ThrottleBackoff(
+			TimeUnit.SECONDS.toNanos(1), TimeUnit.MINUTES.toNanos(5));
+	private ClientConfiguration clientConfiguration = new ClientConfiguration();
+	private Ec2ClientRegistry clientRegistry;
+	private RateLimiter rateLimiter;
+	private double maxCallsPerSecond;
+	private Map<String, RateLimiter> regionRateLimiters = Collections.emptyMap();
+	private SnapshotStore snapshotStore;
+	private DescribeInstancesProjection projection;
+	private DiscoveryMetrics metrics = DiscoveryMetrics.NONE;
+	private long hedgeDelayNanos;
+	private double hedgePercentile;
+	private int maxHedges = 1;
+	private Locality locality = Locality.ANY;
+	private LivenessProber prober;
+	private Map<String, String> regionEndpoints = Collections.emptyMap();
+	private long regionTimeoutNanos;
+	private InstanceInventory inventory;
+
+	private int delegationPort;
+	private long delegationStalenessNanos;
+
+	/**
+	 * Shares the members with the rest of the cluster, when delegated
+	 * polling is enabled. Opened by start and released by close.
+	 */
+	private volatile DelegatedPolling delegation;
+
+	/**
+	 * The member filters compiled for the inventory, recompiled when they
+	 * change.
+	 */
+	private volatile Compiled compiled;
+
+	private static class Compiled {
+		final List<Filter> filters;
+		final FilterPredicate predicate;
+
+		Compiled(List<Filter> filters, FilterPredicate predicate) {
+			this.filters = filters;
+			this.predicate = predicate;
+		}
+	}
+
+	/**
+	 * The snapshot read when the component was built, served until the first
+	 * query completes.
+	 */
+	private SnapshotStore.Snapshot snapshot;
+	private long snapshotSavedAt;
+
+	/**
+	 * The last members found, served while backing off.
+	 */
+	private volatile Membership lastGood;
+
+	/**
+	 * The latest snapshot, only replaced when the members change. Waiters in
+	 * awaitSnapshotNewerThan are woken on the monitor.
+	 */
+	private final AtomicReference<MembershipSnapshot> published = new AtomicReference<MembershipSnapshot>(
+			MembershipSnapshot.EMPTY);
+	private final Object publishedMonitor = new Object();
+
+	/**
+	 * The members whose probe may publish, when a liveness probe is set. A
+	 * later load replaces them, so a slower probe of older members is dropped.
+	 */
+	private volatile Membership probing;
+	private final Object probeLock = new Object();
+
+	/**
+	 * Set while a getter's request to probe again is queued or running.
+	 */
+	private final AtomicBoolean reprobing = new AtomicBoolean();
+
+	public AwsAutoDiscovery(AWSCredentialsProvider credentialProvider,
+			InstanceDetails instanceEnvironment, List<Filter> filters,
+			List<String> tagNames, FaultListener faultListener) {
+		this.credentialProvider = credentialProvider;
+		this.instanceEnvironment = instanceEnvironment;
+		this.filters = filters;
+		this.tagNames = tagNames;
+		this.faultListener = faultListener;
+	}
+
+	protected AwsAutoDiscovery(Builder builder) {
+		this(builder.provider, builder.instanceDetails, builder.filters,
+				builder.tagNames, builder.faultListener);
+		this.faultEventListener = builder.faultEventListener;
+		this.cacheTtlNanos = builder.cacheTtlNanos;
+		this.refreshAheadNanos = builder.refreshAheadNanos;
+		this.selfTagRefreshNanos = builder.selfTagRefreshNanos;
+		this.maxResults = builder.maxResults;
+		this.pollIntervalNanos = builder.pollIntervalNanos;
+		this.pollJitterNanos = builder.pollJitterNanos;
+		this.scheduler = builder.scheduler;
+		this.executor = builder.executor;
+		this.membershipListeners.addAll(builder.membershipListeners);
+		this.backoff = new ThrottleBackoff(builder.backoffBaseNanos,
+				builder.backoffCapNanos);
+		this.clientConfiguration = builder.clientConfiguration;
+		this.clientRegistry = builder.clientRegistry;
+		this.rateLimiter = builder.rateLimiter;
+		this.maxCallsPerSecond = builder.maxCallsPerSecond;
+		this.regionRateLimiters = new HashMap<String, RateLimiter>(
+				builder.regionRateLimiters);
+		this.snapshotStore = builder.snapshotStore;
+		this.metrics = builder.metrics;
+		this.hedgeDelayNanos = builder.hedgeDelayNanos;
+		this.hedgePercentile = builder.hedgePercentile;
+		this.maxHedges = builder.maxHedges;
+		this.locality = builder.locality;
+		this.regionEndpoints = new LinkedHashMap<String, String>(
+				builder.regionEndpoints);
+		this.regionTimeoutNanos = builder.regionTimeoutNanos;
+		this.inventory = builder.inventory;
+		if (builder.delegationPort < 0 || builder.delegationPort > 65535) {
+			throw new IllegalArgumentException(
+					"the delegation port must be between 1 and 65535");
+		}
+		this.delegationPort = builder.delegationPort;
+		this.delegationStalenessNanos = builder.delegationStalenessNanos > 0 ? builder.delegationStalenessNanos
+				: builder.pollIntervalNanos > 0 ? builder.pollIntervalNanos * 3
+						: TimeUnit.SECONDS.toNanos(30);
+		if (builder.probePort > 0) {
+			this.prober = new LivenessProber(builder.probePort,
+					builder.probeTimeoutNanos, builder.probeTtlNanos,
+					builder.probePolicy);
+		}
+		if (builder.projection) {
+			this.projection = new DescribeInstancesProjection(projectedTagKeys());
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * The EC2 client used to look up cluster members.
+	 */
+	private AmazonEC2Client ec2;
+
+	/**
+	 * The lease on a shared EC2 client, when a client registry is used.
+	 */
+	private Ec2ClientRegistry.Lease lease;
+
+	/**
+	 * The limiter applied to every EC2 call, if any.
+	 */
+	private RateLimiter activeRateLimiter;
+
+	/**
+	 * The listeners told about this component's faults, or null if there are
+	 * none. Routed to the fault adapter of the client for each call.
+	 */
+	private FaultEventListener[] faultEvents;
+
+	/**
+	 * A region queried besides the one this instance runs in.
+	 */
+	private static class RemoteRegion {
+		final String name;
+		final AmazonEC2Client client;
+		final RateLimiter rateLimiter;
+		final Ec2ClientRegistry.Lease lease;
+
+		RemoteRegion(String name, AmazonEC2Client client,
+				RateLimiter rateLimiter, Ec2ClientRegistry.Lease lease) {
+			this.name = name;
+			this.client = client;
+			this.rateLimiter = rateLimiter;
+			this.lease = lease;
+		}
+	}
+
+	/**
+	 * The other regions that are queried, when regions are configured.
+	 */
+	private final List<RemoteRegion> remoteRegions = new CopyOnWriteArrayList<RemoteRegion>();
+
+	/**
+	 * Queries the other regions. Platform threads, for the same reasons as
+	 * the hedge executor.
+	 */
+	private ExecutorService regionExecutor;
+
+	/**
+	 * The regions left out of the last query.
+	 */
+	private volatile Set<String> unavailableRegions = Collections.emptySet();
+
+	/**
+	 * Hedges slow EC2 calls, when hedging is enabled.
+	 */
+	private Hedger hedger;
+
+	/**
+	 * Runs both copies of hedged calls. Kept apart from the executor, which
+	 * may be bounded and already running the query that waits on them, and
+	 * always platform threads: the SDK blocks on sockets while holding
+	 * monitors, which pins a virtual thread to its carrier, and a pinned
+	 * first copy could keep its hedge from running at all.
+	 */
+	private ExecutorService hedgeExecutor;
+
+	/**
+	 * The cache in front of the member query.
+	 */
+	private MembershipCache<Membership> cache;
+
+	/**
+	 * Runs the poller, refresh ahead queries and self tag refreshes, when they
+	 * are enabled.
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Notifies the membership listeners of changes, when polling is enabled.
+	 */
+	private MembershipPoller poller;
+
+	/**
+	 * The filters derived from the tags of the current instance.
+	 */
+	private volatile List<Filter> selfFilters = Collections.emptyList();
+	private volatile boolean selfFiltersResolved = false;
+
+	/**
+	 * Starts the auto discovery component.
+	 * 
+	 * @return this instance for chaining
+	 */
+	public AwsAutoDiscovery start() throws Exception {
+		// start up a new ec2 client with the region specific endpoint, or
+		// lease one that is shared with other components.
+		activeRateLimiter = rateLimiter;
+		if (clientRegistry != null) {
+			lease = clientRegistry.lease(instanceEnvironment.getEndpoint(),
+					credentialProvider, configuration(rateLimiter));
+			ec2 = lease.getClient();
+			if (activeRateLimiter == null) {
+				activeRateLimiter = lease.getRateLimiter();
+			}
+		} else {
+			ec2 = new ProjectingEc2Client(credentialProvider,
+					configuration(rateLimiter));
+			ec2.setEndpoint(instanceEnvironment.getEndpoint());
+		}
+
+		// Lets do some good old reflection work to add a unmarshaller to the
+		// AmazonEC2Client just to log the exceptions from soap, and to record
+		// them as flight recorder events. A shared client already has one from
+		// the registry, which reports each fault to the component that made
+		// the call.
+		List<FaultEventListener> faultListeners = new ArrayList<FaultEventListener>();
+		if (faultEventListener != null) {
+			faultListeners.add(faultEventListener);
+		}
+		if (faultListener != null) {
+			faultListeners.add(new LegacyFaultListener(faultListener));
+		}
+		if (!faultListeners.isEmpty()) {
+			faultEvents = faultListeners.toArray(new FaultEventListener[faultListeners
+					.size()]);
+		}
+		if (reportsFaults() && lease == null) {
+			addExceptionUnmarshaller(ec2, new FaultAdapter());
+		}
+
+		startRemoteRegions();
+
+		if (delegationPort > 0) {
+			delegation = new DelegatedPolling(delegationPort,
+					delegationStalenessNanos, instanceEnvironment.getInstanceId());
+		}
+
+		if (scheduler == null
+				&& (refreshAheadNanos > 0 || selfTagRefreshNanos > 0
+						|| pollIntervalNanos > 0 || snapshot != null)) {
+			ownsScheduler = true;
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+							"aws-auto-discovery"));
+		}
+		if (executor == null) {
+			executor = ownedExecutor = AsyncCall
+					.newDefaultExecutor("aws-auto-discovery-async");
+		}
+		if (hedgeDelayNanos > 0) {
+			hedgeExecutor = Executors
+					.newCachedThreadPool(new DaemonThreadFactory(
+							"aws-auto-discovery-hedge"));
+			hedger = new Hedger(hedgeDelayNanos, hedgePercentile, maxHedges,
+					hedgeExecutor, metrics);
+		}
+		cache = new MembershipCache<Membership>(
+				new Callable<Membership>() {
+					@Override
+					public Membership call() {
+						return loadMembership();
+					}
+				}, cacheTtlNanos, refreshAheadNanos, TimeUnit.NANOSECONDS,
+				scheduler);
+
+		// serve the members from the snapshot while the first query, and the
+		// tag lookup it depends on, run in the background.
+		boolean warmStart = snapshot != null;
+		if (warmStart) {
+			lastGood = snapshot.getMembership();
+			snapshotSavedAt = snapshot.getSavedAt();
+			cache.seed(snapshot.getMembership(), scheduler);
+			publish(snapshot.getMembership());
+			snapshot = null;
+		}
+
+		// resolve the tags of this instance once, instead of on every query.
+		if (hasTagNames()) {
+			if (!warmStart) {
+				refreshSelfTags();
+			}
+			if (selfTagRefreshNanos > 0) {
+				scheduler.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							refreshSelfTags();
+						} catch (Exception e) {
+							// keep the last filters, the fault listener has
+							// already been told about AWS faults.
+						}
+					}
+				}, selfTagRefreshNanos, selfTagRefreshNanos,
+						TimeUnit.NANOSECONDS);
+			}
+		}
+
+		if (pollIntervalNanos > 0) {
+			poller = new MembershipPoller(new Callable<Membership>() {
+				@Override
+				public Membership call() {
+					return cache.refresh();
+				}
+			}, scheduler, pollIntervalNanos, pollJitterNanos,
+					membershipListeners, backoff);
+			poller.start();
+		}
+
+		return this;
+	}
+
+	private void startRemoteRegions() {
+		String homeRegion = Locality.region(instanceEnvironment
+				.getAvailabilityZone());
+		for (Map.Entry<String, String> entry : regionEndpoints.entrySet()) {
+			if (entry.getKey().equals(homeRegion)) {
+				continue;
+			}
+			// EC2 limits each region separately, so the local limiter is
+			// never reused here.
+			RateLimiter limiter = regionRateLimiters.get(entry.getKey());
+			if (limiter == null && maxCallsPerSecond > 0) {
+				limiter = new TokenBucketRateLimiter(maxCallsPerSecond);
+			}
+			RemoteRegion region;
+			if (clientRegistry != null) {
+				Ec2ClientRegistry.Lease regionLease = clientRegistry.lease(
+						entry.getValue(), credentialProvider,
+						configuration(limiter));
+				region = new RemoteRegion(entry.getKey(),
+						regionLease.getClient(),
+						limiter != null ? limiter : regionLease.getRateLimiter(),
+						regionLease);
+			} else {
+				AmazonEC2Client client = new ProjectingEc2Client(
+						credentialProvider, configuration(limiter));
+				client.setEndpoint(entry.getValue());
+				region = new RemoteRegion(entry.getKey(), client, limiter, null);
+			}
+			if (reportsFaults() && region.lease == null) {
+				addExceptionUnmarshaller(region.client, new FaultAdapter());
+			}
+			remoteRegions.add(region);
+		}
+		if (!remoteRegions.isEmpty()) {
+			regionExecutor = Executors
+					.newCachedThreadPool(new DaemonThreadFactory(
+							"aws-auto-discovery-region"));
+		}
+	}
+
+	/**
+	 * Quietly stops the auto discovery component.
+	 * 
+	 * @return this instance for chaining
+	 */
+	public AwsAutoDiscovery stop() {
+		try {
+			close();
+		} catch (Exception e) {
+			// 
+		}
+
+		return this;
+	}
+	
+
+	@Override
+	public void close() throws IOException {
+		if (poller != null) {
+			poller.stop();
+			poller = null;
+		}
+		if (scheduler != null && ownsScheduler) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if (ownedExecutor != null) {
+			ownedExecutor.shutdownNow();
+			ownedExecutor = null;
+			executor = null;
+		}
+		if (hedgeExecutor != null) {
+			hedgeExecutor.shutdownNow();
+			hedgeExecutor = null;
+			hedger = null;
+		}
+		if (regionExecutor != null) {
+			regionExecutor.shutdownNow();
+			regionExecutor = null;
+		}
+		if (delegation != null) {
+			delegation.close();
+			delegation = null;
+		}
+		for (RemoteRegion region : remoteRegions) {
+			if (region.lease != null) {
+				region.lease.close();
+			} else {
+				region.client.shutdown();
+			}
+		}
+		remoteRegions.clear();
+		if (ec2 != null) {
+			try {
+			  if (lease != null) {
+				  lease.close();
+			  }
+			  else {
+				  ec2.shutdown();
+			  }
+			}
+			finally {
+			  ec2 = null;
+			  lease = null;
+			  faultEvents = null;
+			}
+		}
+	}
+
+	/**
+	 * Gets the list of private IP addresses found in AWS based on the filters
+	 * and tag names defined.
+	 * 
+	 * @return the list of private IP addresses found on AWS, ordered and
+	 *         filtered by the locality, smallest first by default
+	 */
+	public List<String> getPrivateIpAddresses() {
+		return privateIpAddresses(cache.get());
+	}
+
+	/**
+	 * Gets the members found in AWS, ordered and filtered by the locality.
+	 * 
+	 * @return the members found on AWS, closest first
+	 */
+	public List<Member> getRankedMembers() {
+		Membership membership = cache.get();
+		return membership.getMembers(order(membership));
+	}
+
+	/**
+	 * @return the addresses of the members, ordered and filtered by the
+	 *         locality and the last results of the liveness probe.
+	 */
+	List<String> privateIpAddresses(Membership membership) {
+		if (locality == Locality.ANY && prober == null) {
+			return membership.getPrivateIpAddresses();
+		}
+		return membership.getPrivateIpAddresses(order(membership));
+	}
+
+	private int[] order(Membership membership) {
+		int[] order = locality.order(membership,
+				instanceEnvironment.getAvailabilityZone());
+		if (prober == null) {
+			return order;
+		}
+		if (prober.isStale(membership, order)) {
+			reprobe(membership);
+		}
+		return prober.rank(membership, order);
+	}
+
+	/**
+	 * Gets the members found in AWS based on the filters and tag names
+	 * defined, with their instance ids, availability zones, states and tags.
+	 * 
+	 * @return the members found on AWS
+	 */
+	public Membership getMembership() {
+		return cache.get();
+	}
+
+	/**
+	 * Gets the members without blocking the caller. A cached membership that
+	 * is still fresh completes the future at once, otherwise the query runs on
+	 * the executor.
+	 * 
+	 * @return the members found on AWS
+	 */
+	public CompletableFuture<Membership> getMembershipAsync() {
+		return getMembershipAsync(0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the members without blocking the caller, failing with a
+	 * `TimeoutException` if they are not found before the timeout. Cancelling
+	 * the future, or passing the timeout, only abandons this caller's wait:
+	 * the query may be shared with other callers, so it keeps running in the
+	 * background and still refreshes the cache.
+	 * 
+	 * @param timeout
+	 *          the time allowed, zero for no deadline.
+	 * @return the members found on AWS
+	 */
+	public CompletableFuture<Membership> getMembershipAsync(long timeout,
+			TimeUnit unit) {
+		// the load is shared with other callers, so the deadline only
+		// abandons this caller's wait and never interrupts the load.
+		return AsyncCall.abandonAfter(cache.getAsync(executor), timeout, unit);
+	}
+
+	/**
+	 * Gets the private IP addresses without blocking the caller.
+	 * 
+	 * @return the private IP addresses found on AWS, ordered and filtered by
+	 *         the locality
+	 * @see #getMembershipAsync()
+	 */
+	public CompletableFuture<List<String>> getPrivateIpAddressesAsync() {
+		return getPrivateIpAddressesAsync(0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets the private IP addresses without blocking the caller, failing with
+	 * a `TimeoutException` if they are not found before the timeout.
+	 * 
+	 * @param timeout
+	 *          the time allowed, zero for no deadline.
+	 * @return the private IP addresses found on AWS, ordered and filtered by
+	 *         the locality
+	 * @see #getMembershipAsync(long, TimeUnit)
+	 */
+	public CompletableFuture<List<String>> getPrivateIpAddressesAsync(
+			long timeout, TimeUnit unit) {
+		CompletableFuture<Membership> membership = getMembershipAsync(timeout,
+				unit);
+		return AsyncCall.cancelWhenDone(
+				membership.thenApply(this::privateIpAddresses), membership);
+	}
+
+	/**
+	 * Registers a listener that is notified when the poller sees the members
+	 * change. Listeners are only notified when a poll interval is set.
+	 */
+	public void addMembershipListener(MembershipListener listener) {
+		membershipListeners.add(listener);
+	}
+
+	public void removeMembershipListener(MembershipListener listener) {
+		membershipListeners.remove(listener);
+	}
+
+	/**
+	 * Returns the hit, miss and refresh counters of the membership cache.
+	 * 
+	 * @return the cache counters, all zero if the component was never started.
+	 */
+	public MembershipCache.Stats getCacheStats() {
+		MembershipCache<Membership> current = cache;
+		return current != null ? current.getStats()
+				: new MembershipCache.Stats(0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Loads the members for the cache. While backing off from a throttling
+	 * fault, the last members found are returned without calling EC2.
+	 */
+	Membership loadMembership() {
+		Membership previous = lastGood;
+		DelegatedPolling current = delegation;
+		Membership delegated = current != null ? current.delegated() : null;
+		if (delegated != null) {
+			saveSnapshot(previous, delegated);
+			lastGood = delegated;
+			publish(delegated);
+			return delegated;
+		}
+		if (previous != null && backoff.isBackingOff()) {
+			return previous;
+		}
+		try {
+			if (!selfFiltersResolved) {
+				// this load queries with the resolved filters, so there is
+				// nothing to invalidate, and a provisional entry from the
+				// snapshot keeps being served until it completes.
+				resolveSelfTags();
+			}
+			Membership members = queryMembership();
+			loaded(previous, members);
+			return members;
+		} catch (AmazonServiceException e) {
+			if (!ThrottleBackoff.isThrottle(e)) {
+				throw e;
+			}
+			backoff.onThrottled();
+			if (previous != null) {
+				return previous;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Takes the members found by a query shared with other components, as if
+	 * this component had loaded them, and caches them.
+	 */
+	void batchLoaded(Membership members) {
+		loaded(lastGood, members);
+		cache.put(members);
+	}
+
+	/**
+	 * Records the failure of a query shared with other components, backing off
+	 * if EC2 throttled it.
+	 */
+	void batchFailed(RuntimeException e) {
+		if (ThrottleBackoff.isThrottle(e)) {
+			backoff.onThrottled();
+		}
+	}
+
+	private void loaded(Membership previous, Membership members) {
+		backoff.onSuccess();
+		metrics.recordRefresh(members.size());
+		saveSnapshot(previous, members);
+		lastGood = members;
+		publish(members);
+		delegate(members);
+	}
+
+	/**
+	 * Elects the node that polls for the cluster from the members found, and
+	 * shares them if this node was elected.
+	 */
+	private void delegate(Membership members) {
+		DelegatedPolling current = delegation;
+		if (current != null) {
+			current.polled(members, memberFilters(), published.get()
+					.getVersion());
+		}
+	}
+
+	/**
+	 * @return true if delegated polling is enabled and this node is serving
+	 *         the members shared by the elected node, instead of polling EC2.
+	 */
+	public boolean isFollower() {
+		DelegatedPolling current = delegation;
+		return current != null && current.delegated() != null;
+	}
+
+	/**
+	 * Publishes a new snapshot if the members or their order changed. With a
+	 * liveness probe, the members are probed on the executor and published
+	 * once the probe is done, so a load never waits on the probe.
+	 */
+	private void publish(final Membership members) {
+		if (prober == null) {
+			publish(members, privateIpAddresses(members));
+			return;
+		}
+		probing = members;
+		try {
+			executor.execute(() -> publishProbed(members));
+		} catch (RejectedExecutionException e) {
+			// stopped, there is no one left to publish to.
+		}
+	}
+
+	/**
+	 * Probes the latest members again on the executor, once their results
+	 * have expired, so that getters never wait on the probe.
+	 */
+	private void reprobe(final Membership members) {
+		if (probing != members || !reprobing.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					publishProbed(members);
+				} finally {
+					reprobing.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			reprobing.set(false);
+		}
+	}
+
+	/**
+	 * Probes the members and publishes them, unless newer members were loaded
+	 * in the meantime.
+	 */
+	private void publishProbed(Membership members) {
+		int[] order = prober.apply(members, locality.order(members,
+				instanceEnvironment.getAvailabilityZone()));
+		List<String> addresses = members.getPrivateIpAddresses(order);
+		synchronized (probeLock) {
+			if (probing == members) {
+				publish(members, addresses);
+			}
+		}
+	}
+
+	private void publish(Membership members, List<String> addresses) {
+		while (true) {
+			MembershipSnapshot current = published.get();
+			MembershipSnapshot next = current.next(members, addresses);
+			if (next == current) {
+				return;
+			}
+			if (published.compareAndSet(current, next)) {
+				synchronized (publishedMonitor) {
+					publishedMonitor.notifyAll();
+				}
+				return;
+			}
+		}
+	}
 
-		public Builder withCredentials(String accessKey, String secretKey) {
-			this.provider = new StaticCredentialsProvider(
-					new BasicAWSCredentials(accessKey, secretKey));
-			return this;
+	/**
+	 * Returns the latest snapshot of the members, without querying EC2. A new
+	 * snapshot is published whenever a query finds that the members or their
+	 * order changed, whether the query was made by a getter, refresh ahead or
+	 * the poller, so readers that only use snapshots should set a poll
+	 * interval. This is one volatile read and never allocates.
+	 * 
+	 * @return the latest snapshot, `MembershipSnapshot.EMPTY` until the
+	 *         members are first found.
+	 */
+	public MembershipSnapshot currentSnapshot() {
+		return published.get();
+	}
+
+	/**
+	 * Returns the latest snapshot if it is newer than the version, without
+	 * querying EC2 or allocating.
+	 * 
+	 * @return the latest snapshot, or null if the version is current.
+	 */
+	public MembershipSnapshot snapshotIfNewerThan(long version) {
+		MembershipSnapshot current = published.get();
+		return current.isNewerThan(version) ? current : null;
+	}
+
+	/**
+	 * Waits for a snapshot newer than the version. Queries that find the same
+	 * members do not wake the caller.
+	 * 
+	 * @return the newer snapshot, or null if none was published before the
+	 *         timeout.
+	 */
+	public MembershipSnapshot awaitSnapshotNewerThan(long version,
+			long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (publishedMonitor) {
+			MembershipSnapshot current;
+			while (!(current = published.get()).isNewerThan(version)) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return null;
+				}
+				TimeUnit.NANOSECONDS.timedWait(publishedMonitor, remaining);
+			}
+			return current;
 		}
+	}
 
-		public Builder withCredentialProvider(AWSCredentialsProvider provider) {
-			this.provider = provider;
-			return this;
+	/**
+	 * Rewrites the snapshot file when the members change, and at least once a
+	 * minute so its timestamp stays current.
+	 */
+	private void saveSnapshot(Membership previous, Membership members) {
+		if (snapshotStore == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (members.equals(previous)
+				&& now - snapshotSavedAt < TimeUnit.MINUTES.toMillis(1)) {
+			return;
 		}
+		try {
+			snapshotStore.save(instanceEnvironment, members);
+			snapshotSavedAt = now;
+		} catch (Exception e) {
+			// the snapshot only speeds up restarts, discovery works without it.
+		}
+	}
 
-		public Builder withFilters(Collection<Filter> filters) {
-			this.filters.addAll(filters);
-			return this;
+	/**
+	 * @return true if EC2 throttled the last query and the backoff period has
+	 *         not ended.
+	 */
+	public boolean isBackingOff() {
+		return backoff.isBackingOff();
+	}
+
+	/**
+	 * Queries EC2 for the private IP addresses of the members, bypassing the
+	 * cache.
+	 * 
+	 * @return the list of private IP addresses found on AWS
+	 */
+	protected List<String> queryPrivateIpAddresses() {
+		return privateIpAddresses(queryMembership());
+	}
+
+	/**
+	 * Queries EC2 for the members, bypassing the cache.
+	 * 
+	 * @return the members found on AWS
+	 */
+	protected Membership queryMembership() {
+		if (remoteRegions.isEmpty()) {
+			Membership.Builder members = Membership.builder();
+			addLocalMembers(members, memberFilters());
+			return members.build();
 		}
 
-		public Builder withTagNames(Collection<String> tagNames) {
-			this.tagNames.addAll(tagNames);
-			return this;
+		// query every region concurrently, this one included, each with the
+		// same deadline.
+		final List<Filter> filters = memberFilters();
+		AsyncCall<Membership.Builder> local = AsyncCall.submit(() -> {
+			Membership.Builder found = Membership.builder();
+			addLocalMembers(found, filters);
+			return found;
+		}, regionExecutor).withDeadline(regionTimeoutNanos, TimeUnit.NANOSECONDS);
+		Map<RemoteRegion, AsyncCall<List<Instance>>> remote = new LinkedHashMap<RemoteRegion, AsyncCall<List<Instance>>>();
+		for (final RemoteRegion region : remoteRegions) {
+			remote.put(region, AsyncCall.submit(
+					() -> queryRegion(region, memberRequest(filters)),
+					regionExecutor).withDeadline(regionTimeoutNanos,
+					TimeUnit.NANOSECONDS));
+		}
+		try {
+			Set<String> unavailable = new TreeSet<String>();
+			Membership.Builder members;
+			ExecutionException localFailure = null;
+			try {
+				members = local.get();
+			} catch (ExecutionException e) {
+				unavailable.add(Locality.region(instanceEnvironment
+						.getAvailabilityZone()));
+				members = Membership.builder();
+				localFailure = e;
+			}
+			for (Map.Entry<RemoteRegion, AsyncCall<List<Instance>>> entry : remote
+					.entrySet()) {
+				try {
+					for (Instance instance : entry.getValue().get()) {
+						members.add(instance);
+					}
+				} catch (ExecutionException e) {
+					unavailable.add(entry.getKey().name);
+				}
+			}
+			// only fail when no region answered, rather than publish nothing.
+			if (localFailure != null && unavailable.size() > remote.size()) {
+				Throwable cause = localFailure.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new DiscoveryException("no region answered", cause);
+			}
+			unavailableRegions = Collections.unmodifiableSet(unavailable);
+			return members.build();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DiscoveryException("interrupted while querying regions", e);
+		} finally {
+			local.cancel(true);
+			for (AsyncCall<List<Instance>> call : remote.values()) {
+				call.cancel(true);
+			}
 		}
+	}
 
-		public Builder withFaultListener(FaultListener faultListener) {
-			this.faultListener = faultListener;
-			return this;
+	/**
+	 * Adds the members in this region, from the inventory when the filters
+	 * allow it.
+	 */
+	private void addLocalMembers(Membership.Builder members,
+			List<Filter> filters) {
+		FilterPredicate predicate = inventoryPredicate(filters);
+		if (predicate != null) {
+			inventory.addMatching(predicate, members);
+			return;
 		}
-		
-		public Builder withInstanceDetails( InstanceDetails instanceDetails ) {
-			this.instanceDetails = instanceDetails;
-			return this;
+		Iterator<Instance> instances = pager(memberRequest(filters));
+		while (instances.hasNext()) {
+			members.add(instances.next());
 		}
+	}
 
-		public AwsAutoDiscovery build() throws DiscoveryException {
-			if( instanceDetails == null ) {
-				instanceDetails = InstanceInspector.build().inspect();
-			}
-			return new AwsAutoDiscovery(provider, instanceDetails, filters,
-					tagNames, faultListener);
+	/**
+	 * @return the filters compiled for the inventory, or null if there is no
+	 *         inventory or EC2 has to evaluate them.
+	 */
+	private FilterPredicate inventoryPredicate(List<Filter> filters) {
+		if (inventory == null) {
+			return null;
+		}
+		Compiled current = compiled;
+		if (current == null || !current.filters.equals(filters)) {
+			compiled = current = new Compiled(filters,
+					FilterPredicate.isSupported(filters) ? FilterPredicate
+							.compile(filters) : null);
 		}
+		return current.predicate;
 	}
 
-	protected AWSCredentialsProvider credentialProvider;
-	private InstanceDetails instanceEnvironment;
-	private Collection<Filter> filters;
-	private Collection<String> tagNames;
-	private FaultListener faultListener;
+	private List<Instance> queryRegion(RemoteRegion region,
+			DescribeInstancesRequest request) {
+		List<Instance> instances = new ArrayList<Instance>();
+		Iterator<Instance> pages = pager(region.client, region.rateLimiter,
+				request, projection, Operation.MEMBER_QUERY);
+		while (pages.hasNext()) {
+			instances.add(pages.next());
+		}
+		return instances;
+	}
 
-	public AwsAutoDiscovery(AWSCredentialsProvider credentialProvider,
-			InstanceDetails instanceEnvironment, List<Filter> filters,
-			List<String> tagNames, FaultListener faultListener) {
-		this.credentialProvider = credentialProvider;
-		this.instanceEnvironment = instanceEnvironment;
-		this.filters = filters;
-		this.tagNames = tagNames;
-		this.faultListener = faultListener;
+	/**
+	 * @return the regions that failed, or did not answer in time, on the last
+	 *         query, which can include the region this instance runs in. Their
+	 *         members are missing from the result.
+	 */
+	public Set<String> getUnavailableRegions() {
+		return unavailableRegions;
 	}
 
-	public static Builder builder() {
-		return new Builder();
+	/**
+	 * @return the cached members if they are still fresh, otherwise null.
+	 */
+	Membership cachedMembership() {
+		return cache.getIfFresh();
 	}
 
 	/**
-	 * The EC2 client used to look up cluster members.
+	 * @return true if the component has to run its own member query, because
+	 *         it spans regions or reads an inventory.
 	 */
-	private AmazonEC2Client ec2;
+	boolean isQueriedAlone() {
+		return !remoteRegions.isEmpty() || inventory != null;
+	}
 
 	/**
-	 * Starts the auto discovery component.
+	 * Walks the private IP addresses of the members, bypassing the cache. The
+	 * pages of the member query are requested as the iterator advances, so
+	 * only one page is held in memory at a time. Instances without a private
+	 * IP address, such as terminated instances, are skipped.
 	 * 
-	 * @return this instance for chaining
+	 * @return an iterator over the private IP addresses found on AWS
 	 */
-	public AwsAutoDiscovery start() throws Exception {
-		// start up a new ec2 client with the region specific endpoint.
-		ec2 = new AmazonEC2Client(credentialProvider);
-		ec2.setEndpoint(instanceEnvironment.getEndpoint());
+	public Iterator<String> iteratePrivateIpAddresses() {
+		final InstancePager instances = pager(memberRequest(memberFilters()));
+		return new Iterator<String>() {
+			private String next;
 
-		// Lets do some good old reflection work to add a unmarshaller to the
-		// AmazonEC2Client just to log the exceptions from soap.
-		if (faultListener != null) {
-			addExceptionUnmarshaller(ec2, new FaultAdapter(faultListener));
-		}
+			@Override
+			public boolean hasNext() {
+				while (next == null && instances.hasNext()) {
+					next = instances.next().getPrivateIpAddress();
+				}
+				return next != null;
+			}
 
-		return this;
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				String result = next;
+				next = null;
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 
 	/**
-	 * Quietly stops the auto discovery component.
-	 * 
-	 * @return this instance for chaining
+	 * Builds the request for the first page of a member query.
 	 */
-	public AwsAutoDiscovery stop() {
-		try {
-			close();
-		} catch (Exception e) {
-			// 
-		}
+	DescribeInstancesRequest memberRequest(List<Filter> filters) {
+		return new DescribeInstancesRequest().withFilters(filters)
+				.withMaxResults(maxResults);
+	}
 
-		return this;
+	/**
+	 * Walks the instances returned by the request, one page at a time.
+	 */
+	InstancePager pager(DescribeInstancesRequest request) {
+		return pager(request, projection);
 	}
-	
 
-	@Override
-	public void close() throws IOException {
-		if (ec2 != null) {
-			try {
-			  ec2.shutdown();
-			}
-			finally {
-			  ec2 = null;
+	/**
+	 * Pages through the instances with the specified projection, or the SDK's
+	 * unmarshaller if it is null.
+	 */
+	InstancePager pager(DescribeInstancesRequest request,
+			DescribeInstancesProjection projection) {
+		return pager(request, projection, Operation.MEMBER_QUERY);
+	}
+
+	private InstancePager pager(DescribeInstancesRequest request,
+			DescribeInstancesProjection projection, Operation operation) {
+		return pager(ec2, activeRateLimiter, request, projection, operation);
+	}
+
+	private InstancePager pager(final AmazonEC2Client client,
+			final RateLimiter limiter, DescribeInstancesRequest request,
+			final DescribeInstancesProjection projection,
+			final Operation operation) {
+		return new InstancePager(new InstancePager.Fetcher() {
+			@Override
+			public DescribeInstancesResult fetch(DescribeInstancesRequest request) {
+				return describeInstances(client, limiter, request, projection,
+						operation);
 			}
-		}
+		}, request, operation);
 	}
 
 	/**
-	 * Gets the list of private IP addresses found in AWS based on the filters
-	 * and tag names defined.
-	 * 
-	 * @return the list of private IP addresses found on AWS
+	 * @return the details of the instance this component runs on.
 	 */
-	public List<String> getPrivateIpAddresses() {
-		List<String> result = new ArrayList<String>();
+	public InstanceDetails getInstanceDetails() {
+		return instanceEnvironment;
+	}
 
+	/**
+	 * @return the filters that select the members, the resolved tag filters
+	 *         followed by the configured filters.
+	 */
+	List<Filter> memberFilters() {
 		List<Filter> filters = new ArrayList<Filter>();
 
-		// if there are aws tags defined, then look them up and create filters.
-		if (tagNames != null) {
-			filters.addAll(asFilters(requestInstanceTags()));
-		}
+		// if there are aws tags defined, then use the filters resolved from
+		// the tags of this instance.
+		filters.addAll(selfFilters);
 
 		// if there are aws filters defined, then add them to the list.
 		if (this.filters != null) {
 			filters.addAll(this.filters);
 		}
-		DescribeInstancesRequest request = new DescribeInstancesRequest()
-				.withFilters(filters);
+		return filters;
+	}
+
+	/**
+	 * Issues a single DescribeInstances call for the member query.
+	 */
+	protected DescribeInstancesResult describeInstances(
+			DescribeInstancesRequest request) {
+		return describeInstances(request, projection, Operation.MEMBER_QUERY);
+	}
+
+	/**
+	 * Issues a single DescribeInstances call. Every call to EC2 goes through
+	 * this method, which hedges slow calls unless the component is backing
+	 * off from throttling.
+	 */
+	DescribeInstancesResult describeInstances(
+			DescribeInstancesRequest request,
+			DescribeInstancesProjection projection, Operation operation) {
+		return describeInstances(ec2, activeRateLimiter, request, projection,
+				operation);
+	}
+
+	private DescribeInstancesResult describeInstances(
+			final AmazonEC2Client client, final RateLimiter limiter,
+			final DescribeInstancesRequest request,
+			final DescribeInstancesProjection projection,
+			final Operation operation) {
+		Hedger active = hedger;
+		if (active != null && !backoff.isBackingOff()) {
+			return active.call(operation,
+					() -> attempt(client, limiter, request, projection, operation));
+		}
+		return attempt(client, limiter, request, projection, operation);
+	}
 
-		// NOTE: the reservations group nodes together by when they were
-		// started. We need to dig through all of the reservations.
-		DescribeInstancesResult filterResult = ec2.describeInstances(request);
-		for (Reservation reservation : filterResult.getReservations()) {
-			for (Instance instance : reservation.getInstances()) {
-				result.add(instance.getPrivateIpAddress());
+	/**
+	 * Sends one copy of a DescribeInstances call, applying the rate limit and
+	 * recording the call's latency, after any wait for the rate limiter.
+	 */
+	private DescribeInstancesResult attempt(AmazonEC2Client client,
+			RateLimiter limiter, DescribeInstancesRequest request,
+			DescribeInstancesProjection projection, Operation operation) {
+		if (limiter != null) {
+			limiter.acquire();
+		}
+		long start = System.nanoTime();
+		boolean success = false;
+		FaultEventListener[] routed = FaultAdapter.route(faultEvents);
+		try {
+			DescribeInstancesResult result;
+			if (projection != null && client instanceof ProjectingEc2Client) {
+				result = ((ProjectingEc2Client) client).describeInstances(
+						request, projection);
+			} else {
+				result = client.describeInstances(request);
+			}
+			success = true;
+			return result;
+		} catch (AmazonServiceException e) {
+			if (ThrottleBackoff.isThrottle(e)) {
+				metrics.recordThrottle(operation);
+			} else {
+				metrics.recordFault(operation, e.getErrorCode());
 			}
+			throw e;
+		} catch (AmazonClientException e) {
+			metrics.recordFault(operation, null);
+			throw e;
+		} finally {
+			FaultAdapter.route(routed);
+			metrics.recordCall(operation, System.nanoTime() - start, success);
 		}
-		return result;
 	}
 
-	static List<Filter> asFilters(Collection<Tag> tags) {
+	/**
+	 * @return the projection used for DescribeInstances responses, or null if
+	 *         the SDK's unmarshaller is used.
+	 */
+	DescribeInstancesProjection getProjection() {
+		return projection;
+	}
+
+	/**
+	 * @return the tag keys the tag names and filters refer to, or null if a
+	 *         filter can match any tag.
+	 */
+	private Collection<String> projectedTagKeys() {
+		Set<String> keys = new HashSet<String>();
+		if (tagNames != null) {
+			keys.addAll(tagNames);
+		}
+		if (filters != null) {
+			for (Filter filter : filters) {
+				String name = filter.getName();
+				if (name.startsWith("tag:")) {
+					keys.add(name.substring(4));
+				} else if ("tag-key".equals(name) || "tag-value".equals(name)) {
+					return null;
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Looks up the tags of the current instance and replaces the filters
+	 * derived from them. The cached members are dropped if the filters
+	 * changed.
+	 * 
+	 * @return the filters derived from the tags of the current instance.
+	 */
+	public List<Filter> refreshSelfTags() {
+		if (resolveSelfTags()) {
+			MembershipCache<Membership> current = cache;
+			if (current != null) {
+				current.invalidate();
+			}
+		}
+		return selfFilters;
+	}
+
+	/**
+	 * Looks up the tags of the current instance and replaces the filters
+	 * derived from them, without touching the cache.
+	 * 
+	 * @return true if the filters changed.
+	 */
+	private boolean resolveSelfTags() {
+		if (!hasTagNames()) {
+			selfFiltersResolved = true;
+			return false;
+		}
+		List<Filter> resolved = Collections.unmodifiableList(asFilters(
+				tagNames, requestInstanceTags()));
+		selfFiltersResolved = true;
+		if (resolved.equals(selfFilters)) {
+			return false;
+		}
+		selfFilters = resolved;
+		return true;
+	}
+
+	/**
+	 * @return the filters derived from the tags of the current instance, as of
+	 *         the last time they were resolved.
+	 */
+	public List<Filter> getSelfFilters() {
+		return selfFilters;
+	}
+
+	boolean hasTagNames() {
+		return tagNames != null && !tagNames.isEmpty();
+	}
+
+	static List<Filter> asFilters(Collection<String> tagNames,
+			Collection<Tag> tags) {
 		List<Filter> result = new ArrayList<Filter>();
 		for (Tag instanceTag : tags) {
-			if (tags.contains(instanceTag.getKey())) {
+			if (tagNames.contains(instanceTag.getKey())) {
 				result.add(new Filter("tag:" + instanceTag.getKey(), Arrays
 						.asList(instanceTag.getValue())));
 			}
@@ -264,21 +1975,41 @@ public class AwsAutoDiscovery implements Closeable {
 	 */
 	protected List<Tag> requestInstanceTags() {
 		List<Tag> tags = new ArrayList<Tag>();
-		DescribeInstancesResult response = ec2
-				.describeInstances(new DescribeInstancesRequest()
-						.withInstanceIds(Arrays.asList(instanceEnvironment
-								.getInstanceId())));
-		for (Reservation res : response.getReservations()) {
-			for (Instance inst : res.getInstances()) {
-				List<Tag> instanceTags = inst.getTags();
-				if (instanceTags != null && instanceTags.size() > 0) {
-					tags.addAll(instanceTags);
-				}
+		InstancePager instances = pager(new DescribeInstancesRequest().withInstanceIds(Arrays
+						.asList(instanceEnvironment.getInstanceId())), projection,
+				Operation.SELF_TAGS);
+		while (instances.hasNext()) {
+			List<Tag> instanceTags = instances.next().getTags();
+			if (instanceTags != null && instanceTags.size() > 0) {
+				tags.addAll(instanceTags);
 			}
 		}
 		return tags;
 	}
 
+	/**
+	 * @return the configuration of a client whose calls go through the
+	 *         limiter. A rate limited client does not retry, since the SDK's
+	 *         retries would not take a token, and throttling is left to the
+	 *         backoff.
+	 */
+	private ClientConfiguration configuration(RateLimiter limiter) {
+		return limiter != null ? withoutRetries(clientConfiguration)
+				: clientConfiguration;
+	}
+
+	static ClientConfiguration withoutRetries(ClientConfiguration configuration) {
+		return new ClientConfiguration(configuration).withMaxErrorRetry(0);
+	}
+
+	/**
+	 * @return true if the faults of owned clients have to be caught, for a
+	 *         listener or for the flight recorder.
+	 */
+	private boolean reportsFaults() {
+		return faultEvents != null || DiscoveryEvents.AVAILABLE;
+	}
+
 	/**
 	 * Sets up the AmazonEC2Client to log soap faults from the AWS EC2 api
 	 * server.
@@ -312,58 +2043,114 @@ public class AwsAutoDiscovery implements Closeable {
 	}
 
 	/**
-	 * This class will adapts a FaultListener to the AWS APIs.
+	 * This class will adapts FaultEventListeners to the AWS APIs.
+	 * 
+	 * The fault document is only stashed when it is unmarshalled. The event is
+	 * raised once the client gives up on the request, so a call that is
+	 * retried is reported once, with the final fault and the time spent on all
+	 * of the attempts.
+	 * 
+	 * The listeners are routed per thread by the component making the call, so
+	 * a client shared through the registry carries one adapter and each fault
+	 * only reaches the component whose call failed.
 	 * 
 	 * @author John McEntire
 	 *
 	 */
-	private class FaultAdapter implements
+	static class FaultAdapter implements
 			Unmarshaller<AmazonServiceException, Node>, RequestHandler {
-		private final ThreadLocal<Request<?>> request = new ThreadLocal<Request<?>>();
-		private FaultListener listener;
 
-		public FaultAdapter(FaultListener listener) {
-			this.listener = listener;
+		/**
+		 * The call in flight on a thread, reused from call to call.
+		 */
+		private static class Call {
+			long startNanos;
+			Node fault;
+		}
+
+		/**
+		 * The listeners of the component calling EC2 on a thread.
+		 */
+		private static final ThreadLocal<FaultEventListener[]> ROUTES = new ThreadLocal<FaultEventListener[]>();
+
+		private final ThreadLocal<Call> calls = new ThreadLocal<Call>() {
+			@Override
+			protected Call initialValue() {
+				return new Call();
+			}
+		};
+
+		/**
+		 * Routes the faults of the calls made on this thread to the listeners,
+		 * until they are routed elsewhere.
+		 * 
+		 * @return the listeners routed before, to restore once the call is done.
+		 */
+		static FaultEventListener[] route(FaultEventListener[] listeners) {
+			FaultEventListener[] previous = ROUTES.get();
+			if (listeners == null) {
+				ROUTES.remove();
+			} else {
+				ROUTES.set(listeners);
+			}
+			return previous;
 		}
 
 		@Override
 		public AmazonServiceException unmarshall(Node node) throws Exception {
-			try {
-				javax.xml.transform.TransformerFactory tfactory = javax.xml.transform.TransformerFactory
-						.newInstance();
-				javax.xml.transform.Transformer xform = tfactory
-						.newTransformer();
-
-				javax.xml.transform.Source src = new javax.xml.transform.dom.DOMSource(
-						node);
-				java.io.StringWriter writer = new java.io.StringWriter();
-				javax.xml.transform.Result result = new javax.xml.transform.stream.StreamResult(
-						writer);
-				xform.transform(src, result);
-				listener.fault("AWS Exception: [" + writer.toString()
-						+ "] For request [" + request.get() + "]");
-			} catch (Throwable t) {
-				//
-			} finally {
-				request.remove();
-			}
+			calls.get().fault = node;
 			return null;
 		}
 
 		@Override
 		public void afterError(Request<?> request, Exception e) {
-			this.request.remove();
+			Call call = calls.get();
+			try {
+				FaultEvent event = new FaultEvent(request, e, call.fault,
+						System.nanoTime() - call.startNanos);
+				DiscoveryEvents.fault(event);
+				FaultEventListener[] listeners = ROUTES.get();
+				if (listeners != null) {
+					for (FaultEventListener listener : listeners) {
+						try {
+							listener.fault(event);
+						} catch (Throwable t) {
+							//
+						}
+					}
+				}
+			} finally {
+				call.fault = null;
+			}
 		}
 
 		@Override
 		public void afterResponse(Request<?> request, Object obj,
 				TimingInfo timing) {
-			this.request.remove();
+			calls.get().fault = null;
 		}
 
 		@Override
 		public void beforeRequest(Request<?> request) {
-			this.request.set(request);
+			Call call = calls.get();
+			call.startNanos = System.nanoTime();
+			call.fault = null;
+		}
+	}
+
+	/**
+	 * Hands a FaultListener the message it has always been given.
+	 */
+	static class LegacyFaultListener implements FaultEventListener {
+		private final FaultListener listener;
+
+		LegacyFaultListener(FaultListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void fault(FaultEvent event) {
+			listener.fault(event.toString());
 		}
 	}
 
@@ -0,0 +1,462 @@
+package com.meltmedia.aws.discovery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.amazonaws.services.ec2.model.Filter;
+
+/**
+ * Lets one node of a cluster poll EC2 for the others.
+ *
+ * The nodes elect the member with the lowest instance id among the running
+ * members they last found. The leader polls EC2 as usual and, after each
+ * poll, sends every other member a small UDP heartbeat with the version and
+ * content hash of the members it found. A follower that sees a hash it does
+ * not hold fetches the members from the leader over TCP, on the same port, so
+ * large clusters are never squeezed into a datagram. While heartbeats keep
+ * arriving, the follower serves the leader's members instead of calling EC2;
+ * once they are older than the staleness limit, it polls EC2 itself until they
+ * resume, and a leader that has gone from EC2 is replaced by the next lowest
+ * instance id.
+ *
+ * Heartbeats are only accepted from the leader's address, and the channel
+ * binds to the node's own private address, so it should only be opened inside
+ * a trusted network. One selector thread receives the heartbeats, serves the
+ * fetches and makes them.
+ */
+class DelegatedPolling implements Closeable {
+	static final int MAGIC = 0x41414450;
+	private static final int HEARTBEAT_SIZE = 4 + 8 + 8 + 8 + 8;
+	private static final int MAX_MEMBERSHIP_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * How long a follower waits on the leader while fetching the members. The
+	 * selector thread makes the fetch, so it is kept short; a follower that
+	 * gives up tries again on the next heartbeat.
+	 */
+	static final int FETCH_TIMEOUT_MILLIS = 1000;
+
+	private final int port;
+	private final long stalenessNanos;
+	private final String instanceId;
+
+	/**
+	 * Tells the versions of a restarted leader apart from its old ones.
+	 */
+	private final long epoch = System.currentTimeMillis();
+
+	private Selector selector;
+	private DatagramChannel datagrams;
+	private ServerSocketChannel server;
+	private Thread thread;
+	private boolean unavailable;
+
+	private volatile long clusterKey;
+	private volatile boolean leader;
+	private volatile int leaderAddress;
+	private volatile int[] peers = new int[0];
+
+	/**
+	 * The leader's last members, encoded for followers that fetch them. They
+	 * are only encoded again when the snapshot version or content hash
+	 * changes.
+	 */
+	private volatile byte[] encoded;
+	private long encodedVersion;
+	private long encodedHash;
+
+	private volatile Membership delegated;
+	private volatile long delegatedHash;
+	private volatile long heartbeatAt;
+	private long leaderEpoch;
+	private long lastVersion;
+
+	DelegatedPolling(int port, long stalenessNanos, String instanceId) {
+		if (port < 1 || port > 65535) {
+			throw new IllegalArgumentException(
+					"the delegation port must be between 1 and 65535");
+		}
+		this.port = port;
+		this.stalenessNanos = stalenessNanos;
+		this.instanceId = instanceId;
+	}
+
+	/**
+	 * @return the leader's members if this node follows a leader whose
+	 *         heartbeats are fresh, otherwise null.
+	 */
+	Membership delegated() {
+		Membership current = delegated;
+		if (leader || current == null
+				|| System.nanoTime() - heartbeatAt > stalenessNanos) {
+			return null;
+		}
+		return current;
+	}
+
+	/**
+	 * @return the members encoded for followers, or null if this node has not
+	 *         led.
+	 */
+	byte[] encoded() {
+		return encoded;
+	}
+
+	/**
+	 * Called with the members this node found in EC2. Elects the leader and,
+	 * on the leader, shares the members.
+	 */
+	synchronized void polled(Membership members, List<Filter> filters,
+			long version) {
+		clusterKey = clusterKey(filters);
+		int self = elect(members);
+		if (self < 0 || !bind(members.addressAt(self))) {
+			return;
+		}
+		if (leader) {
+			long hash = contentHash(members);
+			if (encoded == null || version != encodedVersion
+					|| hash != encodedHash) {
+				encoded = encode(members);
+				encodedVersion = version;
+				encodedHash = hash;
+			}
+			heartbeat(version, hash);
+		}
+	}
+
+	/**
+	 * Picks the leader from the members.
+	 *
+	 * @return the index of this node in the members, or -1 if it is not one.
+	 */
+	private int elect(Membership members) {
+		int self = -1;
+		int lowest = -1;
+		int[] others = new int[members.size()];
+		int count = 0;
+		for (int i = 0; i < members.size(); i++) {
+			String id = members.instanceIdAt(i);
+			if (instanceId.equals(id)) {
+				self = i;
+			} else {
+				others[count++] = members.addressAt(i);
+			}
+			String state = members.stateAt(i);
+			if (id != null && (state == null || "running".equals(state))
+					&& (lowest < 0 || id.compareTo(members.instanceIdAt(lowest)) < 0)) {
+				lowest = i;
+			}
+		}
+		if (self < 0 || lowest < 0) {
+			leader = false;
+			return -1;
+		}
+		int[] trimmed = new int[count];
+		System.arraycopy(others, 0, trimmed, 0, count);
+		peers = trimmed;
+		leader = lowest == self;
+		leaderAddress = members.addressAt(lowest);
+		return self;
+	}
+
+	/**
+	 * Opens the channel on this node's address the first time it is known.
+	 *
+	 * @return false if the channel could not be opened.
+	 */
+	private boolean bind(int address) {
+		if (selector != null || unavailable) {
+			return !unavailable;
+		}
+		try {
+			InetSocketAddress local = new InetSocketAddress(inet(address), port);
+			selector = Selector.open();
+			datagrams = DatagramChannel.open();
+			datagrams.socket().bind(local);
+			datagrams.configureBlocking(false);
+			datagrams.register(selector, SelectionKey.OP_READ);
+			server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(local);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			// another process holds the port, poll EC2 directly.
+			unavailable = true;
+			close();
+			return false;
+		}
+		thread = new DaemonThreadFactory("aws-auto-discovery-delegation")
+				.newThread(new Runnable() {
+					@Override
+					public void run() {
+						loop();
+					}
+				});
+		thread.start();
+		return true;
+	}
+
+	private void heartbeat(long version, long hash) {
+		ByteBuffer message = ByteBuffer.allocate(HEARTBEAT_SIZE);
+		message.putInt(MAGIC).putLong(clusterKey).putLong(epoch).putLong(version)
+				.putLong(hash);
+		for (int peer : peers) {
+			message.rewind();
+			try {
+				datagrams.send(message, new InetSocketAddress(inet(peer), port));
+			} catch (IOException e) {
+				// the peer falls back to EC2 if it misses enough heartbeats.
+			}
+		}
+	}
+
+	private void loop() {
+		ByteBuffer received = ByteBuffer.allocate(HEARTBEAT_SIZE);
+		while (selector.isOpen()) {
+			try {
+				selector.select();
+				if (!selector.isOpen()) {
+					return;
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isAcceptable()) {
+						serve(server.accept());
+					} else if (key.isValid() && key.isReadable()) {
+						received.clear();
+						InetSocketAddress sender = (InetSocketAddress) datagrams
+								.receive(received);
+						received.flip();
+						if (sender != null) {
+							received(sender, received);
+						}
+					}
+				}
+			} catch (IOException e) {
+				// keep serving, a bad peer must not stop the channel.
+			} catch (RuntimeException e) {
+				if (!selector.isOpen()) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void received(InetSocketAddress sender, ByteBuffer message) {
+		if (leader || message.remaining() != HEARTBEAT_SIZE
+				|| message.getInt() != MAGIC
+				|| message.getLong() != clusterKey
+				|| Ipv4.pack(sender.getAddress().getHostAddress()) != leaderAddress) {
+			return;
+		}
+		long sentEpoch = message.getLong();
+		long version = message.getLong();
+		long hash = message.getLong();
+		if (sentEpoch == leaderEpoch && version < lastVersion) {
+			// a late datagram from before the last one.
+			return;
+		}
+		leaderEpoch = sentEpoch;
+		lastVersion = version;
+		if (delegated == null || hash != delegatedHash) {
+			Membership fetched = fetch(leaderAddress);
+			if (fetched == null || contentHash(fetched) != hash) {
+				return;
+			}
+			delegated = fetched;
+			delegatedHash = hash;
+			synchronized (this) {
+				elect(fetched);
+			}
+		}
+		heartbeatAt = System.nanoTime();
+	}
+
+	private void serve(SocketChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			byte[] members = encoded;
+			if (leader && members != null) {
+				channel.configureBlocking(true);
+				ByteBuffer buffer = ByteBuffer.allocate(4 + members.length);
+				buffer.putInt(members.length).put(members).flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		} catch (IOException e) {
+			// the follower retries on the next heartbeat.
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// already closed.
+			}
+		}
+	}
+
+	private Membership fetch(int address) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(inet(address), port),
+					FETCH_TIMEOUT_MILLIS);
+			socket.setSoTimeout(FETCH_TIMEOUT_MILLIS);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			int length = in.readInt();
+			if (length < 0 || length > MAX_MEMBERSHIP_BYTES) {
+				return null;
+			}
+			byte[] members = new byte[length];
+			in.readFully(members);
+			return decode(members);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed.
+			}
+		}
+	}
+
+	/**
+	 * @return true if this node is the elected poller.
+	 */
+	boolean isLeader() {
+		return leader;
+	}
+
+	/**
+	 * Releases the channel. A closed instance is not reopened, the component
+	 * creates a new one when it starts again.
+	 */
+	@Override
+	public synchronized void close() {
+		unavailable = true;
+		leader = false;
+		delegated = null;
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+			if (datagrams != null) {
+				datagrams.close();
+			}
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException e) {
+			// nothing more to release.
+		}
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	static long contentHash(Membership members) {
+		return MembershipSnapshot.contentHash(members,
+				Collections.<String> emptyList());
+	}
+
+	/**
+	 * Nodes with different filters never follow each other.
+	 */
+	static long clusterKey(List<Filter> filters) {
+		long key = 0xcbf29ce484222325L;
+		for (Filter filter : filters) {
+			key = (key ^ filter.getName().hashCode()) * 0x100000001b3L;
+			for (String value : filter.getValues()) {
+				key = (key ^ value.hashCode()) * 0x100000001b3L;
+			}
+		}
+		return key;
+	}
+
+	static byte[] encode(Membership members) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				members.size() * 48 + 8);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(members.size());
+			for (int i = 0; i < members.size(); i++) {
+				out.writeInt(members.addressAt(i));
+				writeString(out, members.instanceIdAt(i));
+				writeString(out, members.availabilityZoneAt(i));
+				writeString(out, members.stateAt(i));
+				out.writeLong(members.launchTimeAt(i));
+				String[] tags = members.tagsAt(i);
+				out.writeShort(tags.length);
+				for (String tag : tags) {
+					writeString(out, tag);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("could not encode the members", e);
+		}
+		return bytes.toByteArray();
+	}
+
+	static Membership decode(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a membership");
+		}
+		int size = in.readInt();
+		Membership.Builder members = Membership.builder();
+		for (int i = 0; i < size; i++) {
+			int address = in.readInt();
+			String id = readString(in);
+			String zone = readString(in);
+			String state = readString(in);
+			long launchTime = in.readLong();
+			String[] tags = new String[in.readUnsignedShort()];
+			for (int t = 0; t < tags.length; t++) {
+				tags[t] = readString(in);
+			}
+			members.add(address, id, zone, state, launchTime, tags);
+		}
+		return members.build();
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static InetAddress inet(int address) throws IOException {
+		return InetAddress.getByAddress(new byte[] { (byte) (address >>> 24),
+				(byte) (address >>> 16), (byte) (address >>> 8), (byte) address });
+	}
+}
@@ -0,0 +1,281 @@
+package com.meltmedia.aws.discovery;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.amazonaws.AmazonWebServiceResponse;
+import com.amazonaws.ResponseMetadata;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.http.HttpResponseHandler;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.Tag;
+import com.amazonaws.util.DateUtils;
+
+/**
+ * Reads a DescribeInstances response with a streaming StAX cursor, keeping
+ * only the fields discovery uses and skipping everything else.
+ *
+ * The SDK's unmarshaller builds the whole object graph of every instance,
+ * including block devices, network interfaces and security groups. This
+ * handler only sets the following on each `Instance`:
+ *
+ * * instanceId, imageId, instanceType, launchTime
+ * * privateIpAddress, vpcId, subnetId
+ * * placement.availabilityZone
+ * * state.code, state.name
+ * * the tags with the selected keys, or every tag if no keys are selected
+ *
+ * These cover the fields read by `Membership` and by the filters that
+ * `FilterPredicate` evaluates on the client.
+ */
+class DescribeInstancesProjection implements
+		HttpResponseHandler<AmazonWebServiceResponse<DescribeInstancesResult>> {
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+	static {
+		FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+	}
+
+	private final Set<String> tagKeys;
+
+	/**
+	 * @param tagKeys
+	 *          the keys of the tags to keep, or null to keep every tag.
+	 */
+	DescribeInstancesProjection(Collection<String> tagKeys) {
+		this.tagKeys = tagKeys != null ? Collections
+				.unmodifiableSet(new HashSet<String>(tagKeys)) : null;
+	}
+
+	/**
+	 * @return the keys of the tags that are kept, or null if every tag is
+	 *         kept.
+	 */
+	Set<String> getTagKeys() {
+		return tagKeys;
+	}
+
+	/**
+	 * Combines projections, keeping every tag that either one keeps.
+	 */
+	DescribeInstancesProjection union(DescribeInstancesProjection other) {
+		if (tagKeys == null || other.tagKeys == null) {
+			return new DescribeInstancesProjection(null);
+		}
+		Set<String> keys = new HashSet<String>(tagKeys);
+		keys.addAll(other.tagKeys);
+		return new DescribeInstancesProjection(keys);
+	}
+
+	@Override
+	public AmazonWebServiceResponse<DescribeInstancesResult> handle(
+			HttpResponse response) throws Exception {
+		Map<String, String> metadata = new HashMap<String, String>();
+		DescribeInstancesResult result = parse(response.getContent(), metadata);
+		AmazonWebServiceResponse<DescribeInstancesResult> awsResponse = new AmazonWebServiceResponse<DescribeInstancesResult>();
+		awsResponse.setResult(result);
+		awsResponse.setResponseMetadata(new ResponseMetadata(metadata));
+		return awsResponse;
+	}
+
+	@Override
+	public boolean needsConnectionLeftOpen() {
+		return false;
+	}
+
+	/**
+	 * Parses a DescribeInstances response body.
+	 */
+	DescribeInstancesResult parse(InputStream content) throws XMLStreamException {
+		return parse(content, new HashMap<String, String>());
+	}
+
+	private DescribeInstancesResult parse(InputStream content,
+			Map<String, String> metadata) throws XMLStreamException {
+		DescribeInstancesResult result = new DescribeInstancesResult();
+		List<Reservation> reservations = new ArrayList<Reservation>();
+		XMLStreamReader reader = FACTORY.createXMLStreamReader(content);
+		try {
+			reader.nextTag();
+			while (nextChild(reader)) {
+				String name = reader.getLocalName();
+				if ("requestId".equals(name)) {
+					metadata.put(ResponseMetadata.AWS_REQUEST_ID,
+							reader.getElementText());
+				} else if ("nextToken".equals(name)) {
+					result.setNextToken(reader.getElementText());
+				} else if ("reservationSet".equals(name)) {
+					while (nextChild(reader)) {
+						reservations.add(reservation(reader));
+					}
+				} else {
+					skip(reader);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		result.setReservations(reservations);
+		return result;
+	}
+
+	private Reservation reservation(XMLStreamReader reader)
+			throws XMLStreamException {
+		Reservation reservation = new Reservation();
+		List<Instance> instances = new ArrayList<Instance>();
+		while (nextChild(reader)) {
+			String name = reader.getLocalName();
+			if ("reservationId".equals(name)) {
+				reservation.setReservationId(reader.getElementText());
+			} else if ("ownerId".equals(name)) {
+				reservation.setOwnerId(reader.getElementText());
+			} else if ("instancesSet".equals(name)) {
+				while (nextChild(reader)) {
+					instances.add(instance(reader));
+				}
+			} else {
+				skip(reader);
+			}
+		}
+		reservation.setInstances(instances);
+		return reservation;
+	}
+
+	private Instance instance(XMLStreamReader reader) throws XMLStreamException {
+		Instance instance = new Instance();
+		while (nextChild(reader)) {
+			String name = reader.getLocalName();
+			if ("instanceId".equals(name)) {
+				instance.setInstanceId(reader.getElementText());
+			} else if ("privateIpAddress".equals(name)) {
+				instance.setPrivateIpAddress(reader.getElementText());
+			} else if ("imageId".equals(name)) {
+				instance.setImageId(reader.getElementText());
+			} else if ("instanceType".equals(name)) {
+				instance.setInstanceType(reader.getElementText());
+			} else if ("vpcId".equals(name)) {
+				instance.setVpcId(reader.getElementText());
+			} else if ("subnetId".equals(name)) {
+				instance.setSubnetId(reader.getElementText());
+			} else if ("launchTime".equals(name)) {
+				instance.setLaunchTime(DateUtils.parseISO8601Date(reader
+						.getElementText()));
+			} else if ("instanceState".equals(name)) {
+				instance.setState(state(reader));
+			} else if ("placement".equals(name)) {
+				instance.setPlacement(placement(reader));
+			} else if ("tagSet".equals(name)) {
+				instance.setTags(tags(reader));
+			} else {
+				skip(reader);
+			}
+		}
+		return instance;
+	}
+
+	private InstanceState state(XMLStreamReader reader)
+			throws XMLStreamException {
+		InstanceState state = new InstanceState();
+		while (nextChild(reader)) {
+			String name = reader.getLocalName();
+			if ("code".equals(name)) {
+				state.setCode(Integer.valueOf(reader.getElementText().trim()));
+			} else if ("name".equals(name)) {
+				state.setName(reader.getElementText());
+			} else {
+				skip(reader);
+			}
+		}
+		return state;
+	}
+
+	private Placement placement(XMLStreamReader reader)
+			throws XMLStreamException {
+		Placement placement = new Placement();
+		while (nextChild(reader)) {
+			if ("availabilityZone".equals(reader.getLocalName())) {
+				placement.setAvailabilityZone(reader.getElementText());
+			} else {
+				skip(reader);
+			}
+		}
+		return placement;
+	}
+
+	private List<Tag> tags(XMLStreamReader reader) throws XMLStreamException {
+		List<Tag> tags = new ArrayList<Tag>();
+		while (nextChild(reader)) {
+			String key = null;
+			String value = null;
+			while (nextChild(reader)) {
+				String name = reader.getLocalName();
+				if ("key".equals(name)) {
+					key = reader.getElementText();
+				} else if ("value".equals(name)) {
+					value = reader.getElementText();
+				} else {
+					skip(reader);
+				}
+			}
+			if (key != null && (tagKeys == null || tagKeys.contains(key))) {
+				tags.add(new Tag(key, value));
+			}
+		}
+		return tags;
+	}
+
+	/**
+	 * Advances to the next child of the current element.
+	 *
+	 * @return true when positioned on the start of a child, false when
+	 *         positioned on the end of the current element.
+	 */
+	private static boolean nextChild(XMLStreamReader reader)
+			throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return true;
+			}
+			if (event == XMLStreamConstants.END_ELEMENT) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Skips the element the reader is positioned on, leaving the reader on its
+	 * end.
+	 */
+	private static void skip(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.meltmedia.aws.discovery;
+
+import java.net.URI;
+
+import com.meltmedia.aws.discovery.DiscoveryMetrics.Operation;
+
+/**
+ * Emits Java Flight Recorder events for the metadata fetches, DescribeInstances
+ * queries and faults, so a discovery stall can be lined up with GC and thread
+ * activity in a recording:
+ *
+ * ```
+ * java -XX:StartFlightRecording=filename=discovery.jfr ...
+ * jfr print --categories "AWS Auto Discovery" discovery.jfr
+ * ```
+ *
+ * The events live in `JfrEvents`, which is only loaded on JVMs that include
+ * JFR, 8u262 and later. On other JVMs every method here does nothing. An event
+ * that the recording does not enable costs one small allocation, which is
+ * nothing next to the network call it measures.
+ */
+final class DiscoveryEvents {
+
+	/**
+	 * A DescribeInstances query being recorded, across all of its pages.
+	 */
+	interface Query {
+		void end(int pages, int instances, boolean success);
+	}
+
+	/**
+	 * A metadata fetch being recorded.
+	 */
+	interface Fetch {
+		void end(boolean success);
+	}
+
+	/**
+	 * True if the JVM includes the JFR API.
+	 */
+	static final boolean AVAILABLE = available();
+
+	private static final Query NO_QUERY = (pages, instances, success) -> {
+	};
+	private static final Fetch NO_FETCH = success -> {
+	};
+
+	private DiscoveryEvents() {
+	}
+
+	/**
+	 * Starts recording a query, which ends when its last page is read or a
+	 * page fails. A query whose iterator is abandoned is not recorded.
+	 */
+	static Query beginQuery(Operation operation, int filters) {
+		return AVAILABLE ? JfrEvents.beginQuery(operation, filters) : NO_QUERY;
+	}
+
+	/**
+	 * Starts recording a fetch from the instance metadata service.
+	 */
+	static Fetch beginFetch(URI uri) {
+		return AVAILABLE ? JfrEvents.beginFetch(uri) : NO_FETCH;
+	}
+
+	/**
+	 * Records a fault once the client has given up on the call.
+	 */
+	static void fault(FaultEvent fault) {
+		if (AVAILABLE) {
+			JfrEvents.fault(fault);
+		}
+	}
+
+	private static boolean available() {
+		try {
+			Class.forName("jdk.jfr.Event", false,
+					DiscoveryEvents.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+
+/**
+ * Discovers the members of several clusters with as few DescribeInstances
+ * queries as possible.
+ *
+ * The components in a group that share an endpoint and credentials are
+ * batched together. The filters that every component in a batch has in common
+ * are sent to EC2 in a single query, and the instances returned are
+ * partitioned on the client by the rest of each component's filters. The
+ * members found are cached by each component, as if it had queried them
+ * itself. When the shared query fails, each component of the batch backs off
+ * if it was throttled and answers from its own `getMembership()`, which serves
+ * its last members while it backs off.
+ *
+ * Any other component is answered by its own `getMembership()`, with its
+ * cache, backoff and rate limiter: one with a filter that cannot be evaluated
+ * on the client (see `FilterPredicate`), one that spans regions, reads an
+ * `InstanceInventory` or follows a delegated poller, one whose cached members
+ * are still fresh or that is backing off from throttling, and every component
+ * of a batch that has no filter in common, which would otherwise fetch every
+ * instance in the region.
+ *
+ * ```
+ * DiscoveryGroup group = new DiscoveryGroup(Arrays.asList(web, worker));
+ * Map&lt;AwsAutoDiscovery, List&lt;String&gt;&gt; members = group.getPrivateIpAddresses();
+ * ```
+ *
+ * Group components that have a common filter, such as an environment tag.
+ * The components must be started before the group is used.
+ */
+public class DiscoveryGroup {
+
+	/**
+	 * A set of components that are answered by one query.
+	 */
+	static class Batch {
+		final List<Filter> shared;
+		final Map<AwsAutoDiscovery, FilterPredicate> residuals;
+
+		Batch(List<Filter> shared, Map<AwsAutoDiscovery, FilterPredicate> residuals) {
+			this.shared = shared;
+			this.residuals = residuals;
+		}
+	}
+
+	private final List<AwsAutoDiscovery> discoveries;
+
+	public DiscoveryGroup(Collection<AwsAutoDiscovery> discoveries) {
+		this.discoveries = new ArrayList<AwsAutoDiscovery>(discoveries);
+	}
+
+	/**
+	 * Gets the private IP addresses of the members of every component in the
+	 * group.
+	 *
+	 * @return the private IP addresses found for each component, ordered by its
+	 *         locality, in the order the components were given.
+	 */
+	public Map<AwsAutoDiscovery, List<String>> getPrivateIpAddresses() {
+		Map<AwsAutoDiscovery, List<String>> result = new LinkedHashMap<AwsAutoDiscovery, List<String>>();
+		for (Map.Entry<AwsAutoDiscovery, Membership> entry : getMemberships()
+				.entrySet()) {
+			result.put(entry.getKey(),
+					entry.getKey().privateIpAddresses(entry.getValue()));
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the members of every component in the group.
+	 *
+	 * @return the members found for each component, in the order the
+	 *         components were given.
+	 */
+	public Map<AwsAutoDiscovery, Membership> getMemberships() {
+		Map<AwsAutoDiscovery, Membership> batched = new LinkedHashMap<AwsAutoDiscovery, Membership>();
+		for (Batch batch : batches()) {
+			Map<AwsAutoDiscovery, Membership.Builder> builders;
+			try {
+				builders = query(batch);
+			} catch (RuntimeException e) {
+				for (AwsAutoDiscovery discovery : batch.residuals.keySet()) {
+					discovery.batchFailed(e);
+				}
+				continue;
+			}
+			for (Map.Entry<AwsAutoDiscovery, Membership.Builder> entry : builders
+					.entrySet()) {
+				Membership members = entry.getValue().build();
+				entry.getKey().batchLoaded(members);
+				batched.put(entry.getKey(), members);
+			}
+		}
+		Map<AwsAutoDiscovery, Membership> result = new LinkedHashMap<AwsAutoDiscovery, Membership>();
+		for (AwsAutoDiscovery discovery : discoveries) {
+			Membership members = batched.get(discovery);
+			result.put(discovery, members != null ? members : discovery
+					.getMembership());
+		}
+		return result;
+	}
+
+	/**
+	 * Runs the shared query of a batch and partitions the instances found.
+	 */
+	private static Map<AwsAutoDiscovery, Membership.Builder> query(Batch batch) {
+		Map<AwsAutoDiscovery, Membership.Builder> builders = new LinkedHashMap<AwsAutoDiscovery, Membership.Builder>();
+		for (AwsAutoDiscovery discovery : batch.residuals.keySet()) {
+			builders.put(discovery, Membership.builder());
+		}
+		AwsAutoDiscovery first = batch.residuals.keySet().iterator().next();
+		Iterator<Instance> instances = first.pager(
+				first.memberRequest(batch.shared), projection(batch));
+		while (instances.hasNext()) {
+			Instance instance = instances.next();
+			if (instance.getPrivateIpAddress() == null) {
+				continue;
+			}
+			for (Map.Entry<AwsAutoDiscovery, FilterPredicate> residual : batch.residuals
+					.entrySet()) {
+				if (residual.getValue().matches(instance)) {
+					builders.get(residual.getKey()).add(instance);
+				}
+			}
+		}
+		return builders;
+	}
+
+	/**
+	 * Splits the components into batches that can share a query. Components
+	 * left out of every batch are answered on their own.
+	 */
+	List<Batch> batches() {
+		Map<List<Object>, List<AwsAutoDiscovery>> byClient = new LinkedHashMap<List<Object>, List<AwsAutoDiscovery>>();
+		List<Batch> batches = new ArrayList<Batch>();
+		for (AwsAutoDiscovery discovery : discoveries) {
+			if (discovery.isQueriedAlone() || discovery.isBackingOff()
+					|| discovery.isFollower()
+					|| discovery.cachedMembership() != null) {
+				// across their regions, from their inventory or leader, or
+				// from their cache.
+				continue;
+			}
+			List<Filter> filters = discovery.memberFilters();
+			if (!FilterPredicate.isSupported(filters)) {
+				continue;
+			}
+			List<Object> client = new ArrayList<Object>();
+			client.add(discovery.getInstanceDetails().getEndpoint());
+			client.add(Ec2ClientRegistry
+					.credentialsKey(discovery.credentialProvider));
+			List<AwsAutoDiscovery> batch = byClient.get(client);
+			if (batch == null) {
+				byClient.put(client, batch = new ArrayList<AwsAutoDiscovery>());
+			}
+			batch.add(discovery);
+		}
+		for (List<AwsAutoDiscovery> components : byClient.values()) {
+			if (components.size() < 2) {
+				continue;
+			}
+			// without a common filter the query would return every instance
+			// in the region.
+			Batch batch = batch(components);
+			if (!batch.shared.isEmpty()) {
+				batches.add(batch);
+			}
+		}
+		return batches;
+	}
+
+	private static Batch batch(List<AwsAutoDiscovery> discoveries) {
+		// find the filters that every component has in common.
+		Set<Object> common = null;
+		Map<AwsAutoDiscovery, List<Filter>> filters = new LinkedHashMap<AwsAutoDiscovery, List<Filter>>();
+		for (AwsAutoDiscovery discovery : discoveries) {
+			List<Filter> discoveryFilters = discovery.memberFilters();
+			filters.put(discovery, discoveryFilters);
+			Set<Object> keys = new HashSet<Object>();
+			for (Filter filter : discoveryFilters) {
+				keys.add(key(filter));
+			}
+			if (common == null) {
+				common = keys;
+			} else {
+				common.retainAll(keys);
+			}
+		}
+
+		// send the common filters to EC2 and evaluate the rest locally.
+		List<Filter> shared = new ArrayList<Filter>();
+		Map<AwsAutoDiscovery, FilterPredicate> residuals = new LinkedHashMap<AwsAutoDiscovery, FilterPredicate>();
+		for (Map.Entry<AwsAutoDiscovery, List<Filter>> entry : filters.entrySet()) {
+			List<Filter> residual = new ArrayList<Filter>();
+			for (Filter filter : entry.getValue()) {
+				if (!common.contains(key(filter))) {
+					residual.add(filter);
+				} else if (residuals.isEmpty()) {
+					shared.add(filter);
+				}
+			}
+			residuals.put(entry.getKey(), FilterPredicate.compile(residual));
+		}
+		return new Batch(shared, residuals);
+	}
+
+	/**
+	 * The batch is read with a projection only if every component in it asks
+	 * for one, keeping the tags that any of them need.
+	 */
+	private static DescribeInstancesProjection projection(Batch batch) {
+		DescribeInstancesProjection projection = null;
+		for (AwsAutoDiscovery discovery : batch.residuals.keySet()) {
+			DescribeInstancesProjection next = discovery.getProjection();
+			if (next == null) {
+				return null;
+			}
+			projection = projection == null ? next : projection.union(next);
+		}
+		return projection;
+	}
+
+	/**
+	 * Filters with the same name and the same set of values are equivalent.
+	 */
+	private static Object key(Filter filter) {
+		List<Object> key = new ArrayList<Object>();
+		key.add(filter.getName());
+		key.add(new HashSet<String>(filter.getValues()));
+		return key;
+	}
+}
@@ -0,0 +1,97 @@
+package com.meltmedia.aws.discovery;
+
+/**
+ * Receives measurements of the calls discovery makes to EC2 and the instance
+ * metadata service. Implementations must be thread safe and fast, they are
+ * called inline on every request.
+ *
+ * ```
+ * InMemoryDiscoveryMetrics metrics = new InMemoryDiscoveryMetrics();
+ * AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+ *   .withMetrics(metrics)
+ *   .build()
+ *   .start();
+ * ...
+ * long p99 = metrics.snapshot().getLatency(Operation.MEMBER_QUERY)
+ *   .getValueAtPercentile(99);
+ * ```
+ */
+public interface DiscoveryMetrics {
+
+	/**
+	 * The kinds of calls that are measured.
+	 */
+	public enum Operation {
+		/**
+		 * DescribeInstances calls that look up the tags of the current
+		 * instance.
+		 */
+		SELF_TAGS,
+
+		/**
+		 * DescribeInstances calls that look up the members, one per page.
+		 */
+		MEMBER_QUERY,
+
+		/**
+		 * Requests to the instance metadata service.
+		 */
+		IMDS
+	}
+
+	/**
+	 * Records one call, including any retries made by the client.
+	 */
+	void recordCall(Operation operation, long latencyNanos, boolean success);
+
+	/**
+	 * Records a call that EC2 throttled.
+	 */
+	void recordThrottle(Operation operation);
+
+	/**
+	 * Records a call that failed for any other reason.
+	 *
+	 * @param errorCode
+	 *          the AWS error code, or null if the call failed before AWS
+	 *          answered.
+	 */
+	void recordFault(Operation operation, String errorCode);
+
+	/**
+	 * Records a successful refresh of the members.
+	 */
+	void recordRefresh(int members);
+
+	/**
+	 * Records a hedged call, one that was slow enough that a second copy was
+	 * sent.
+	 *
+	 * @param won
+	 *          true if the second copy finished first.
+	 */
+	default void recordHedge(Operation operation, boolean won) {
+	}
+
+	/**
+	 * Metrics that discard every measurement.
+	 */
+	DiscoveryMetrics NONE = new DiscoveryMetrics() {
+		@Override
+		public void recordCall(Operation operation, long latencyNanos,
+				boolean success) {
+		}
+
+		@Override
+		public void recordThrottle(Operation operation) {
+		}
+
+		@Override
+		public void recordFault(Operation operation, String errorCode) {
+		}
+
+		@Override
+		public void recordRefresh(int members) {
+		}
+	};
+}
@@ -0,0 +1,195 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.auth.InstanceProfileCredentialsProvider;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+
+/**
+ * Shares EC2 clients between discovery components in the same JVM. Components
+ * that use the same endpoint and credentials lease the same client, so they
+ * share one connection pool and, when the registry has a rate limit, one
+ * request budget.
+ *
+ * The client is created with the configuration of the first component that
+ * leases it, and shut down when the last lease is closed. When the registry
+ * has a rate limit, the client makes no retries of its own, so that retries
+ * cannot go around the limit. It carries a single
+ * fault adapter, and each component only hears about the faults of its own
+ * calls.
+ */
+public class Ec2ClientRegistry {
+	private static final Ec2ClientRegistry SHARED = new Ec2ClientRegistry();
+
+	/**
+	 * @return the registry shared by the whole JVM, without a rate limit.
+	 */
+	public static Ec2ClientRegistry shared() {
+		return SHARED;
+	}
+
+	/**
+	 * A reference to a shared client. Close it to release the client.
+	 */
+	public class Lease {
+		private final Key key;
+		private final Entry entry;
+		private boolean closed = false;
+
+		Lease(Key key, Entry entry) {
+			this.key = key;
+			this.entry = entry;
+		}
+
+		public AmazonEC2Client getClient() {
+			return entry.client;
+		}
+
+		/**
+		 * @return the rate limiter shared by the leases of this client, or null
+		 *         if the registry has no rate limit.
+		 */
+		public RateLimiter getRateLimiter() {
+			return entry.rateLimiter;
+		}
+
+		public void close() {
+			synchronized (Ec2ClientRegistry.this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				if (--entry.leases == 0) {
+					entries.remove(key);
+					entry.client.shutdown();
+				}
+			}
+		}
+	}
+
+	static class Key {
+		final String endpoint;
+		final Object credentials;
+
+		Key(String endpoint, Object credentials) {
+			this.endpoint = endpoint;
+			this.credentials = credentials;
+		}
+
+		@Override
+		public int hashCode() {
+			return endpoint.hashCode() * 31 + credentials.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return endpoint.equals(other.endpoint)
+					&& credentials.equals(other.credentials);
+		}
+	}
+
+	static class Entry {
+		final AmazonEC2Client client;
+		final RateLimiter rateLimiter;
+		int leases = 0;
+
+		Entry(AmazonEC2Client client, RateLimiter rateLimiter) {
+			this.client = client;
+			this.rateLimiter = rateLimiter;
+		}
+	}
+
+	private final Map<Key, Entry> entries = new HashMap<Key, Entry>();
+	private final double maxCallsPerSecond;
+
+	/**
+	 * Creates a registry without a rate limit.
+	 */
+	public Ec2ClientRegistry() {
+		this(0);
+	}
+
+	/**
+	 * Creates a registry where every shared client is limited to the
+	 * specified calls per second, across all of its leases.
+	 * 
+	 * @param maxCallsPerSecond
+	 *          the ceiling for each client, zero for no limit.
+	 */
+	public Ec2ClientRegistry(double maxCallsPerSecond) {
+		if (maxCallsPerSecond < 0) {
+			throw new IllegalArgumentException(
+					"the calls per second cannot be negative");
+		}
+		this.maxCallsPerSecond = maxCallsPerSecond;
+	}
+
+	/**
+	 * Leases the client for the endpoint and credentials, creating it if no
+	 * other component holds it.
+	 */
+	public synchronized Lease lease(String endpoint,
+			AWSCredentialsProvider provider, ClientConfiguration configuration) {
+		Key key = new Key(endpoint, credentialsKey(provider));
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			// every request of a rate limited client has to take a token, so
+			// it makes no retries of its own.
+			AmazonEC2Client client = new ProjectingEc2Client(provider,
+					maxCallsPerSecond > 0 ? AwsAutoDiscovery
+							.withoutRetries(configuration) : configuration);
+			client.setEndpoint(endpoint);
+			// one fault adapter for every lease, added before the client is
+			// shared. Each call's faults go to the component that made it.
+			AwsAutoDiscovery.addExceptionUnmarshaller(client,
+					new AwsAutoDiscovery.FaultAdapter());
+			entry = new Entry(client,
+					maxCallsPerSecond > 0 ? new TokenBucketRateLimiter(
+							maxCallsPerSecond) : null);
+			entries.put(key, entry);
+		}
+		entry.leases++;
+		return new Lease(key, entry);
+	}
+
+	/**
+	 * @return the number of clients currently shared.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Providers that always resolve the same credentials share a key, any
+	 * other provider is only shared with itself. Static credentials are keyed
+	 * on the secret and session token too, so a component never signs with a
+	 * key pair it was not given.
+	 */
+	static Object credentialsKey(AWSCredentialsProvider provider) {
+		if (provider instanceof StaticCredentialsProvider) {
+			AWSCredentials credentials = provider.getCredentials();
+			return Arrays.asList("static", credentials.getAWSAccessKeyId(),
+					credentials.getAWSSecretKey(),
+					credentials instanceof AWSSessionCredentials
+							? ((AWSSessionCredentials) credentials).getSessionToken()
+							: null);
+		}
+		if (provider instanceof DefaultAWSCredentialsProviderChain
+				|| provider instanceof InstanceProfileCredentialsProvider) {
+			return provider.getClass().getName();
+		}
+		return provider;
+	}
+}
@@ -0,0 +1,166 @@
+package com.meltmedia.aws.discovery;
+
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Node;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+
+/**
+ * A failed call to AWS.
+ *
+ * Building an event only copies fields from the exception. The fault
+ * document is kept as it was parsed and only serialized if `getFaultXml()`
+ * is called, so a throttling storm does not also become an XML serialization
+ * storm.
+ */
+public class FaultEvent {
+	private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory
+			.newInstance();
+
+	/**
+	 * Transformers are not thread safe, so each thread keeps its own.
+	 */
+	private static final ThreadLocal<Transformer> SERIALIZER = new ThreadLocal<Transformer>() {
+		@Override
+		protected Transformer initialValue() {
+			try {
+				synchronized (TRANSFORMER_FACTORY) {
+					return TRANSFORMER_FACTORY.newTransformer();
+				}
+			} catch (TransformerConfigurationException e) {
+				throw new IllegalStateException(
+						"could not create an XML serializer", e);
+			}
+		}
+	};
+
+	private final String operation;
+	private final String errorCode;
+	private final String errorMessage;
+	private final String requestId;
+	private final int statusCode;
+	private final long durationNanos;
+	private final Exception exception;
+	private final Node fault;
+	private final Request<?> request;
+	private volatile String faultXml;
+
+	FaultEvent(Request<?> request, Exception exception, Node fault,
+			long durationNanos) {
+		this.request = request;
+		this.operation = request != null ? request.getParameters().get(
+				"Action") : null;
+		this.exception = exception;
+		this.fault = fault;
+		this.durationNanos = durationNanos;
+		if (exception instanceof AmazonServiceException) {
+			AmazonServiceException service = (AmazonServiceException) exception;
+			this.errorCode = service.getErrorCode();
+			this.errorMessage = service.getErrorMessage();
+			this.requestId = service.getRequestId();
+			this.statusCode = service.getStatusCode();
+		} else {
+			this.errorCode = null;
+			this.errorMessage = exception != null ? exception.getMessage()
+					: null;
+			this.requestId = null;
+			this.statusCode = 0;
+		}
+	}
+
+	/**
+	 * @return the AWS action that failed, such as `DescribeInstances`.
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return the AWS error code, or null if the call failed before AWS
+	 *         answered.
+	 */
+	public String getErrorCode() {
+		return errorCode;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/**
+	 * @return the AWS request id, or null if the call failed before AWS
+	 *         answered.
+	 */
+	public String getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * @return the HTTP status code, or zero if the call failed before AWS
+	 *         answered.
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return how long the call took, retries included.
+	 */
+	public long getDuration(TimeUnit unit) {
+		return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return true if AWS throttled the call.
+	 */
+	public boolean isThrottle() {
+		return ThrottleBackoff.isThrottle(exception);
+	}
+
+	/**
+	 * @return the exception the call failed with.
+	 */
+	public Exception getException() {
+		return exception;
+	}
+
+	/**
+	 * Serializes the fault document returned by AWS. The result is cached.
+	 *
+	 * @return the fault document, or null if AWS did not return one.
+	 */
+	public String getFaultXml() {
+		String xml = faultXml;
+		if (xml == null && fault != null) {
+			StringWriter writer = new StringWriter();
+			try {
+				SERIALIZER.get().transform(new DOMSource(fault),
+						new StreamResult(writer));
+			} catch (TransformerException e) {
+				return null;
+			}
+			faultXml = xml = writer.toString();
+		}
+		return xml;
+	}
+
+	/**
+	 * @return the message that `FaultListener` has always been given.
+	 */
+	@Override
+	public String toString() {
+		String xml = getFaultXml();
+		return "AWS Exception: [" + (xml != null ? xml : exception)
+				+ "] For request [" + request + "]";
+	}
+}
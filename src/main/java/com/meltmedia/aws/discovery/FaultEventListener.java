@@ -0,0 +1,9 @@
+package com.meltmedia.aws.discovery;
+
+/**
+ * Notified of every failed call to AWS, once the client has stopped
+ * retrying it.
+ */
+public interface FaultEventListener {
+	public void fault(FaultEvent event);
+}
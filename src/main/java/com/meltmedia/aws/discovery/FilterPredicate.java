@@ -0,0 +1,309 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * Evaluates DescribeInstances filters against instances on the client. An
+ * instance matches when it matches every filter, and it matches a filter when
+ * the named attribute matches any of the filter's values, the same way EC2
+ * evaluates them.
+ *
+ * Values may use EC2's wildcards: `*` matches any run of characters, `?`
+ * matches exactly one, and a backslash escapes the character after it. Exact
+ * values are looked up in a hash set, and wildcard values are matched without
+ * backtracking through regular expressions. An attribute an instance does not
+ * have matches nothing, not even `*`.
+ *
+ * Filters with the following names can be evaluated:
+ *
+ * * `instance-id`, `instance-state-name`, `instance-type`, `image-id`
+ * * `availability-zone`, `vpc-id`, `subnet-id`, `private-ip-address`
+ * * `tag:KEY`, `tag-key`, `tag-value`
+ *
+ * Use `isSupported(Filter)` to find out which filters must be left to EC2.
+ */
+public class FilterPredicate {
+
+	/**
+	 * Reads the values of one filter attribute from an instance.
+	 */
+	private static abstract class Attribute {
+		abstract boolean matches(Instance instance, Values values);
+	}
+
+	/**
+	 * The values of one filter, the exact ones in a set and the wildcard ones
+	 * as patterns.
+	 */
+	static class Values {
+		private static final int ANY = -1;
+		private static final int ONE = -2;
+		private static final int[][] NO_PATTERNS = new int[0][];
+
+		final Set<String> exact = new HashSet<String>();
+		final int[][] patterns;
+
+		Values(Collection<String> values) {
+			List<int[]> compiled = new ArrayList<int[]>();
+			for (String value : values) {
+				int[] pattern = compile(value);
+				if (pattern == null) {
+					exact.add(unescape(value));
+				} else {
+					compiled.add(pattern);
+				}
+			}
+			this.patterns = compiled.isEmpty() ? NO_PATTERNS : compiled
+					.toArray(new int[compiled.size()][]);
+		}
+
+		boolean contains(String value) {
+			if (value == null) {
+				return false;
+			}
+			if (exact.contains(value)) {
+				return true;
+			}
+			for (int[] pattern : patterns) {
+				if (matches(pattern, value)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return the value as characters and wildcards, or null if it has no
+		 *         wildcards.
+		 */
+		static int[] compile(String value) {
+			int[] pattern = new int[value.length()];
+			int length = 0;
+			boolean wildcard = false;
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' && i + 1 < value.length()) {
+					pattern[length++] = value.charAt(++i);
+				} else if (c == '*') {
+					// runs of stars match the same as one star.
+					if (length == 0 || pattern[length - 1] != ANY) {
+						pattern[length++] = ANY;
+					}
+					wildcard = true;
+				} else if (c == '?') {
+					pattern[length++] = ONE;
+					wildcard = true;
+				} else {
+					pattern[length++] = c;
+				}
+			}
+			return wildcard ? Arrays.copyOf(pattern, length) : null;
+		}
+
+		static String unescape(String value) {
+			if (value.indexOf('\\') < 0) {
+				return value;
+			}
+			StringBuilder result = new StringBuilder(value.length());
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '\\' && i + 1 < value.length()) {
+					c = value.charAt(++i);
+				}
+				result.append(c);
+			}
+			return result.toString();
+		}
+
+		/**
+		 * Matches a pattern, going back to the last star on a mismatch. Only
+		 * the last star is ever retried, so a match takes at most the length
+		 * of the value times the length of the pattern.
+		 */
+		static boolean matches(int[] pattern, String value) {
+			int p = 0;
+			int v = 0;
+			int star = -1;
+			int resume = 0;
+			while (v < value.length()) {
+				if (p < pattern.length
+						&& (pattern[p] == ONE || pattern[p] == value.charAt(v))) {
+					p++;
+					v++;
+				} else if (p < pattern.length && pattern[p] == ANY) {
+					star = p++;
+					resume = v;
+				} else if (star >= 0) {
+					p = star + 1;
+					v = ++resume;
+				} else {
+					return false;
+				}
+			}
+			while (p < pattern.length && pattern[p] == ANY) {
+				p++;
+			}
+			return p == pattern.length;
+		}
+	}
+
+	private static class Simple extends Attribute {
+		final String name;
+
+		Simple(String name) {
+			this.name = name;
+		}
+
+		@Override
+		boolean matches(Instance instance, Values values) {
+			return values.contains(value(instance));
+		}
+
+		String value(Instance instance) {
+			if ("instance-id".equals(name)) {
+				return instance.getInstanceId();
+			} else if ("instance-state-name".equals(name)) {
+				return instance.getState() != null ? instance.getState()
+						.getName() : null;
+			} else if ("instance-type".equals(name)) {
+				return instance.getInstanceType();
+			} else if ("image-id".equals(name)) {
+				return instance.getImageId();
+			} else if ("availability-zone".equals(name)) {
+				return instance.getPlacement() != null ? instance
+						.getPlacement().getAvailabilityZone() : null;
+			} else if ("vpc-id".equals(name)) {
+				return instance.getVpcId();
+			} else if ("subnet-id".equals(name)) {
+				return instance.getSubnetId();
+			} else {
+				return instance.getPrivateIpAddress();
+			}
+		}
+	}
+
+	private static class TagAttribute extends Attribute {
+		final String key;
+		final boolean matchKey;
+		final boolean matchValue;
+
+		TagAttribute(String key, boolean matchKey, boolean matchValue) {
+			this.key = key;
+			this.matchKey = matchKey;
+			this.matchValue = matchValue;
+		}
+
+		@Override
+		boolean matches(Instance instance, Values values) {
+			List<Tag> tags = instance.getTags();
+			if (tags == null) {
+				return false;
+			}
+			for (Tag tag : tags) {
+				if (key != null) {
+					if (key.equals(tag.getKey())
+							&& values.contains(tag.getValue())) {
+						return true;
+					}
+				} else if ((matchKey && values.contains(tag.getKey()))
+						|| (matchValue && values.contains(tag.getValue()))) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static final Set<String> SIMPLE_NAMES = new HashSet<String>();
+	static {
+		SIMPLE_NAMES.add("instance-id");
+		SIMPLE_NAMES.add("instance-state-name");
+		SIMPLE_NAMES.add("instance-type");
+		SIMPLE_NAMES.add("image-id");
+		SIMPLE_NAMES.add("availability-zone");
+		SIMPLE_NAMES.add("vpc-id");
+		SIMPLE_NAMES.add("subnet-id");
+		SIMPLE_NAMES.add("private-ip-address");
+	}
+
+	/**
+	 * Returns true if the filter can be evaluated on the client.
+	 */
+	public static boolean isSupported(Filter filter) {
+		String name = filter.getName();
+		return name != null
+				&& (SIMPLE_NAMES.contains(name) || name.startsWith("tag:")
+						|| "tag-key".equals(name) || "tag-value".equals(name));
+	}
+
+	/**
+	 * Returns true if every filter can be evaluated on the client.
+	 */
+	public static boolean isSupported(List<Filter> filters) {
+		for (Filter filter : filters) {
+			if (!isSupported(filter)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compiles the filters into a predicate.
+	 *
+	 * @throws IllegalArgumentException
+	 *           if any of the filters cannot be evaluated on the client.
+	 */
+	public static FilterPredicate compile(List<Filter> filters) {
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		List<Values> values = new ArrayList<Values>();
+		for (Filter filter : filters) {
+			if (!isSupported(filter)) {
+				throw new IllegalArgumentException(String.format(
+						"filter %s cannot be evaluated on the client",
+						filter.getName()));
+			}
+			String name = filter.getName();
+			if (name.startsWith("tag:")) {
+				attributes.add(new TagAttribute(name.substring(4), false, false));
+			} else if ("tag-key".equals(name)) {
+				attributes.add(new TagAttribute(null, true, false));
+			} else if ("tag-value".equals(name)) {
+				attributes.add(new TagAttribute(null, false, true));
+			} else {
+				attributes.add(new Simple(name));
+			}
+			values.add(new Values(filter.getValues()));
+		}
+		return new FilterPredicate(attributes, values);
+	}
+
+	private final Attribute[] attributes;
+	private final Values[] values;
+
+	private FilterPredicate(List<Attribute> attributes, List<Values> values) {
+		this.attributes = attributes.toArray(new Attribute[attributes.size()]);
+		this.values = values.toArray(new Values[values.size()]);
+	}
+
+	/**
+	 * Returns true if the instance matches every filter.
+	 */
+	public boolean matches(Instance instance) {
+		for (int i = 0; i < attributes.length; i++) {
+			if (!attributes[i].matches(instance, values[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
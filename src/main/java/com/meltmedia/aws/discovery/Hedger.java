@@ -0,0 +1,212 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.meltmedia.aws.discovery.DiscoveryMetrics.Operation;
+
+/**
+ * Sends a second copy of a call that is slower than usual, and takes whichever
+ * copy succeeds first.
+ *
+ * A call is hedged once it has run for the hedge delay. When a percentile is
+ * set, the delay is that percentile of the latencies seen for the operation,
+ * once enough calls have been seen, with the fixed delay used until then. At
+ * most `maxHedges` copies are in flight at once across all calls, so a slow
+ * EC2 endpoint does not double the request rate.
+ */
+class Hedger {
+	/**
+	 * The calls seen before the percentile is trusted.
+	 */
+	static final int MIN_SAMPLES = 20;
+
+	/**
+	 * How often the percentile is read from the histogram, in calls.
+	 */
+	private static final int RECALCULATE_EVERY = 16;
+
+	private static class Threshold {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong samples = new AtomicLong();
+		volatile long percentileNanos;
+	}
+
+	private final long delayNanos;
+	private final double percentile;
+	private final Semaphore permits;
+	private final Executor executor;
+	private final DiscoveryMetrics metrics;
+	private final Map<Operation, Threshold> thresholds = new EnumMap<Operation, Threshold>(
+			Operation.class);
+
+	/**
+	 * @param delayNanos
+	 *          the hedge delay, or the delay used until the percentile is
+	 *          known.
+	 * @param percentile
+	 *          the percentile of observed latency to hedge at, zero to always
+	 *          use the fixed delay.
+	 * @param maxHedges
+	 *          the most copies in flight at once.
+	 * @param executor
+	 *          runs both copies of a hedged call.
+	 */
+	Hedger(long delayNanos, double percentile, int maxHedges,
+			Executor executor, DiscoveryMetrics metrics) {
+		if (delayNanos <= 0) {
+			throw new IllegalArgumentException("the hedge delay must be positive");
+		}
+		if (percentile < 0 || percentile >= 100) {
+			throw new IllegalArgumentException(
+					"the hedge percentile must be at least zero and less than 100");
+		}
+		if (maxHedges < 1) {
+			throw new IllegalArgumentException(
+					"at least one hedge must be allowed in flight");
+		}
+		this.delayNanos = delayNanos;
+		this.percentile = percentile;
+		this.permits = new Semaphore(maxHedges);
+		this.executor = executor;
+		this.metrics = metrics;
+		for (Operation operation : Operation.values()) {
+			thresholds.put(operation, new Threshold());
+		}
+	}
+
+	/**
+	 * Makes the call, hedging it if it is slow.
+	 *
+	 * @throws DiscoveryException
+	 *           if the thread is interrupted while waiting.
+	 */
+	<T> T call(Operation operation, Callable<T> call) {
+		AsyncCall<T> primary = AsyncCall.submit(timed(operation, call), executor);
+		AsyncCall<T> hedge = null;
+		try {
+			try {
+				return primary.get(threshold(operation), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// slower than usual, hedge if there is room.
+			}
+			if (!permits.tryAcquire()) {
+				return primary.get();
+			}
+			hedge = hedge(operation, call);
+			return first(operation, primary, hedge);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DiscoveryException("interrupted while waiting for EC2", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new DiscoveryException("call to EC2 failed", cause);
+		} finally {
+			primary.cancel(true);
+			if (hedge != null) {
+				hedge.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @return the current hedge delay for the operation.
+	 */
+	long threshold(Operation operation) {
+		long nanos = percentile > 0 ? thresholds.get(operation).percentileNanos
+				: 0;
+		return nanos > 0 ? nanos : delayNanos;
+	}
+
+	/**
+	 * Sends the hedge, which holds its permit until its request is done.
+	 * Cancelling the hedge does not stop a request already sent, so the permit
+	 * is only given back early when the hedge never started.
+	 */
+	private <T> AsyncCall<T> hedge(Operation operation, Callable<T> call) {
+		final Callable<T> timed = timed(operation, call);
+		final AtomicBoolean claimed = new AtomicBoolean();
+		AsyncCall<T> hedge = AsyncCall.submit(() -> {
+			if (!claimed.compareAndSet(false, true)) {
+				return null;
+			}
+			try {
+				return timed.call();
+			} finally {
+				permits.release();
+			}
+		}, executor);
+		hedge.whenComplete((value, failure) -> {
+			if (claimed.compareAndSet(false, true)) {
+				permits.release();
+			}
+		});
+		return hedge;
+	}
+
+	/**
+	 * Waits for the first copy to succeed, or for both to fail.
+	 */
+	private <T> T first(Operation operation, AsyncCall<T> primary,
+			final AsyncCall<T> hedge) throws InterruptedException,
+			ExecutionException {
+		final CompletableFuture<T> winner = new CompletableFuture<T>();
+		final AtomicInteger remaining = new AtomicInteger(2);
+		final AtomicReference<AsyncCall<T>> first = new AtomicReference<AsyncCall<T>>();
+		for (final AsyncCall<T> copy : Arrays.asList(primary, hedge)) {
+			copy.whenComplete((value, failure) -> {
+				if (failure == null) {
+					if (first.compareAndSet(null, copy)) {
+						winner.complete(value);
+					}
+				} else if (remaining.decrementAndGet() == 0) {
+					winner.completeExceptionally(failure);
+				}
+			});
+		}
+		try {
+			return winner.get();
+		} finally {
+			metrics.recordHedge(operation, first.get() == hedge);
+		}
+	}
+
+	private <T> Callable<T> timed(final Operation operation,
+			final Callable<T> call) {
+		return () -> {
+			long start = System.nanoTime();
+			T value = call.call();
+			record(operation, System.nanoTime() - start);
+			return value;
+		};
+	}
+
+	private void record(Operation operation, long nanos) {
+		Threshold threshold = thresholds.get(operation);
+		threshold.latency.record(nanos);
+		long samples = threshold.samples.incrementAndGet();
+		if (percentile > 0 && samples >= MIN_SAMPLES
+				&& (samples == MIN_SAMPLES || samples % RECALCULATE_EVERY == 0)) {
+			threshold.percentileNanos = threshold.latency.snapshot()
+					.getValueAtPercentile(percentile);
+		}
+	}
+}
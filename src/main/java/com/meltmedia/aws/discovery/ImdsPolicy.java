@@ -0,0 +1,22 @@
+package com.meltmedia.aws.discovery;
+
+/**
+ * Which version of the instance metadata service protocol the
+ * InstanceInspector speaks.
+ */
+public enum ImdsPolicy {
+	/**
+	 * Plain GET requests, without a session token.
+	 */
+	V1_ONLY,
+	/**
+	 * Session tokens when the metadata service hands them out, plain GET
+	 * requests when the token request fails.
+	 */
+	V2_PREFERRED,
+	/**
+	 * Session tokens only. Inspection fails if no token can be obtained, as it
+	 * should on instances that require IMDSv2.
+	 */
+	V2_REQUIRED
+}
@@ -0,0 +1,218 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps discovery metrics in memory, with a latency histogram and counters
+ * for each operation. Take a `snapshot()` to read them.
+ */
+public class InMemoryDiscoveryMetrics implements DiscoveryMetrics {
+
+	/**
+	 * A point in time copy of the metrics.
+	 */
+	public static class Snapshot {
+		private final Map<Operation, OperationSnapshot> operations;
+		private final int members;
+		private final long refreshes;
+		private final long sinceLastRefreshNanos;
+
+		Snapshot(Map<Operation, OperationSnapshot> operations, int members,
+				long refreshes, long sinceLastRefreshNanos) {
+			this.operations = operations;
+			this.members = members;
+			this.refreshes = refreshes;
+			this.sinceLastRefreshNanos = sinceLastRefreshNanos;
+		}
+
+		/**
+		 * @return the latencies of the calls made for the operation.
+		 */
+		public LatencyHistogram.Snapshot getLatency(Operation operation) {
+			return operations.get(operation).latency;
+		}
+
+		/**
+		 * @return the number of calls made for the operation.
+		 */
+		public long getCalls(Operation operation) {
+			return operations.get(operation).latency.getCount();
+		}
+
+		/**
+		 * @return the number of calls for the operation that failed.
+		 */
+		public long getFailures(Operation operation) {
+			return operations.get(operation).failures;
+		}
+
+		/**
+		 * @return the number of calls for the operation that EC2 throttled.
+		 */
+		public long getThrottles(Operation operation) {
+			return operations.get(operation).throttles;
+		}
+
+		/**
+		 * @return the number of calls for the operation that failed for a
+		 *         reason other than throttling.
+		 */
+		public long getFaults(Operation operation) {
+			return operations.get(operation).faults;
+		}
+
+		/**
+		 * @return the number of calls for the operation that were hedged.
+		 */
+		public long getHedges(Operation operation) {
+			return operations.get(operation).hedges;
+		}
+
+		/**
+		 * @return the number of hedged calls for the operation where the
+		 *         second copy finished first.
+		 */
+		public long getHedgeWins(Operation operation) {
+			return operations.get(operation).hedgeWins;
+		}
+
+		/**
+		 * @return the number of members found by the last refresh.
+		 */
+		public int getMembers() {
+			return members;
+		}
+
+		/**
+		 * @return the number of successful refreshes.
+		 */
+		public long getRefreshes() {
+			return refreshes;
+		}
+
+		/**
+		 * @return the time since the last successful refresh, or -1 if there
+		 *         has not been one.
+		 */
+		public long getTimeSinceLastRefresh(TimeUnit unit) {
+			return sinceLastRefreshNanos < 0 ? -1 : unit.convert(
+					sinceLastRefreshNanos, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			for (Map.Entry<Operation, OperationSnapshot> entry : operations
+					.entrySet()) {
+				OperationSnapshot operation = entry.getValue();
+				builder.append(entry.getKey()).append(": ")
+						.append(operation.latency).append(", failures=")
+						.append(operation.failures).append(", throttles=")
+						.append(operation.throttles).append(", faults=")
+						.append(operation.faults).append(", hedges=")
+						.append(operation.hedges).append(", hedgeWins=")
+						.append(operation.hedgeWins).append("\n");
+			}
+			return builder.append("members=").append(members)
+					.append(", refreshes=").append(refreshes)
+					.append(", sinceLastRefreshMs=")
+					.append(getTimeSinceLastRefresh(TimeUnit.MILLISECONDS))
+					.toString();
+		}
+	}
+
+	static class OperationSnapshot {
+		final LatencyHistogram.Snapshot latency;
+		final long failures;
+		final long throttles;
+		final long faults;
+		final long hedges;
+		final long hedgeWins;
+
+		OperationSnapshot(LatencyHistogram.Snapshot latency, long failures,
+				long throttles, long faults, long hedges, long hedgeWins) {
+			this.latency = latency;
+			this.failures = failures;
+			this.throttles = throttles;
+			this.faults = faults;
+			this.hedges = hedges;
+			this.hedgeWins = hedgeWins;
+		}
+	}
+
+	private static class OperationMetrics {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong failures = new AtomicLong();
+		final AtomicLong throttles = new AtomicLong();
+		final AtomicLong faults = new AtomicLong();
+		final AtomicLong hedges = new AtomicLong();
+		final AtomicLong hedgeWins = new AtomicLong();
+	}
+
+	private final Map<Operation, OperationMetrics> operations = new EnumMap<Operation, OperationMetrics>(
+			Operation.class);
+	private final AtomicLong refreshes = new AtomicLong();
+	private volatile int members;
+	private volatile long lastRefreshNanos;
+
+	public InMemoryDiscoveryMetrics() {
+		for (Operation operation : Operation.values()) {
+			operations.put(operation, new OperationMetrics());
+		}
+	}
+
+	@Override
+	public void recordCall(Operation operation, long latencyNanos,
+			boolean success) {
+		OperationMetrics metrics = operations.get(operation);
+		metrics.latency.record(latencyNanos);
+		if (!success) {
+			metrics.failures.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void recordThrottle(Operation operation) {
+		operations.get(operation).throttles.incrementAndGet();
+	}
+
+	@Override
+	public void recordFault(Operation operation, String errorCode) {
+		operations.get(operation).faults.incrementAndGet();
+	}
+
+	@Override
+	public void recordHedge(Operation operation, boolean won) {
+		OperationMetrics metrics = operations.get(operation);
+		metrics.hedges.incrementAndGet();
+		if (won) {
+			metrics.hedgeWins.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void recordRefresh(int members) {
+		this.members = members;
+		this.lastRefreshNanos = System.nanoTime();
+		refreshes.incrementAndGet();
+	}
+
+	public Snapshot snapshot() {
+		Map<Operation, OperationSnapshot> copy = new EnumMap<Operation, OperationSnapshot>(
+				Operation.class);
+		for (Map.Entry<Operation, OperationMetrics> entry : operations
+				.entrySet()) {
+			OperationMetrics metrics = entry.getValue();
+			copy.put(entry.getKey(), new OperationSnapshot(
+					metrics.latency.snapshot(), metrics.failures.get(),
+					metrics.throttles.get(), metrics.faults.get(),
+					metrics.hedges.get(), metrics.hedgeWins.get()));
+		}
+		long count = refreshes.get();
+		return new Snapshot(copy, members, count, count == 0 ? -1
+				: System.nanoTime() - lastRefreshNanos);
+	}
+}
@@ -1,22 +1,68 @@
 package com.meltmedia.aws.discovery;
 
+import java.io.Closeable;
 import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.http.client.HttpClient;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import com.meltmedia.aws.discovery.DiscoveryMetrics.Operation;
 
 /**
  * Looks up the instance details from the instance metadata found at `http://169.254.169.254/`.
+ * 
+ * The metadata paths are fetched concurrently over a pooled HTTP client that
+ * is reused between inspections. Each request has connect and read timeouts,
+ * and the whole inspection has a deadline, so inspecting off of EC2 fails fast
+ * instead of hanging. Close the inspector to release its connections and
+ * threads, or use `inspectOnce()` for a single lookup:
+ * 
+ * ```
+ * InstanceDetails details = InstanceInspector.inspectOnce();
+ * 
+ * try (InstanceInspector inspector = InstanceInspector.builder()
+ *     .withDeadline(2, TimeUnit.SECONDS).build()) {
+ *   details = inspector.inspect();
+ * }
+ * ```
+ * 
+ * By default the inspector asks for an IMDSv2 session token and sends it with
+ * each request, falling back to plain IMDSv1 requests when no token is handed
+ * out. The token is cached and replaced before it expires, so repeated
+ * inspections do not pay for a token request each time. Falling back to
+ * IMDSv1 is only remembered for a few seconds, and a request refused without
+ * a token asks for one again. See `ImdsPolicy`.
  *
  * @author Christian Trimble
  */
-public class InstanceInspector {
+public class InstanceInspector implements Closeable {
 	private static final String DEFAULT_BASE_URI = "http://169.254.169.254/";
 	private static final String GET_INSTANCE_ID_PATH = "./latest/meta-data/instance-id";
 	private static final String GET_AVAILABILITY_ZONE_PATH = "./latest/meta-data/placement/availability-zone";
+	private static final String PUT_TOKEN_PATH = "./latest/api/token";
+	static final String TOKEN_HEADER = "X-aws-ec2-metadata-token";
+	static final String TOKEN_TTL_HEADER = "X-aws-ec2-metadata-token-ttl-seconds";
+	private static final long V1_FALLBACK_NANOS = TimeUnit.SECONDS.toNanos(10);
 	
 	public static class Builder {
 		private URI baseUri = URI.create(DEFAULT_BASE_URI);
+		private long connectTimeoutMillis = 1000;
+		private long readTimeoutMillis = 2000;
+		private long deadlineNanos = TimeUnit.SECONDS.toNanos(5);
+		private ImdsPolicy imdsPolicy = ImdsPolicy.V2_PREFERRED;
+		private long tokenTtlSeconds = TimeUnit.HOURS.toSeconds(6);
+		private DiscoveryMetrics metrics = DiscoveryMetrics.NONE;
+		private ExecutorService executor;
 		
 		public Builder withBaseUri( URI baseUri ) {
 			if( baseUri != null ) {
@@ -27,55 +73,218 @@ public class InstanceInspector {
 			}
 			return this;
 		}
+
+		/**
+		 * The time allowed to connect to the metadata service. Defaults to one
+		 * second.
+		 */
+		public Builder withConnectTimeout( long timeout, TimeUnit unit ) {
+			this.connectTimeoutMillis = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * The time allowed between bytes of a metadata response. Defaults to
+		 * two seconds.
+		 */
+		public Builder withReadTimeout( long timeout, TimeUnit unit ) {
+			this.readTimeoutMillis = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * The time allowed for a whole inspection. Defaults to five seconds.
+		 */
+		public Builder withDeadline( long deadline, TimeUnit unit ) {
+			this.deadlineNanos = unit.toNanos(deadline);
+			return this;
+		}
+		
+		/**
+		 * Which metadata service protocol to speak. Defaults to
+		 * V2_PREFERRED.
+		 */
+		public Builder withImdsPolicy( ImdsPolicy imdsPolicy ) {
+			this.imdsPolicy = imdsPolicy;
+			return this;
+		}
+
+		/**
+		 * How long IMDSv2 session tokens live, between one second and six
+		 * hours. Defaults to six hours.
+		 */
+		public Builder withTokenTtl( long ttl, TimeUnit unit ) {
+			long seconds = unit.toSeconds(ttl);
+			if( seconds < 1 || seconds > TimeUnit.HOURS.toSeconds(6) ) {
+				throw new IllegalArgumentException("the token ttl must be between one second and six hours");
+			}
+			this.tokenTtlSeconds = seconds;
+			return this;
+		}
+		
+		/**
+		 * Records the latency of every metadata request. Defaults to no
+		 * metrics.
+		 */
+		public Builder withMetrics( DiscoveryMetrics metrics ) {
+			this.metrics = metrics != null ? metrics : DiscoveryMetrics.NONE;
+			return this;
+		}
+		
+		/**
+		 * The executor that fetches the metadata paths. A supplied executor is
+		 * not shut down when the inspector is closed. Defaults to a virtual
+		 * thread per request on JDKs that have them, otherwise a cached pool
+		 * of daemon threads owned by the inspector.
+		 */
+		public Builder withExecutor( ExecutorService executor ) {
+			this.executor = executor;
+			return this;
+		}
 		
-		InstanceInspector build() {
+		public InstanceInspector build() {
 			URI instanceMetadataUri = baseUri.resolve(GET_INSTANCE_ID_PATH);
 			URI availabilityZoneUri = baseUri.resolve(GET_AVAILABILITY_ZONE_PATH);
 			
-			return new InstanceInspector(instanceMetadataUri, availabilityZoneUri);
+			InstanceInspector inspector = new InstanceInspector(instanceMetadataUri, availabilityZoneUri,
+					connectTimeoutMillis, readTimeoutMillis, deadlineNanos, executor);
+			inspector.tokenUri = baseUri.resolve(PUT_TOKEN_PATH);
+			inspector.imdsPolicy = imdsPolicy;
+			inspector.tokenTtlSeconds = tokenTtlSeconds;
+			inspector.metrics = metrics;
+			return inspector;
 		}
 	}
 
 	private URI instanceMetadataUri;
 	private URI availabilityZoneUri;
+	private long deadlineNanos;
+	private PoolingClientConnectionManager connectionManager;
+	private HttpClient client;
+	private ExecutorService executor;
+	private boolean ownsExecutor;
+	private URI tokenUri;
+	private ImdsPolicy imdsPolicy = ImdsPolicy.V1_ONLY;
+	private long tokenTtlSeconds;
+	private DiscoveryMetrics metrics = DiscoveryMetrics.NONE;
+
+	/**
+	 * The cached session token, null when IMDSv1 is used.
+	 */
+	private String token;
+
+	/**
+	 * When the token, or the decision to fall back to IMDSv1, is next
+	 * reconsidered.
+	 */
+	private long tokenRefreshAt;
+	private boolean tokenChecked = false;
 	
 	protected InstanceInspector(URI instanceMetadataUri, URI availabilityZoneUri) {
+		this(instanceMetadataUri, availabilityZoneUri, 1000, 2000, TimeUnit.SECONDS.toNanos(5));
+	}
+
+	protected InstanceInspector(URI instanceMetadataUri, URI availabilityZoneUri,
+			long connectTimeoutMillis, long readTimeoutMillis, long deadlineNanos) {
+		this(instanceMetadataUri, availabilityZoneUri, connectTimeoutMillis, readTimeoutMillis, deadlineNanos, null);
+	}
+
+	InstanceInspector(URI instanceMetadataUri, URI availabilityZoneUri,
+			long connectTimeoutMillis, long readTimeoutMillis, long deadlineNanos, ExecutorService executor) {
 		this.instanceMetadataUri = instanceMetadataUri;
 		this.availabilityZoneUri = availabilityZoneUri;
+		this.deadlineNanos = deadlineNanos;
+
+		connectionManager = new PoolingClientConnectionManager();
+		connectionManager.setDefaultMaxPerRoute(4);
+		client = new DefaultHttpClient(connectionManager);
+		HttpParams params = client.getParams();
+		HttpConnectionParams.setConnectionTimeout(params, (int) connectTimeoutMillis);
+		HttpConnectionParams.setSoTimeout(params, (int) readTimeoutMillis);
+
+		if( executor != null ) {
+			this.executor = executor;
+		}
+		else {
+			this.executor = AsyncCall.newDefaultExecutor("aws-auto-discovery-inspector");
+			this.ownsExecutor = true;
+		}
 	}
 
 	public static Builder builder() {
 		return new Builder();
 	}
 	
+	/**
+	 * Builds an inspector with the defaults. The caller owns it and must
+	 * close it.
+	 */
 	public static InstanceInspector build() {
 		return builder().build();
 	}
+
+	/**
+	 * Looks up the instance details with an inspector built with the
+	 * defaults, which is closed before returning.
+	 */
+	public static InstanceDetails inspectOnce() throws InspectionException {
+		InstanceInspector inspector = build();
+		try {
+			return inspector.inspect();
+		}
+		finally {
+			inspector.close();
+		}
+	}
 	
 	public InstanceDetails inspect() throws InspectionException {
-		InstanceDetails env = new InstanceDetails();
+		long deadline = System.nanoTime() + deadlineNanos;
+
 		// get the instance id and availability zone.
-		HttpClient client = null;
+		Future<String> instanceId = executor.submit(get(instanceMetadataUri));
+		Future<String> availabilityZone = executor.submit(get(availabilityZoneUri));
+
 		try {
-			client = new DefaultHttpClient();
-			try {
-			  env.setInstanceId(Requests.getBody(client, instanceMetadataUri));
-			}
-			catch( Exception e ) {
-				throw new InspectionException("Could not retrieve instance id.", e);
-			}
-			try {
-			  env.setAvailabilityZone(Requests.getBody(client, availabilityZoneUri));
-			}
-			catch( Exception e ) {
-				throw new InspectionException("Could not retrieve availability zone.", e);
-			}
+			return details(
+					await(instanceId, deadline, "Could not retrieve instance id."),
+					await(availabilityZone, deadline, "Could not retrieve availability zone."));
 		}
-        finally {
-			if (client != null) {
-				client.getConnectionManager().shutdown();
-			}
+		finally {
+			instanceId.cancel(true);
+			availabilityZone.cancel(true);
 		}
+	}
+
+	/**
+	 * Looks up the instance details without blocking the caller. The future
+	 * fails with an `InspectionException` if a path cannot be fetched before
+	 * the inspection deadline, and cancelling it interrupts the fetches.
+	 */
+	public CompletableFuture<InstanceDetails> inspectAsync() {
+		AsyncCall<String> instanceId = AsyncCall.submit(get(instanceMetadataUri), executor)
+				.withDeadline(deadlineNanos, TimeUnit.NANOSECONDS);
+		AsyncCall<String> availabilityZone = AsyncCall.submit(get(availabilityZoneUri), executor)
+				.withDeadline(deadlineNanos, TimeUnit.NANOSECONDS);
+
+		return AsyncCall.cancelWhenDone(
+				inspection(instanceId, "Could not retrieve instance id.")
+						.thenCombine(inspection(availabilityZone, "Could not retrieve availability zone."),
+								InstanceInspector::details),
+				instanceId, availabilityZone);
+	}
+
+	@Override
+	public void close() {
+		if( ownsExecutor ) {
+			executor.shutdownNow();
+		}
+		connectionManager.shutdown();
+	}
+
+	private static InstanceDetails details(String instanceId, String availabilityZone) {
+		InstanceDetails env = new InstanceDetails();
+		env.setInstanceId(instanceId);
+		env.setAvailabilityZone(availabilityZone);
 
 		// compute the EC2 endpoint based on the availability zone.
 		env.setEndpoint("ec2."
@@ -84,4 +293,117 @@ public class InstanceInspector {
 
 		return env;
 	}
+
+	/**
+	 * Fails with the same exceptions that inspect() throws.
+	 */
+	private static CompletableFuture<String> inspection(CompletableFuture<String> fetch, final String message) {
+		return fetch.handle((body, failure) -> {
+			if( failure == null ) {
+				return body;
+			}
+			Throwable cause = AsyncCall.cause(failure);
+			if( cause instanceof TimeoutException ) {
+				throw new InspectionException(message + " The inspection deadline passed.", cause);
+			}
+			throw new InspectionException(message, cause);
+		});
+	}
+
+	private Callable<String> get(final URI uri) {
+		return new Callable<String>() {
+			@Override
+			public String call() {
+				long start = System.nanoTime();
+				DiscoveryEvents.Fetch recording = DiscoveryEvents.beginFetch(uri);
+				boolean success = false;
+				try {
+					String body = fetch(uri);
+					success = true;
+					return body;
+				}
+				finally {
+					metrics.recordCall(Operation.IMDS, System.nanoTime() - start, success);
+					recording.end(success);
+				}
+			}
+		};
+	}
+
+	private String fetch(URI uri) {
+		String current = token();
+		try {
+			return current == null ? Requests.getBody(client, uri)
+					: Requests.getBody(client, uri, TOKEN_HEADER, current);
+		}
+		catch( InvalidResponse e ) {
+			// the token was rejected, or the service requires one now, get a new one and try again.
+			if( e.getResponse().getStatusLine().getStatusCode() != 401 || imdsPolicy == ImdsPolicy.V1_ONLY ) {
+				throw e;
+			}
+			expireToken(current);
+			String renewed = token();
+			if( renewed == null ) {
+				if( current == null ) {
+					throw e;
+				}
+				return Requests.getBody(client, uri);
+			}
+			return Requests.getBody(client, uri, TOKEN_HEADER, renewed);
+		}
+	}
+
+	/**
+	 * Returns the session token to send with metadata requests, requesting a
+	 * new one when the cached token is past 80% of its TTL. Without a token,
+	 * one is asked for again after a few seconds.
+	 * 
+	 * @return the token, or null if IMDSv1 requests should be sent.
+	 * @throws InspectionException
+	 *           if the policy requires a token and none could be obtained.
+	 */
+	synchronized String token() {
+		if( imdsPolicy == ImdsPolicy.V1_ONLY ) {
+			return null;
+		}
+		long now = System.nanoTime();
+		if( tokenChecked && now - tokenRefreshAt < 0 ) {
+			return token;
+		}
+		try {
+			token = Requests.putBody(client, tokenUri, TOKEN_TTL_HEADER, String.valueOf(tokenTtlSeconds));
+		}
+		catch( InspectionException e ) {
+			if( imdsPolicy == ImdsPolicy.V2_REQUIRED ) {
+				throw new InspectionException("Could not retrieve a metadata session token.", e);
+			}
+			token = null;
+		}
+		tokenChecked = true;
+		tokenRefreshAt = now + (token != null ? TimeUnit.SECONDS.toNanos(tokenTtlSeconds) * 4 / 5
+				: Math.min(V1_FALLBACK_NANOS, TimeUnit.SECONDS.toNanos(tokenTtlSeconds)));
+		return token;
+	}
+
+	private synchronized void expireToken(String rejected) {
+		if( rejected == null ? token == null : rejected.equals(token) ) {
+			tokenChecked = false;
+		}
+	}
+
+	private static String await(Future<String> future, long deadline, String message) {
+		try {
+			return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		}
+		catch( TimeoutException e ) {
+			throw new InspectionException(message + " The inspection deadline passed.", e);
+		}
+		catch( ExecutionException e ) {
+			throw new InspectionException(message, e.getCause());
+		}
+		catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new InspectionException(message, e);
+		}
+	}
 }
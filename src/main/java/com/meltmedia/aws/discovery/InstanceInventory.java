@@ -0,0 +1,228 @@
+package com.meltmedia.aws.discovery;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+
+/**
+ * A periodically refreshed copy of the instances in a region, that any number
+ * of discovery components can select their members from without calling EC2.
+ *
+ * The inventory is loaded through a started source component, with its
+ * client, rate limit and metrics, and holds every instance in the source's
+ * region. The source must not have filters or tag names, which would narrow
+ * the inventory below what the components expect, and the components must use
+ * the source's endpoint and credentials.
+ * Components configured with `withInventory` compile their filters with
+ * `FilterPredicate` and evaluate them against the inventory, so a query takes
+ * microseconds instead of a round trip, and adding another filtered view adds
+ * no API calls.
+ *
+ * ```
+ * AwsAutoDiscovery account = AwsAutoDiscovery.builder().build().start();
+ * InstanceInventory inventory = InstanceInventory.builder(account)
+ *   .withRefreshInterval(30, TimeUnit.SECONDS)
+ *   .build()
+ *   .start();
+ * AwsAutoDiscovery web = AwsAutoDiscovery.builder()
+ *   .withFilters(Parsers.filters("tag:role=web*"))
+ *   .withInventory(inventory)
+ *   .build()
+ *   .start();
+ * ```
+ *
+ * Members are only as fresh as the last refresh. An inventory that has not
+ * been refreshed for two intervals, because the refreshes failed, is loaded
+ * again on the next use.
+ */
+public class InstanceInventory implements Closeable {
+
+	public static class Builder {
+		protected AwsAutoDiscovery source;
+		protected long refreshIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+		protected ScheduledExecutorService scheduler;
+
+		Builder(AwsAutoDiscovery source) {
+			this.source = source;
+		}
+
+		/**
+		 * How often the instances are loaded again. Defaults to 30 seconds.
+		 */
+		public Builder withRefreshInterval(long interval, TimeUnit unit) {
+			this.refreshIntervalNanos = unit.toNanos(interval);
+			return this;
+		}
+
+		/**
+		 * The scheduler that runs the refreshes. The inventory creates its own
+		 * daemon thread if none is given.
+		 */
+		public Builder withScheduler(ScheduledExecutorService scheduler) {
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		public InstanceInventory build() {
+			if (source == null) {
+				throw new IllegalArgumentException("a source component is required");
+			}
+			if (!source.memberFilters().isEmpty() || source.hasTagNames()) {
+				throw new IllegalArgumentException(
+						"the source component must not have filters or tag names");
+			}
+			if (refreshIntervalNanos <= 0) {
+				throw new IllegalArgumentException(
+						"the refresh interval must be positive");
+			}
+			return new InstanceInventory(this);
+		}
+	}
+
+	/**
+	 * @param source
+	 *          the started component the inventory is loaded through.
+	 */
+	public static Builder builder(AwsAutoDiscovery source) {
+		return new Builder(source);
+	}
+
+	private final AwsAutoDiscovery source;
+	private final long refreshIntervalNanos;
+	private final MembershipCache<List<Instance>> cache;
+	private ScheduledExecutorService scheduler;
+	private boolean ownsScheduler;
+
+	protected InstanceInventory(Builder builder) {
+		this.source = builder.source;
+		this.refreshIntervalNanos = builder.refreshIntervalNanos;
+		this.scheduler = builder.scheduler;
+		this.cache = new MembershipCache<List<Instance>>(
+				new Callable<List<Instance>>() {
+					@Override
+					public List<Instance> call() {
+						return load();
+					}
+				}, refreshIntervalNanos * 2, 0, TimeUnit.NANOSECONDS, null);
+	}
+
+	/**
+	 * @return the component the inventory is loaded through.
+	 */
+	AwsAutoDiscovery getSource() {
+		return source;
+	}
+
+	/**
+	 * Schedules the refreshes. The instances are loaded on first use.
+	 *
+	 * @return this instance for chaining
+	 */
+	public InstanceInventory start() {
+		if (scheduler == null) {
+			ownsScheduler = true;
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+							"aws-auto-discovery-inventory"));
+		}
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					cache.refresh();
+				} catch (Exception e) {
+					// keep the last instances, the fault listener has already
+					// been told about AWS faults.
+				}
+			}
+		}, refreshIntervalNanos, refreshIntervalNanos, TimeUnit.NANOSECONDS);
+		return this;
+	}
+
+	@Override
+	public void close() {
+		if (ownsScheduler && scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * @return every instance in the inventory, loading them if they are
+	 *         missing or too old.
+	 * @throws DiscoveryException
+	 *           if the instances had to be loaded and the load failed.
+	 */
+	public List<Instance> getInstances() {
+		return cache.get();
+	}
+
+	/**
+	 * Loads the instances now, joining a load that is already in flight.
+	 */
+	public List<Instance> refresh() {
+		return cache.refresh();
+	}
+
+	/**
+	 * Selects the members that match the filters.
+	 *
+	 * @throws IllegalArgumentException
+	 *           if any of the filters cannot be evaluated on the client.
+	 */
+	public Membership select(List<Filter> filters) {
+		return select(FilterPredicate.compile(filters));
+	}
+
+	/**
+	 * Selects the members that match the predicate.
+	 */
+	public Membership select(FilterPredicate predicate) {
+		Membership.Builder members = Membership.builder();
+		addMatching(predicate, members);
+		return members.build();
+	}
+
+	/**
+	 * Adds the instances that match the predicate to the members.
+	 */
+	void addMatching(FilterPredicate predicate, Membership.Builder members) {
+		for (Instance instance : getInstances()) {
+			if (predicate.matches(instance)) {
+				members.add(instance);
+			}
+		}
+	}
+
+	/**
+	 * @return the cache counters, where each load is one inventory query.
+	 */
+	public MembershipCache.Stats getStats() {
+		return cache.getStats();
+	}
+
+	private List<Instance> load() {
+		// keep every tag, the components may filter on any of them.
+		DescribeInstancesProjection projection = source.getProjection() != null ? new DescribeInstancesProjection(
+				null) : null;
+		List<Instance> instances = new ArrayList<Instance>();
+		Iterator<Instance> pages = source.pager(
+				source.memberRequest(source.memberFilters()), projection);
+		while (pages.hasNext()) {
+			Instance instance = pages.next();
+			if (instance.getPrivateIpAddress() != null) {
+				instances.add(instance);
+			}
+		}
+		return Collections.unmodifiableList(instances);
+	}
+}
@@ -0,0 +1,121 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.meltmedia.aws.discovery.DiscoveryMetrics.Operation;
+
+/**
+ * Walks the instances returned by a DescribeInstances query, following the
+ * NextToken of each page. Pages are requested lazily, so only one page is held
+ * in memory and the instances of the first page are available before the
+ * later pages are requested.
+ */
+class InstancePager implements Iterator<Instance> {
+
+	/**
+	 * Issues a single DescribeInstances call.
+	 */
+	interface Fetcher {
+		DescribeInstancesResult fetch(DescribeInstancesRequest request);
+	}
+
+	private final Fetcher fetcher;
+	private final DescribeInstancesRequest request;
+	private final Operation operation;
+	private DiscoveryEvents.Query recording;
+	private int instanceCount = 0;
+	private Iterator<Reservation> reservations = Collections
+			.<Reservation> emptyList().iterator();
+	private Iterator<Instance> instances = Collections.<Instance> emptyList()
+			.iterator();
+	private boolean lastPage = false;
+	private int pages = 0;
+
+	/**
+	 * @param fetcher
+	 *          the client used to request each page.
+	 * @param request
+	 *          the request for the first page. Its NextToken is updated as the
+	 *          pages are walked, so it must not be shared.
+	 */
+	InstancePager(Fetcher fetcher, DescribeInstancesRequest request) {
+		this(fetcher, request, Operation.MEMBER_QUERY);
+	}
+
+	/**
+	 * @param operation
+	 *          what the query is for, as recorded in flight recorder events.
+	 */
+	InstancePager(Fetcher fetcher, DescribeInstancesRequest request,
+			Operation operation) {
+		this.fetcher = fetcher;
+		this.request = request;
+		this.operation = operation;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!instances.hasNext()) {
+			if (reservations.hasNext()) {
+				instances = reservations.next().getInstances().iterator();
+			} else if (lastPage) {
+				return false;
+			} else {
+				fetchPage();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Instance next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return instances.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return the number of pages requested so far.
+	 */
+	int getPages() {
+		return pages;
+	}
+
+	private void fetchPage() {
+		if (recording == null) {
+			recording = DiscoveryEvents.beginQuery(operation, request
+					.getFilters().size());
+		}
+		DescribeInstancesResult result;
+		try {
+			result = fetcher.fetch(request);
+		} catch (RuntimeException e) {
+			recording.end(pages, instanceCount, false);
+			throw e;
+		}
+		pages++;
+		for (Reservation reservation : result.getReservations()) {
+			instanceCount += reservation.getInstances().size();
+		}
+		reservations = result.getReservations().iterator();
+		String nextToken = result.getNextToken();
+		if (nextToken == null || nextToken.length() == 0) {
+			lastPage = true;
+			recording.end(pages, instanceCount, true);
+		} else {
+			request.setNextToken(nextToken);
+		}
+	}
+}
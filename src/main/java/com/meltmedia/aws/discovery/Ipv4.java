@@ -0,0 +1,60 @@
+package com.meltmedia.aws.discovery;
+
+/**
+ * Packs dotted quad IPv4 addresses into ints and back.
+ */
+class Ipv4 {
+	private Ipv4() {
+	}
+
+	/**
+	 * Packs a dotted quad address into an int, most significant octet first.
+	 *
+	 * @throws IllegalArgumentException
+	 *           if the address is not a dotted quad.
+	 */
+	static int pack(String address) {
+		int result = 0;
+		int octet = 0;
+		int octets = 0;
+		int digits = 0;
+		for (int i = 0; i < address.length(); i++) {
+			char c = address.charAt(i);
+			if (c >= '0' && c <= '9' && digits < 3) {
+				octet = octet * 10 + (c - '0');
+				digits++;
+			} else if (c == '.' && digits > 0 && octets < 3) {
+				result = (result << 8) | checkOctet(octet, address);
+				octets++;
+				octet = 0;
+				digits = 0;
+			} else {
+				throw new IllegalArgumentException(String.format(
+						"%s is not an IPv4 address", address));
+			}
+		}
+		if (octets != 3 || digits == 0) {
+			throw new IllegalArgumentException(String.format(
+					"%s is not an IPv4 address", address));
+		}
+		return (result << 8) | checkOctet(octet, address);
+	}
+
+	/**
+	 * Renders a packed address as a dotted quad.
+	 */
+	static String unpack(int address) {
+		return new StringBuilder(15).append((address >>> 24) & 0xff)
+				.append('.').append((address >>> 16) & 0xff).append('.')
+				.append((address >>> 8) & 0xff).append('.')
+				.append(address & 0xff).toString();
+	}
+
+	private static int checkOctet(int octet, String address) {
+		if (octet > 255) {
+			throw new IllegalArgumentException(String.format(
+					"%s is not an IPv4 address", address));
+		}
+		return octet;
+	}
+}
@@ -0,0 +1,136 @@
+package com.meltmedia.aws.discovery;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import com.meltmedia.aws.discovery.DiscoveryMetrics.Operation;
+
+/**
+ * The flight recorder events. Only referenced through `DiscoveryEvents`, once
+ * it has checked that the JVM includes JFR.
+ */
+final class JfrEvents {
+	static final String CATEGORY = "AWS Auto Discovery";
+
+	private JfrEvents() {
+	}
+
+	@Name("com.meltmedia.aws.discovery.DescribeInstances")
+	@Label("DescribeInstances Query")
+	@Category(CATEGORY)
+	@Description("A DescribeInstances query, from its first page to its last")
+	static class DescribeInstancesEvent extends Event implements
+			DiscoveryEvents.Query {
+		@Label("Operation")
+		String operation;
+
+		@Label("Filters")
+		int filters;
+
+		@Label("Pages")
+		int pages;
+
+		@Label("Instances")
+		int instances;
+
+		@Label("Success")
+		boolean success;
+
+		@Override
+		public void end(int pages, int instances, boolean success) {
+			end();
+			if (shouldCommit()) {
+				this.pages = pages;
+				this.instances = instances;
+				this.success = success;
+				commit();
+			}
+		}
+	}
+
+	@Name("com.meltmedia.aws.discovery.MetadataFetch")
+	@Label("Instance Metadata Fetch")
+	@Category(CATEGORY)
+	@Description("A request to the instance metadata service made by the instance inspector")
+	static class MetadataFetchEvent extends Event implements
+			DiscoveryEvents.Fetch {
+		@Label("Path")
+		String path;
+
+		@Label("Success")
+		boolean success;
+
+		@Override
+		public void end(boolean success) {
+			end();
+			if (shouldCommit()) {
+				this.success = success;
+				commit();
+			}
+		}
+	}
+
+	@Name("com.meltmedia.aws.discovery.Fault")
+	@Label("EC2 Fault")
+	@Category(CATEGORY)
+	@Description("An EC2 call that failed, after the client's retries")
+	static class FaultRecordedEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Error Code")
+		String errorCode;
+
+		@Label("Error Message")
+		String errorMessage;
+
+		@Label("Request Id")
+		String requestId;
+
+		@Label("Status Code")
+		int statusCode;
+
+		@Label("Call Duration")
+		@Timespan(Timespan.NANOSECONDS)
+		long callDuration;
+	}
+
+	static DiscoveryEvents.Query beginQuery(Operation operation, int filters) {
+		DescribeInstancesEvent event = new DescribeInstancesEvent();
+		if (event.isEnabled()) {
+			event.operation = operation.name();
+			event.filters = filters;
+			event.begin();
+		}
+		return event;
+	}
+
+	static DiscoveryEvents.Fetch beginFetch(URI uri) {
+		MetadataFetchEvent event = new MetadataFetchEvent();
+		if (event.isEnabled()) {
+			event.path = uri.getPath();
+			event.begin();
+		}
+		return event;
+	}
+
+	static void fault(FaultEvent fault) {
+		FaultRecordedEvent event = new FaultRecordedEvent();
+		if (event.shouldCommit()) {
+			event.operation = fault.getOperation();
+			event.errorCode = fault.getErrorCode();
+			event.errorMessage = fault.getErrorMessage();
+			event.requestId = fault.getRequestId();
+			event.statusCode = fault.getStatusCode();
+			event.callDuration = fault.getDuration(TimeUnit.NANOSECONDS);
+			event.commit();
+		}
+	}
+}
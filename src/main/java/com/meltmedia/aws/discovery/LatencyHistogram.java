@@ -0,0 +1,154 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in nanoseconds, in the style of
+ * HdrHistogram.
+ *
+ * Values below 128 are counted exactly. Larger values are counted in
+ * log-linear buckets, 64 buckets for each power of two, so any recorded value
+ * is reported within 1.6% of its true value, from nanoseconds up to the
+ * largest long. Recording is a few arithmetic operations and one atomic
+ * increment, and the histogram never allocates after it is created.
+ */
+public class LatencyHistogram {
+	private static final int LINEAR = 128;
+	private static final int SUB_BUCKETS = 64;
+	private static final int BUCKETS = LINEAR + 56 * SUB_BUCKETS;
+
+	/**
+	 * A point in time copy of a histogram.
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long min;
+		private final long max;
+
+		Snapshot(long[] counts, long sum, long min, long max) {
+			long total = 0;
+			for (long bucket : counts) {
+				total += bucket;
+			}
+			this.counts = counts;
+			this.count = total;
+			this.sum = sum;
+			this.min = total == 0 ? 0 : min;
+			this.max = total == 0 ? 0 : max;
+		}
+
+		/**
+		 * @return the number of values recorded.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		public long getMin() {
+			return min;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param percentile
+		 *          the percentile, between 0 and 100.
+		 * @return the smallest recorded value that the percentile of values
+		 *         are less than or equal to, or zero if nothing was recorded.
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile))
+					/ 100 * count);
+			rank = Math.max(1, rank);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.max(min, Math.min(max, highestValue(i)));
+				}
+			}
+			return max;
+		}
+
+		/**
+		 * @return the value at the percentile in the specified unit.
+		 */
+		public double getValueAtPercentile(double percentile, TimeUnit unit) {
+			return (double) getValueAtPercentile(percentile)
+					/ unit.toNanos(1);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"count=%d, min=%d, p50=%d, p99=%d, p99.9=%d, max=%d", count,
+					min, getValueAtPercentile(50), getValueAtPercentile(99),
+					getValueAtPercentile(99.9), max);
+		}
+	}
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * Records a latency. Negative values are recorded as zero.
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(index(value));
+		sum.addAndGet(value);
+		long current;
+		while (value < (current = min.get())
+				&& !min.compareAndSet(current, value)) {
+		}
+		while (value > (current = max.get())
+				&& !max.compareAndSet(current, value)) {
+		}
+	}
+
+	/**
+	 * @return a copy of the counts. Values recorded while the copy is taken
+	 *         may or may not be included.
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+		return new Snapshot(copy, sum.get(), min.get(), max.get());
+	}
+
+	static int index(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+		int mantissa = (int) (value >>> shift);
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+	}
+
+	static long highestValue(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long mantissa = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		long highest = ((mantissa + 1) << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
@@ -0,0 +1,291 @@
+package com.meltmedia.aws.discovery;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that members accept TCP connections on a port.
+ *
+ * A probe round opens non-blocking connections to every member that does not
+ * have a fresh result and waits on them with a single `Selector`, so
+ * thousands of members are probed in parallel without a thread each. At most
+ * `MAX_IN_FLIGHT` connections are open at once, the next one being opened as
+ * each finishes. Each connection gets the timeout from the moment it is
+ * opened, so a member queued behind a window of slow ones is still probed, and
+ * a round takes at most one timeout for every `MAX_IN_FLIGHT` members that
+ * hang. Members whose connection has not finished within its timeout count as
+ * unreachable. Results are cached for the TTL.
+ *
+ * Probing blocks, so callers that cannot wait rank the members by the last
+ * results with `rank(Membership, int[])` and probe again in the background
+ * once `isStale(Membership, int[])`.
+ */
+class LivenessProber {
+	static final int MAX_IN_FLIGHT = 256;
+
+	/**
+	 * A connection in flight, attached to its selection key.
+	 */
+	private static class Probe {
+		final int index;
+		final long deadline;
+
+		Probe(int index, long deadline) {
+			this.index = index;
+			this.deadline = deadline;
+		}
+	}
+
+	private static class Result {
+		final boolean reachable;
+		final long probedAt;
+
+		Result(boolean reachable, long probedAt) {
+			this.reachable = reachable;
+			this.probedAt = probedAt;
+		}
+	}
+
+	private final int port;
+	private final long timeoutNanos;
+	private final long ttlNanos;
+	private final ProbePolicy policy;
+	private final Map<Integer, Result> results = new ConcurrentHashMap<Integer, Result>();
+
+	LivenessProber(int port, long timeoutNanos, long ttlNanos,
+			ProbePolicy policy) {
+		if (port < 1 || port > 65535) {
+			throw new IllegalArgumentException("the probe port must be between 1 and 65535");
+		}
+		if (timeoutNanos <= 0) {
+			throw new IllegalArgumentException("the probe timeout must be positive");
+		}
+		this.port = port;
+		this.timeoutNanos = timeoutNanos;
+		this.ttlNanos = ttlNanos;
+		this.policy = policy;
+	}
+
+	/**
+	 * Probes the members at the indexes, keeping their order.
+	 *
+	 * @return the indexes of the reachable members, followed by the
+	 *         unreachable ones when the policy ranks them last.
+	 */
+	int[] apply(Membership membership, int[] order) {
+		int[] addresses = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			addresses[i] = membership.addressAt(order[i]);
+		}
+		return arrange(order, probe(addresses));
+	}
+
+	/**
+	 * Orders the members at the indexes by their last results, without
+	 * probing. Members that have not been probed are taken to be reachable.
+	 *
+	 * @return the indexes of the reachable members, followed by the
+	 *         unreachable ones when the policy ranks them last.
+	 */
+	int[] rank(Membership membership, int[] order) {
+		boolean[] reachable = new boolean[order.length];
+		for (int i = 0; i < order.length; i++) {
+			Result result = results.get(membership.addressAt(order[i]));
+			reachable[i] = result == null || result.reachable;
+		}
+		return arrange(order, reachable);
+	}
+
+	/**
+	 * @return true if a member at the indexes has no result, or one older
+	 *         than the TTL.
+	 */
+	boolean isStale(Membership membership, int[] order) {
+		long now = System.nanoTime();
+		for (int index : order) {
+			Result result = results.get(membership.addressAt(index));
+			if (result == null || now - result.probedAt >= ttlNanos) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private int[] arrange(int[] order, boolean[] reachable) {
+		int[] result = new int[order.length];
+		int count = 0;
+		for (int i = 0; i < order.length; i++) {
+			if (reachable[i]) {
+				result[count++] = order[i];
+			}
+		}
+		if (policy == ProbePolicy.RANK_LAST) {
+			for (int i = 0; i < order.length; i++) {
+				if (!reachable[i]) {
+					result[count++] = order[i];
+				}
+			}
+		}
+		return count == result.length ? result : Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * @param addresses
+	 *          packed IPv4 addresses.
+	 * @return whether each address accepted a connection.
+	 */
+	synchronized boolean[] probe(int[] addresses) {
+		long now = System.nanoTime();
+		boolean[] reachable = new boolean[addresses.length];
+		int[] pending = new int[addresses.length];
+		int pendingCount = 0;
+		for (int i = 0; i < addresses.length; i++) {
+			Result result = results.get(addresses[i]);
+			if (result != null && now - result.probedAt < ttlNanos) {
+				reachable[i] = result.reachable;
+			} else {
+				pending[pendingCount++] = i;
+			}
+		}
+		if (pendingCount > 0) {
+			connect(addresses, pending, pendingCount, reachable);
+			long probedAt = System.nanoTime();
+			for (int i = 0; i < pendingCount; i++) {
+				int index = pending[i];
+				results.put(addresses[index], new Result(reachable[index],
+						probedAt));
+			}
+			expire(probedAt);
+		}
+		return reachable;
+	}
+
+	private void connect(int[] addresses, int[] pending, int pendingCount,
+			boolean[] reachable) {
+		Selector selector;
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			throw new DiscoveryException("could not open a selector for the liveness probe", e);
+		}
+		try {
+			// connections are opened in order, so the oldest one in flight is
+			// always the next to time out.
+			ArrayDeque<SelectionKey> inFlight = new ArrayDeque<SelectionKey>();
+			int next = 0;
+			while (true) {
+				while (next < pendingCount && inFlight.size() < MAX_IN_FLIGHT) {
+					int index = pending[next++];
+					SelectionKey key = open(selector, addresses[index], index, reachable);
+					if (key != null) {
+						inFlight.add(key);
+					}
+				}
+				if (inFlight.isEmpty()) {
+					break;
+				}
+				long remaining = ((Probe) inFlight.peek().attachment()).deadline
+						- System.nanoTime();
+				if (remaining > 0) {
+					selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+				}
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+					int index = ((Probe) key.attachment()).index;
+					try {
+						reachable[index] = ((SocketChannel) key.channel()).finishConnect();
+					} catch (IOException e) {
+						reachable[index] = false;
+					}
+					close(key);
+					inFlight.remove(key);
+				}
+				// whatever is still connecting past its timeout is unreachable.
+				long now = System.nanoTime();
+				while (!inFlight.isEmpty()
+						&& ((Probe) inFlight.peek().attachment()).deadline - now <= 0) {
+					close(inFlight.poll());
+				}
+			}
+		} catch (IOException e) {
+			throw new DiscoveryException("liveness probe failed", e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				close(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// nothing left to do.
+			}
+		}
+	}
+
+	/**
+	 * Starts a connection.
+	 *
+	 * @return the key of the connection in flight on the selector, or null if
+	 *         it finished at once.
+	 */
+	private SelectionKey open(Selector selector, int address, int index,
+			boolean[] reachable) {
+		SocketChannel channel = null;
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			byte[] octets = { (byte) (address >>> 24), (byte) (address >>> 16),
+					(byte) (address >>> 8), (byte) address };
+			if (channel.connect(new InetSocketAddress(
+					InetAddress.getByAddress(octets), port))) {
+				reachable[index] = true;
+				channel.close();
+				return null;
+			}
+			return channel.register(selector, SelectionKey.OP_CONNECT,
+					new Probe(index, System.nanoTime() + timeoutNanos));
+		} catch (IOException e) {
+			reachable[index] = false;
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+					// nothing left to do.
+				}
+			}
+			return null;
+		}
+	}
+
+	private static void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// nothing left to do.
+		}
+	}
+
+	/**
+	 * Drops results older than the TTL, so members that left do not linger.
+	 */
+	private void expire(long now) {
+		Iterator<Result> iterator = results.values().iterator();
+		while (iterator.hasNext()) {
+			if (now - iterator.next().probedAt >= ttlNanos) {
+				iterator.remove();
+			}
+		}
+	}
+}
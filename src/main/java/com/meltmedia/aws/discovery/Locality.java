@@ -0,0 +1,154 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How members are ordered, and optionally filtered, by how close they are to
+ * the current instance.
+ *
+ * Members are ranked into those in the same availability zone, those in
+ * another zone of the same region, and the rest, including members whose zone
+ * is not known. Within a rank, members stay in address order.
+ *
+ * ```
+ * AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+ *   .withLocality(Locality.zoneOnly(3))
+ *   .build()
+ *   .start();
+ * ```
+ */
+public class Locality {
+	/**
+	 * The region a zone name starts with, which also covers local and
+	 * wavelength zones, such as `us-west-2-lax-1a`.
+	 */
+	private static final Pattern REGION = Pattern
+			.compile("[a-z]+-(?:gov-)?[a-z]+-\\d+");
+
+	static final int SAME_ZONE = 0;
+	static final int SAME_REGION = 1;
+	static final int OTHER = 2;
+
+	/**
+	 * Members in address order, wherever they are. The default.
+	 */
+	public static final Locality ANY = new Locality(false, 0);
+
+	/**
+	 * Members in the same availability zone first, then those in the same
+	 * region, then the rest.
+	 */
+	public static final Locality PREFER_ZONE = new Locality(true, 0);
+
+	/**
+	 * Only the members in the same availability zone, as long as there are at
+	 * least `minMembers` of them. With fewer, every member is returned, ranked
+	 * as `PREFER_ZONE` ranks them.
+	 */
+	public static Locality zoneOnly(int minMembers) {
+		if (minMembers < 1) {
+			throw new IllegalArgumentException(
+					"at least one member must be required in the zone");
+		}
+		return new Locality(true, minMembers);
+	}
+
+	private final boolean ranked;
+	private final int minZoneMembers;
+
+	private Locality(boolean ranked, int minZoneMembers) {
+		this.ranked = ranked;
+		this.minZoneMembers = minZoneMembers;
+	}
+
+	/**
+	 * @return the indexes of the members to use, closest first.
+	 */
+	int[] order(Membership membership, String availabilityZone) {
+		int size = membership.size();
+		if (!ranked) {
+			int[] order = new int[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			return order;
+		}
+
+		// pack the rank above the index, so sorting keeps address order
+		// within a rank.
+		String region = region(availabilityZone);
+		Map<String, Integer> ranks = new HashMap<String, Integer>();
+		long[] keys = new long[size];
+		int sameZone = 0;
+		for (int i = 0; i < size; i++) {
+			String zone = membership.availabilityZoneAt(i);
+			Integer rank = ranks.get(zone);
+			if (rank == null) {
+				rank = rank(zone, availabilityZone, region);
+				ranks.put(zone, rank);
+			}
+			if (rank == SAME_ZONE) {
+				sameZone++;
+			}
+			keys[i] = ((long) rank << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		int count = minZoneMembers > 0 && sameZone >= minZoneMembers ? sameZone
+				: size;
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+
+	/**
+	 * @return the addresses of the members to use, closest first.
+	 */
+	List<String> privateIpAddresses(Membership membership,
+			String availabilityZone) {
+		if (!ranked) {
+			return membership.getPrivateIpAddresses();
+		}
+		return membership.getPrivateIpAddresses(order(membership,
+				availabilityZone));
+	}
+
+	static int rank(String zone, String availabilityZone, String region) {
+		if (zone == null) {
+			return OTHER;
+		}
+		if (zone.equals(availabilityZone)) {
+			return SAME_ZONE;
+		}
+		if (region != null && region.equals(region(zone))) {
+			return SAME_REGION;
+		}
+		return OTHER;
+	}
+
+	/**
+	 * @return the region of the availability zone, such as `us-east-1` for
+	 *         `us-east-1a` or `us-west-2` for `us-west-2-lax-1a`, or null if it
+	 *         is not known.
+	 */
+	static String region(String availabilityZone) {
+		if (availabilityZone == null) {
+			return null;
+		}
+		Matcher matcher = REGION.matcher(availabilityZone);
+		return matcher.lookingAt() ? matcher.group() : null;
+	}
+
+	@Override
+	public String toString() {
+		return !ranked ? "ANY" : minZoneMembers == 0 ? "PREFER_ZONE"
+				: "zoneOnly(" + minZoneMembers + ")";
+	}
+}
@@ -0,0 +1,80 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * One member of a cluster, a view of one entry in a `Membership`.
+ */
+public class Member {
+	private final Membership membership;
+	private final int index;
+
+	Member(Membership membership, int index) {
+		this.membership = membership;
+		this.index = index;
+	}
+
+	/**
+	 * @return the private IPv4 address, packed into an int.
+	 */
+	public int getAddress() {
+		return membership.addressAt(index);
+	}
+
+	public String getPrivateIpAddress() {
+		return membership.privateIpAddressAt(index);
+	}
+
+	public String getInstanceId() {
+		return membership.instanceIdAt(index);
+	}
+
+	public String getAvailabilityZone() {
+		return membership.availabilityZoneAt(index);
+	}
+
+	/**
+	 * @return the region of the instance, such as `us-east-1`.
+	 */
+	public String getRegion() {
+		return membership.regionAt(index);
+	}
+
+	/**
+	 * @return the instance state name, such as `running`.
+	 */
+	public String getState() {
+		return membership.stateAt(index);
+	}
+
+	/**
+	 * @return the launch time in milliseconds since the epoch, or zero if it is
+	 *         not known.
+	 */
+	public long getLaunchTime() {
+		return membership.launchTimeAt(index);
+	}
+
+	/**
+	 * @return the tags of the instance.
+	 */
+	public Map<String, String> getTags() {
+		String[] tags = membership.tagsAt(index);
+		if (tags.length == 0) {
+			return Collections.emptyMap();
+		}
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		for (int i = 0; i < tags.length; i += 2) {
+			result.put(tags[i], tags[i + 1]);
+		}
+		return Collections.unmodifiableMap(result);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s(%s, %s, %s)", getPrivateIpAddress(),
+				getInstanceId(), getAvailabilityZone(), getState());
+	}
+}
@@ -0,0 +1,442 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+
+/**
+ * An immutable set of cluster members, stored column by column.
+ *
+ * Addresses are packed IPv4 ints in a sorted primitive array, so `contains` is
+ * a binary search and walking the addresses with `addressAt(int)` allocates
+ * nothing. Instance ids are kept as they are, while availability zones, states
+ * and tags are interned, so a large fleet shares a handful of strings. Dotted
+ * quad strings and `Member` views are only created when they are asked for.
+ *
+ * Members are ordered by address, smallest first, then by region. Private
+ * ranges overlap between regions, so members of different regions may share
+ * an address.
+ */
+public class Membership {
+
+	/**
+	 * A membership without members.
+	 */
+	public static final Membership EMPTY = new Builder().build();
+
+	/**
+	 * Collects members and sorts them into a membership. Members without an
+	 * address are skipped, and the first member seen for an address in a
+	 * region wins.
+	 */
+	public static class Builder {
+		private final Map<String, String> interned = new HashMap<String, String>();
+		private int size = 0;
+		private int[] addresses = new int[16];
+		private String[] instanceIds = new String[16];
+		private String[] availabilityZones = new String[16];
+		private String[] states = new String[16];
+		private long[] launchTimes = new long[16];
+		private String[][] tags = new String[16][];
+
+		/**
+		 * Adds an instance returned by DescribeInstances.
+		 */
+		public Builder add(Instance instance) {
+			if (instance.getPrivateIpAddress() == null) {
+				return this;
+			}
+			String[] tagPairs = NO_TAGS;
+			List<Tag> instanceTags = instance.getTags();
+			if (instanceTags != null && !instanceTags.isEmpty()) {
+				tagPairs = new String[instanceTags.size() * 2];
+				for (int i = 0; i < instanceTags.size(); i++) {
+					tagPairs[i * 2] = instanceTags.get(i).getKey();
+					tagPairs[i * 2 + 1] = instanceTags.get(i).getValue();
+				}
+			}
+			return add(Ipv4.pack(instance.getPrivateIpAddress()),
+					instance.getInstanceId(),
+					instance.getPlacement() != null ? instance.getPlacement()
+							.getAvailabilityZone() : null,
+					instance.getState() != null ? instance.getState().getName()
+							: null,
+					instance.getLaunchTime() != null ? instance.getLaunchTime()
+							.getTime() : 0, tagPairs);
+		}
+
+		/**
+		 * Adds a member.
+		 *
+		 * @param address
+		 *          the packed private IPv4 address.
+		 * @param tagPairs
+		 *          the tag keys and values, alternating.
+		 */
+		public Builder add(int address, String instanceId,
+				String availabilityZone, String state, long launchTime,
+				String... tagPairs) {
+			if (size == addresses.length) {
+				int capacity = size * 2;
+				addresses = Arrays.copyOf(addresses, capacity);
+				instanceIds = Arrays.copyOf(instanceIds, capacity);
+				availabilityZones = Arrays.copyOf(availabilityZones, capacity);
+				states = Arrays.copyOf(states, capacity);
+				launchTimes = Arrays.copyOf(launchTimes, capacity);
+				tags = Arrays.copyOf(tags, capacity);
+			}
+			String[] internedTags = tagPairs.length == 0 ? NO_TAGS
+					: new String[tagPairs.length];
+			for (int i = 0; i < tagPairs.length; i++) {
+				internedTags[i] = intern(tagPairs[i]);
+			}
+			addresses[size] = address;
+			instanceIds[size] = instanceId;
+			availabilityZones[size] = intern(availabilityZone);
+			states[size] = intern(state);
+			launchTimes[size] = launchTime;
+			tags[size] = internedTags;
+			size++;
+			return this;
+		}
+
+		/**
+		 * Adds a member known only by its address.
+		 */
+		public Builder add(String privateIpAddress) {
+			return add(Ipv4.pack(privateIpAddress), null, null, null, 0);
+		}
+
+		public Membership build() {
+			// sort the row indexes by address, then copy the columns over.
+			long[] order = new long[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = ((long) (addresses[i] ^ Integer.MIN_VALUE) << 32) | i;
+			}
+			Arrays.sort(order);
+
+			// addresses shared between regions are rare, order them by region.
+			for (int start = 0, end; start < size; start = end) {
+				int address = addresses[(int) order[start]];
+				end = start + 1;
+				while (end < size && addresses[(int) order[end]] == address) {
+					end++;
+				}
+				for (int i = start + 1; i < end; i++) {
+					long row = order[i];
+					String region = Locality.region(availabilityZones[(int) row]);
+					int j = i;
+					for (; j > start && compare(Locality.region(
+							availabilityZones[(int) order[j - 1]]), region) > 0; j--) {
+						order[j] = order[j - 1];
+					}
+					order[j] = row;
+				}
+			}
+
+			int count = 0;
+			int[] sortedAddresses = new int[size];
+			String[] sortedIds = new String[size];
+			String[] sortedZones = new String[size];
+			String[] sortedStates = new String[size];
+			long[] sortedLaunchTimes = new long[size];
+			String[][] sortedTags = new String[size][];
+			for (int i = 0; i < size; i++) {
+				int row = (int) order[i];
+				int key = addresses[row] ^ Integer.MIN_VALUE;
+				if (count > 0
+						&& sortedAddresses[count - 1] == key
+						&& equal(Locality.region(sortedZones[count - 1]),
+								Locality.region(availabilityZones[row]))) {
+					continue;
+				}
+				sortedAddresses[count] = key;
+				sortedIds[count] = instanceIds[row];
+				sortedZones[count] = availabilityZones[row];
+				sortedStates[count] = states[row];
+				sortedLaunchTimes[count] = launchTimes[row];
+				sortedTags[count] = tags[row];
+				count++;
+			}
+			return new Membership(count, sortedAddresses, sortedIds,
+					sortedZones, sortedStates, sortedLaunchTimes, sortedTags);
+		}
+
+		private String intern(String value) {
+			if (value == null) {
+				return null;
+			}
+			String existing = interned.get(value);
+			if (existing == null) {
+				interned.put(value, value);
+				existing = value;
+			}
+			return existing;
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	private static final String[] NO_TAGS = new String[0];
+
+	private final int size;
+
+	/**
+	 * The addresses with their sign bit flipped, so that signed order is the
+	 * unsigned order of the addresses.
+	 */
+	private final int[] keys;
+	private final String[] instanceIds;
+	private final String[] availabilityZones;
+	private final String[] states;
+	private final long[] launchTimes;
+	private final String[][] tags;
+
+	/**
+	 * Dotted quad strings, rendered on first use.
+	 */
+	private final String[] rendered;
+	private int hash;
+
+	private Membership(int size, int[] keys, String[] instanceIds,
+			String[] availabilityZones, String[] states, long[] launchTimes,
+			String[][] tags) {
+		this.size = size;
+		this.keys = keys;
+		this.instanceIds = instanceIds;
+		this.availabilityZones = availabilityZones;
+		this.states = states;
+		this.launchTimes = launchTimes;
+		this.tags = tags;
+		this.rendered = new String[size];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the packed address of the member at the index.
+	 */
+	public int addressAt(int index) {
+		checkIndex(index);
+		return keys[index] ^ Integer.MIN_VALUE;
+	}
+
+	/**
+	 * @return the dotted quad address of the member at the index.
+	 */
+	public String privateIpAddressAt(int index) {
+		checkIndex(index);
+		String address = rendered[index];
+		if (address == null) {
+			rendered[index] = address = Ipv4.unpack(keys[index]
+					^ Integer.MIN_VALUE);
+		}
+		return address;
+	}
+
+	public String instanceIdAt(int index) {
+		checkIndex(index);
+		return instanceIds[index];
+	}
+
+	public String availabilityZoneAt(int index) {
+		checkIndex(index);
+		return availabilityZones[index];
+	}
+
+	/**
+	 * @return the region of the member at the index, taken from its
+	 *         availability zone, or null if the zone is not known.
+	 */
+	public String regionAt(int index) {
+		return Locality.region(availabilityZoneAt(index));
+	}
+
+	public String stateAt(int index) {
+		checkIndex(index);
+		return states[index];
+	}
+
+	public long launchTimeAt(int index) {
+		checkIndex(index);
+		return launchTimes[index];
+	}
+
+	String[] tagsAt(int index) {
+		checkIndex(index);
+		return tags[index];
+	}
+
+	/**
+	 * @return a view of the member at the index.
+	 */
+	public Member get(int index) {
+		checkIndex(index);
+		return new Member(this, index);
+	}
+
+	/**
+	 * @return the index of a member with the packed address, or a negative
+	 *         number if it is not a member.
+	 */
+	public int indexOf(int address) {
+		int index = Arrays.binarySearch(keys, 0, size, address
+				^ Integer.MIN_VALUE);
+		return index >= 0 ? index : -1;
+	}
+
+	public boolean contains(int address) {
+		return indexOf(address) >= 0;
+	}
+
+	public boolean contains(String privateIpAddress) {
+		try {
+			return contains(Ipv4.pack(privateIpAddress));
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return views of all of the members.
+	 */
+	public List<Member> getMembers() {
+		List<Member> members = new ArrayList<Member>(size);
+		for (int i = 0; i < size; i++) {
+			members.add(new Member(this, i));
+		}
+		return Collections.unmodifiableList(members);
+	}
+
+	/**
+	 * @return a new list of the dotted quad addresses of the members.
+	 */
+	public List<String> getPrivateIpAddresses() {
+		List<String> result = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			result.add(privateIpAddressAt(i));
+		}
+		return result;
+	}
+
+	/**
+	 * @return the dotted quad addresses of the members at the indexes, in
+	 *         the order given.
+	 */
+	List<String> getPrivateIpAddresses(int[] indexes) {
+		List<String> result = new ArrayList<String>(indexes.length);
+		for (int index : indexes) {
+			result.add(privateIpAddressAt(index));
+		}
+		return result;
+	}
+
+	/**
+	 * @return views of the members at the indexes, in the order given.
+	 */
+	List<Member> getMembers(int[] indexes) {
+		List<Member> result = new ArrayList<Member>(indexes.length);
+		for (int index : indexes) {
+			result.add(get(index));
+		}
+		return result;
+	}
+
+	/**
+	 * Compares the member at the index with the member at the other index of
+	 * the other membership, by address and then by region.
+	 */
+	int compare(int index, Membership other, int otherIndex) {
+		int order = Integer.compare(keys[index], other.keys[otherIndex]);
+		if (order != 0
+				|| equal(availabilityZones[index], other.availabilityZones[otherIndex])) {
+			return order;
+		}
+		return compare(regionAt(index), other.regionAt(otherIndex));
+	}
+
+	/**
+	 * Returns true if the member at the index describes the same instance in
+	 * the same state as the member at the other index of the other membership.
+	 */
+	boolean sameMember(int index, Membership other, int otherIndex) {
+		return keys[index] == other.keys[otherIndex]
+				&& equal(instanceIds[index], other.instanceIds[otherIndex])
+				&& equal(states[index], other.states[otherIndex]);
+	}
+
+	/**
+	 * Two memberships are equal when they hold the same addresses, with the
+	 * same instance ids and states.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (obj == this) {
+			return true;
+		}
+		if (!(obj instanceof Membership)) {
+			return false;
+		}
+		Membership other = (Membership) obj;
+		if (other.size != size) {
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			if (!sameMember(i, other, i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = hash;
+		if (result == 0) {
+			result = 1;
+			for (int i = 0; i < size; i++) {
+				result = 31 * result + keys[i];
+				result = 31 * result
+						+ (instanceIds[i] == null ? 0 : instanceIds[i].hashCode());
+				result = 31 * result
+						+ (states[i] == null ? 0 : states[i].hashCode());
+			}
+			hash = result;
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return getPrivateIpAddresses().toString();
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException(String.format(
+					"index %d, size %d", index, size));
+		}
+	}
+
+	private static int compare(String a, String b) {
+		return a == null ? (b == null ? 0 : -1) : b == null ? 1 : a.compareTo(b);
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,394 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A TTL cache that sits in front of a membership query.
+ *
+ * * Values younger than the TTL are served without calling the loader.
+ * * Values older than the refresh ahead age, but still inside the TTL, are
+ * served while a single background refresh is started.
+ * * Concurrent misses share one in flight load, so only one caller ever talks
+ * to EC2 at a time.
+ *
+ * A TTL of zero disables caching, but concurrent callers still share a single
+ * in flight load.
+ *
+ * Invalidating the cache drops the cached value and abandons the load in
+ * flight, whose result is returned to the callers already waiting on it but
+ * never cached.
+ *
+ * A cache can be seeded with a provisional value, such as one read from a
+ * snapshot. The provisional value is served while a load is in flight, even
+ * if it is older than the TTL.
+ *
+ * @param <T>
+ *          the type of value that is cached.
+ */
+public class MembershipCache<T> {
+
+	/**
+	 * The hit, miss and refresh counters for a cache.
+	 */
+	public static class Stats {
+		private final long hits;
+		private final long misses;
+		private final long refreshes;
+		private final long loads;
+		private final long loadFailures;
+
+		Stats(long hits, long misses, long refreshes, long loads,
+				long loadFailures) {
+			this.hits = hits;
+			this.misses = misses;
+			this.refreshes = refreshes;
+			this.loads = loads;
+			this.loadFailures = loadFailures;
+		}
+
+		/**
+		 * @return the number of calls served from the cached value.
+		 */
+		public long getHits() {
+			return hits;
+		}
+
+		/**
+		 * @return the number of calls that had to wait for a load.
+		 */
+		public long getMisses() {
+			return misses;
+		}
+
+		/**
+		 * @return the number of refresh ahead loads that were started.
+		 */
+		public long getRefreshes() {
+			return refreshes;
+		}
+
+		/**
+		 * @return the number of times the loader was actually invoked.
+		 */
+		public long getLoads() {
+			return loads;
+		}
+
+		/**
+		 * @return the number of loader invocations that failed.
+		 */
+		public long getLoadFailures() {
+			return loadFailures;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"hits=%d, misses=%d, refreshes=%d, loads=%d, loadFailures=%d",
+					hits, misses, refreshes, loads, loadFailures);
+		}
+	}
+
+	private static class Entry<T> {
+		final T value;
+		final long loadedAt;
+		final boolean provisional;
+
+		Entry(T value, long loadedAt, boolean provisional) {
+			this.value = value;
+			this.loadedAt = loadedAt;
+			this.provisional = provisional;
+		}
+	}
+
+	private final Callable<T> loader;
+	private final long ttlNanos;
+	private final long refreshAheadNanos;
+	private final Executor refreshExecutor;
+
+	private volatile Entry<T> entry;
+	private final AtomicReference<FutureTask<T>> inFlight = new AtomicReference<FutureTask<T>>();
+
+	/**
+	 * Bumped by invalidate(), so loads started before it do not cache their
+	 * results.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong loadFailures = new AtomicLong();
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param loader
+	 *          the query that produces fresh values.
+	 * @param ttl
+	 *          how long a value may be served, zero to disable caching.
+	 * @param refreshAhead
+	 *          the age after which a hit starts a background refresh, zero to
+	 *          disable refresh ahead.
+	 * @param unit
+	 *          the unit of ttl and refreshAhead.
+	 * @param refreshExecutor
+	 *          the executor that runs refresh ahead loads. May be null when
+	 *          refresh ahead is disabled.
+	 */
+	public MembershipCache(Callable<T> loader, long ttl, long refreshAhead,
+			TimeUnit unit, Executor refreshExecutor) {
+		if (ttl < 0 || refreshAhead < 0) {
+			throw new IllegalArgumentException(
+					"the ttl and refresh ahead age cannot be negative");
+		}
+		if (refreshAhead > 0 && refreshAhead >= ttl) {
+			throw new IllegalArgumentException(
+					"the refresh ahead age must be less than the ttl");
+		}
+		if (refreshAhead > 0 && refreshExecutor == null) {
+			throw new IllegalArgumentException(
+					"refresh ahead requires an executor");
+		}
+		this.loader = loader;
+		this.ttlNanos = unit.toNanos(ttl);
+		this.refreshAheadNanos = unit.toNanos(refreshAhead);
+		this.refreshExecutor = refreshExecutor;
+	}
+
+	/**
+	 * Returns the cached value, loading it if it is missing or expired.
+	 *
+	 * @return the current value.
+	 * @throws DiscoveryException
+	 *           if the value had to be loaded and the load failed.
+	 */
+	public T get() {
+		T value = getIfFresh();
+		if (value != null) {
+			return value;
+		}
+		misses.incrementAndGet();
+		return await(load());
+	}
+
+	/**
+	 * Returns the cached value, loading it on the executor if it is missing or
+	 * expired. The load runs as a plain task that callers never interrupt, so
+	 * one caller giving up on the returned future does not fail the load for
+	 * the others sharing it.
+	 *
+	 * @return a future of the current value, already complete on a hit.
+	 */
+	public CompletableFuture<T> getAsync(Executor executor) {
+		T value = getIfFresh();
+		if (value != null) {
+			return CompletableFuture.completedFuture(value);
+		}
+		misses.incrementAndGet();
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						result.complete(await(load()));
+					} catch (Throwable t) {
+						result.completeExceptionally(t);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the cached value if it may still be served, without loading it.
+	 *
+	 * @return the current value, or null if get() would have to load it.
+	 */
+	public T getIfFresh() {
+		Entry<T> current = entry;
+		if (current != null) {
+			long age = System.nanoTime() - current.loadedAt;
+			if (current.provisional && inFlight.get() != null) {
+				hits.incrementAndGet();
+				return current.value;
+			}
+			if (age < ttlNanos) {
+				hits.incrementAndGet();
+				if (refreshAheadNanos > 0 && age >= refreshAheadNanos) {
+					refreshAhead();
+				}
+				return current.value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Loads a fresh value, joining a load that is already in flight.
+	 *
+	 * @return the fresh value.
+	 * @throws DiscoveryException
+	 *           if the load failed.
+	 */
+	public T refresh() {
+		return await(load());
+	}
+
+	/**
+	 * Seeds the cache with a provisional value and starts loading a fresh one
+	 * in the background. Ignored if the cache already has a value.
+	 *
+	 * @param value
+	 *          the value to serve until the load completes.
+	 * @param executor
+	 *          the executor that runs the load.
+	 */
+	public void seed(T value, Executor executor) {
+		if (entry != null) {
+			return;
+		}
+		entry = new Entry<T>(value, System.nanoTime(), true);
+		FutureTask<T> task = newLoadTask();
+		if (inFlight.compareAndSet(null, task)) {
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				inFlight.compareAndSet(task, null);
+			}
+		}
+	}
+
+	/**
+	 * Caches a value loaded outside of the cache, such as by a query shared
+	 * with other caches.
+	 */
+	public synchronized void put(T value) {
+		entry = new Entry<T>(value, System.nanoTime(), false);
+	}
+
+	/**
+	 * Drops the cached value and abandons the load in flight, so the next call
+	 * to get() loads a fresh one.
+	 */
+	public synchronized void invalidate() {
+		generation.incrementAndGet();
+		entry = null;
+		inFlight.set(null);
+	}
+
+	/**
+	 * @return a point in time copy of the cache counters.
+	 */
+	public Stats getStats() {
+		return new Stats(hits.get(), misses.get(), refreshes.get(), loads.get(),
+				loadFailures.get());
+	}
+
+	private void refreshAhead() {
+		if (inFlight.get() != null) {
+			return;
+		}
+		final FutureTask<T> task = newLoadTask();
+		if (!inFlight.compareAndSet(null, task)) {
+			return;
+		}
+		refreshes.incrementAndGet();
+		try {
+			refreshExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// the executor is shutting down, let the next miss load the value.
+			inFlight.compareAndSet(task, null);
+		}
+	}
+
+	private FutureTask<T> load() {
+		while (true) {
+			FutureTask<T> task = inFlight.get();
+			if (task != null) {
+				// a refresh ahead or seed load may still be queued, maybe on
+				// the very thread this caller runs on, so run it here instead
+				// of waiting for it. This does nothing if it already started.
+				task.run();
+				return task;
+			}
+			FutureTask<T> created = newLoadTask();
+			if (inFlight.compareAndSet(null, created)) {
+				created.run();
+				return created;
+			}
+		}
+	}
+
+	private FutureTask<T> newLoadTask() {
+		final AtomicReference<FutureTask<T>> self = new AtomicReference<FutureTask<T>>();
+		final long started = generation.get();
+		FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				loads.incrementAndGet();
+				try {
+					T value = loader.call();
+					publish(value, started);
+					return value;
+				} catch (Exception e) {
+					loadFailures.incrementAndGet();
+					throw e;
+				} finally {
+					inFlight.compareAndSet(self.get(), null);
+				}
+			}
+		});
+		self.set(task);
+		return task;
+	}
+
+	/**
+	 * Caches the value, unless the cache was invalidated after the load that
+	 * produced it started.
+	 */
+	private synchronized void publish(T value, long started) {
+		if (generation.get() == started) {
+			entry = new Entry<T>(value, System.nanoTime(), false);
+		}
+	}
+
+	private T await(FutureTask<T> task) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new DiscoveryException("could not load membership", cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The difference between two polls of the cluster membership.
+ */
+public class MembershipEvent {
+	private final List<String> joined;
+	private final List<String> left;
+	private final List<String> changed;
+	private final List<String> members;
+	private final Membership membership;
+
+	public MembershipEvent(List<String> joined, List<String> left,
+			List<String> members) {
+		this(joined, left, new ArrayList<String>(), members, null);
+	}
+
+	public MembershipEvent(List<String> joined, List<String> left,
+			List<String> changed, Membership membership) {
+		this(joined, left, changed, membership.getPrivateIpAddresses(),
+				membership);
+	}
+
+	private MembershipEvent(List<String> joined, List<String> left,
+			List<String> changed, List<String> members, Membership membership) {
+		this.joined = Collections.unmodifiableList(joined);
+		this.left = Collections.unmodifiableList(left);
+		this.changed = Collections.unmodifiableList(changed);
+		this.members = Collections.unmodifiableList(members);
+		this.membership = membership;
+	}
+
+	/**
+	 * @return the private IP addresses that were not members on the last poll.
+	 */
+	public List<String> getJoined() {
+		return joined;
+	}
+
+	/**
+	 * @return the private IP addresses that are no longer members.
+	 */
+	public List<String> getLeft() {
+		return left;
+	}
+
+	/**
+	 * @return the private IP addresses that are still members, but now belong
+	 *         to a different instance or are in a different state.
+	 */
+	public List<String> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * @return the private IP addresses of all of the current members.
+	 */
+	public List<String> getMembers() {
+		return members;
+	}
+
+	/**
+	 * @return the current members, or null if the event was created from
+	 *         addresses alone.
+	 */
+	public Membership getMembership() {
+		return membership;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("joined=%s, left=%s, changed=%s, members=%s",
+				joined, left, changed, members);
+	}
+}
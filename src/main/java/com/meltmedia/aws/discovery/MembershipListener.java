@@ -0,0 +1,8 @@
+package com.meltmedia.aws.discovery;
+
+/**
+ * Notified by the membership poller when the members of the cluster change.
+ */
+public interface MembershipListener {
+  public void membershipChanged( MembershipEvent event );
+}
@@ -0,0 +1,145 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the cluster membership on a schedule and tells the registered
+ * listeners which members joined, left and changed.
+ *
+ * Each poll is scheduled after the previous one completes, with a random
+ * jitter added to the interval so nodes that started together do not poll EC2
+ * in lockstep. While discovery is backing off from a throttling fault, the
+ * next poll waits for the backoff period to end.
+ */
+class MembershipPoller implements Runnable {
+	private final Callable<Membership> query;
+	private final ScheduledExecutorService scheduler;
+	private final long intervalNanos;
+	private final long jitterNanos;
+	private final List<MembershipListener> listeners;
+	private final ThrottleBackoff backoff;
+	private final Random random = new Random();
+
+	private Membership previous = Membership.EMPTY;
+	private volatile ScheduledFuture<?> next;
+	private volatile boolean stopped = false;
+
+	MembershipPoller(Callable<Membership> query,
+			ScheduledExecutorService scheduler, long intervalNanos,
+			long jitterNanos, List<MembershipListener> listeners,
+			ThrottleBackoff backoff) {
+		this.query = query;
+		this.scheduler = scheduler;
+		this.intervalNanos = intervalNanos;
+		this.jitterNanos = jitterNanos;
+		this.listeners = listeners;
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Schedules the first poll to run right away.
+	 */
+	void start() {
+		schedule(0);
+	}
+
+	/**
+	 * Cancels the next poll. A poll that is already running is allowed to
+	 * finish, but its listeners are not notified.
+	 */
+	void stop() {
+		stopped = true;
+		ScheduledFuture<?> current = next;
+		if (current != null) {
+			current.cancel(false);
+		}
+	}
+
+	@Override
+	public void run() {
+		if (stopped) {
+			return;
+		}
+		try {
+			poll();
+		} catch (Exception e) {
+			// keep the last membership, the fault listener has already been
+			// told about AWS faults.
+		} finally {
+			schedule(nextDelay());
+		}
+	}
+
+	void poll() throws Exception {
+		Membership current = query.call();
+
+		// both memberships are sorted by address and region, so walk them side
+		// by side.
+		List<String> joined = new ArrayList<String>();
+		List<String> left = new ArrayList<String>();
+		List<String> changed = new ArrayList<String>();
+		int i = 0, j = 0;
+		while (i < current.size() || j < previous.size()) {
+			int order = i == current.size() ? 1 : j == previous.size() ? -1
+					: current.compare(i, previous, j);
+			if (order < 0) {
+				joined.add(current.privateIpAddressAt(i++));
+			} else if (order > 0) {
+				left.add(previous.privateIpAddressAt(j++));
+			} else {
+				if (!current.sameMember(i, previous, j)) {
+					changed.add(current.privateIpAddressAt(i));
+				}
+				i++;
+				j++;
+			}
+		}
+		previous = current;
+
+		if (!joined.isEmpty() || !left.isEmpty() || !changed.isEmpty()) {
+			fire(new MembershipEvent(joined, left, changed, current));
+		}
+	}
+
+	private void fire(MembershipEvent event) {
+		for (MembershipListener listener : listeners) {
+			if (stopped) {
+				return;
+			}
+			try {
+				listener.membershipChanged(event);
+			} catch (RuntimeException e) {
+				// one bad listener must not starve the others.
+			}
+		}
+	}
+
+	long nextDelay() {
+		long delay = intervalNanos;
+		if (jitterNanos > 0) {
+			delay += (long) (random.nextDouble() * jitterNanos);
+		}
+		if (backoff != null) {
+			delay = Math.max(delay, backoff.remainingNanos());
+		}
+		return delay;
+	}
+
+	private void schedule(long delayNanos) {
+		if (stopped) {
+			return;
+		}
+		try {
+			next = scheduler.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// the scheduler is shutting down.
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable, versioned view of the members, as published by
+ * `AwsAutoDiscovery`.
+ *
+ * A new snapshot, with the next version, is only published when the members
+ * or their order change, so a reader that remembers the version it last saw
+ * can tell whether anything changed with one volatile read and no
+ * allocation:
+ *
+ * ```
+ * MembershipSnapshot changed = discovery.snapshotIfNewerThan(seen);
+ * if (changed != null) {
+ *   seen = changed.getVersion();
+ *   reconnect(changed.getPrivateIpAddresses());
+ * }
+ * ```
+ */
+public final class MembershipSnapshot {
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * The snapshot before any members are found, version zero.
+	 */
+	public static final MembershipSnapshot EMPTY = new MembershipSnapshot(0,
+			Membership.EMPTY, Collections.<String> emptyList(), 0);
+
+	private final long version;
+	private final Membership membership;
+	private final List<String> privateIpAddresses;
+	private final long contentHash;
+	private final long publishedAt;
+
+	private MembershipSnapshot(long version, Membership membership,
+			List<String> privateIpAddresses, long publishedAt) {
+		this.version = version;
+		this.membership = membership;
+		this.privateIpAddresses = Collections
+				.unmodifiableList(privateIpAddresses);
+		this.contentHash = contentHash(membership, privateIpAddresses);
+		this.publishedAt = publishedAt;
+	}
+
+	/**
+	 * @return the next snapshot, or this one if the members and their order
+	 *         are the same.
+	 */
+	MembershipSnapshot next(Membership membership,
+			List<String> privateIpAddresses) {
+		if (contentHash == contentHash(membership, privateIpAddresses)
+				&& this.membership.equals(membership)
+				&& this.privateIpAddresses.equals(privateIpAddresses)) {
+			return this;
+		}
+		return new MembershipSnapshot(version + 1, membership,
+				privateIpAddresses, System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the version, one higher than the snapshot this one replaced.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return true if this snapshot is newer than the version.
+	 */
+	public boolean isNewerThan(long version) {
+		return this.version > version;
+	}
+
+	public Membership getMembership() {
+		return membership;
+	}
+
+	/**
+	 * @return the addresses of the members, ordered and filtered by the
+	 *         locality and liveness probe. The list cannot be modified and is
+	 *         shared by every reader.
+	 */
+	public List<String> getPrivateIpAddresses() {
+		return privateIpAddresses;
+	}
+
+	/**
+	 * @return a 64 bit FNV-1a hash of the ordered addresses and the instance
+	 *         ids and states of the members.
+	 */
+	public long getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @return when the snapshot was published, in milliseconds since the
+	 *         epoch.
+	 */
+	public long getPublishedAt() {
+		return publishedAt;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("v%d %s", version, privateIpAddresses);
+	}
+
+	static long contentHash(Membership membership,
+			List<String> privateIpAddresses) {
+		long hash = FNV_OFFSET;
+		for (String address : privateIpAddresses) {
+			hash = (hash ^ address.hashCode()) * FNV_PRIME;
+		}
+		for (int i = 0; i < membership.size(); i++) {
+			hash = (hash ^ membership.addressAt(i)) * FNV_PRIME;
+			hash = (hash ^ hash(membership.instanceIdAt(i))) * FNV_PRIME;
+			hash = (hash ^ hash(membership.stateAt(i))) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static int hash(String value) {
+		return value == null ? 0 : value.hashCode();
+	}
+}
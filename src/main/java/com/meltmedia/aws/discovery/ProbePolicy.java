@@ -0,0 +1,17 @@
+package com.meltmedia.aws.discovery;
+
+/**
+ * What is done with members that fail the liveness probe.
+ */
+public enum ProbePolicy {
+	/**
+	 * Unreachable members are returned after the reachable ones, so callers
+	 * that connect to the first few members skip them, and a probe that fails
+	 * for every member still returns them all.
+	 */
+	RANK_LAST,
+	/**
+	 * Unreachable members are left out.
+	 */
+	FILTER
+}
@@ -0,0 +1,68 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.Map;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.http.DefaultErrorResponseHandler;
+import com.amazonaws.http.ExecutionContext;
+import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.transform.DescribeInstancesRequestMarshaller;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSRequestMetrics.Field;
+
+/**
+ * An EC2 client that can read DescribeInstances responses with a
+ * `DescribeInstancesProjection` instead of the SDK's unmarshaller.
+ *
+ * The request is marshalled, signed and sent exactly like
+ * `AmazonEC2Client.describeInstances` does, so retries, request handlers and
+ * the exception unmarshallers, including a fault adapter, all still apply.
+ */
+@SuppressWarnings("deprecation")
+class ProjectingEc2Client extends AmazonEC2Client {
+	private final AWSCredentialsProvider credentialsProvider;
+
+	ProjectingEc2Client(AWSCredentialsProvider credentialsProvider,
+			ClientConfiguration configuration) {
+		super(credentialsProvider, configuration);
+		this.credentialsProvider = credentialsProvider;
+	}
+
+	DescribeInstancesResult describeInstances(
+			DescribeInstancesRequest describeInstancesRequest,
+			DescribeInstancesProjection projection) {
+		ExecutionContext context = createExecutionContext(describeInstancesRequest);
+		AWSRequestMetrics metrics = context.getAwsRequestMetrics();
+		metrics.startEvent(Field.ClientExecuteTime);
+		Request<DescribeInstancesRequest> request = null;
+		Response<DescribeInstancesResult> response = null;
+		try {
+			request = new DescribeInstancesRequestMarshaller()
+					.marshall(describeInstancesRequest);
+			request.setAWSRequestMetrics(metrics);
+			request.setEndpoint(endpoint);
+			request.setTimeOffset(timeOffset);
+			for (Map.Entry<String, String> parameter : describeInstancesRequest
+					.copyPrivateRequestParameters().entrySet()) {
+				request.addParameter(parameter.getKey(), parameter.getValue());
+			}
+			AWSCredentials credentials = credentialsProvider.getCredentials();
+			if (describeInstancesRequest.getRequestCredentials() != null) {
+				credentials = describeInstancesRequest.getRequestCredentials();
+			}
+			context.setCredentials(credentials);
+			response = client.execute(request, projection,
+					new DefaultErrorResponseHandler(exceptionUnmarshallers),
+					context);
+			return response.getAwsResponse();
+		} finally {
+			endClientExecution(metrics, request, response);
+		}
+	}
+}
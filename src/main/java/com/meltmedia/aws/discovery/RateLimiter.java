@@ -0,0 +1,14 @@
+package com.meltmedia.aws.discovery;
+
+/**
+ * Limits the rate of calls made to the EC2 API. Share one instance between
+ * discovery components to give them a single request budget.
+ */
+public interface RateLimiter {
+  /**
+   * Blocks until the caller may make one call.
+   * 
+   * @throws DiscoveryException if the thread is interrupted while waiting.
+   */
+  public void acquire();
+}
@@ -6,6 +6,8 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.util.EntityUtils;
 
 /**
@@ -27,9 +29,67 @@ public class Requests {
 	   *           if there is an error encounted while getting the content.
 	   */
 	  public static String getBody(HttpClient client, URI uri) {
-	    HttpResponse response = getResponse(client, uri);
+	    return body(uri, getResponse(client, uri));
+	  }
+
+	  /**
+	   * Gets the body of the content returned from a GET request to uri, sent
+	   * with the specified header.
+	   * 
+	   * @param client
+	   *          the HttpClient instance to use for the request.
+	   * @param uri
+	   *          the URI to contact.
+	   * @param headerName
+	   *          the name of the header to send.
+	   * @param headerValue
+	   *          the value of the header to send.
+	   * @return the body of the message returned from the GET request.
+	   * @throws InspectionException
+	   *           if there is an error encounted while getting the content.
+	   */
+	  public static String getBody(HttpClient client, URI uri, String headerName, String headerValue) {
+	    HttpGet get = new HttpGet(uri);
+	    get.setHeader(headerName, headerValue);
+	    return body(uri, execute(client, get));
+	  }
+
+	  /**
+	   * Gets the body of the content returned from an empty PUT request to uri,
+	   * sent with the specified header.
+	   * 
+	   * @return the body of the message returned from the PUT request.
+	   * @throws InspectionException
+	   *           if there is an error encounted while getting the content.
+	   */
+	  public static String putBody(HttpClient client, URI uri, String headerName, String headerValue) {
+	    HttpPut put = new HttpPut(uri);
+	    put.setHeader(headerName, headerValue);
+	    return body(uri, execute(client, put));
+	  }
+	  
+	  public static HttpResponse getResponse(HttpClient client, URI uri) {
+	    return execute(client, new HttpGet(uri));
+	  }
+
+	  static HttpResponse execute(HttpClient client, HttpUriRequest request) {
+		    try {
+		    	return client.execute(request);
+		    }
+		    catch( Exception e ) {
+		      throw new RequestFailedException(String.format("could not %s %s", request.getMethod().toLowerCase(), request.getURI()), e);
+		    }		  
+	  }
+
+	  static String body(URI uri, HttpResponse response) {
 	    int statusCode = response.getStatusLine().getStatusCode();
 	    if (statusCode != HttpStatus.SC_OK) {
+	      // release the connection, so pooled clients can reuse it.
+	      try {
+	        EntityUtils.consume(response.getEntity());
+	      } catch (Exception e) {
+	        // the status is the failure worth reporting.
+	      }
 	      throw new InvalidResponse(String.format("%s return status %d", uri, statusCode), response);
 	    }
 	    try {
@@ -38,16 +98,5 @@ public class Requests {
 			throw new InvalidResponse(String.format("failed to parse body of %s", uri), response, e);
 		}
 	  }
-	  
-	  public static HttpResponse getResponse(HttpClient client, URI uri) {
-		    try {
-			    HttpGet get = new HttpGet();
-			    get.setURI(uri);
-		    	return client.execute(get);
-		    }
-		    catch( Exception e ) {
-		      throw new RequestFailedException(String.format("could not get %s", uri), e);
-		    }		  
-	  }
 
 }
@@ -0,0 +1,306 @@
+package com.meltmedia.aws.discovery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the instance details and the last membership found in a small binary
+ * file, so a restarted process can serve discovery before the metadata service
+ * and EC2 have answered.
+ *
+ * ### Format
+ *
+ * ```
+ *   SNAPSHOT ::= MAGIC VERSION SAVED_AT INSTANCE_ID AVAILABILITY_ZONE ENDPOINT
+ *                STRING_COUNT STRING* COUNT MEMBER* CRC
+ *   MEMBER   ::= ADDRESS MEMBER_ID ZONE_INDEX STATE_INDEX LAUNCH_TIME
+ *                TAG_COUNT (KEY_INDEX VALUE_INDEX)*
+ * ```
+ *
+ * The strings are modified UTF-8, the addresses are packed IPv4 ints and the
+ * trailing CRC32 covers everything before it. Availability zones, states and
+ * tag keys and values are written once to the string table and referenced by
+ * index, with -1 for null. The file is written to a temporary file and moved
+ * into place, so readers never see a partial write. A missing, corrupt or
+ * unknown version file is ignored.
+ *
+ * The snapshot records the instance it was taken on, so keep it on storage
+ * that is local to the instance, not baked into an image.
+ */
+public class SnapshotStore {
+	private static final int MAGIC = 0x41414453;
+	private static final int VERSION = 1;
+
+	/**
+	 * The contents of a snapshot file.
+	 */
+	public static class Snapshot {
+		private final long savedAt;
+		private final InstanceDetails instanceDetails;
+		private final Membership membership;
+
+		Snapshot(long savedAt, InstanceDetails instanceDetails,
+				Membership membership) {
+			this.savedAt = savedAt;
+			this.instanceDetails = instanceDetails;
+			this.membership = membership;
+		}
+
+		/**
+		 * @return when the snapshot was written, in milliseconds since the
+		 *         epoch.
+		 */
+		public long getSavedAt() {
+			return savedAt;
+		}
+
+		public InstanceDetails getInstanceDetails() {
+			return instanceDetails;
+		}
+
+		/**
+		 * @return the private IP addresses of the members when the snapshot was
+		 *         written.
+		 */
+		public List<String> getMembers() {
+			return Collections.unmodifiableList(membership
+					.getPrivateIpAddresses());
+		}
+
+		/**
+		 * @return the members when the snapshot was written.
+		 */
+		public Membership getMembership() {
+			return membership;
+		}
+	}
+
+	private final File file;
+
+	public SnapshotStore(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Reads the snapshot file.
+	 *
+	 * @return the snapshot, or null if the file is missing or cannot be read.
+	 */
+	public Snapshot load() {
+		if (!file.isFile()) {
+			return null;
+		}
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(file));
+			byte[] bytes = new byte[(int) file.length()];
+			new DataInputStream(in).readFully(bytes);
+			return decode(bytes);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Atomically replaces the snapshot file.
+	 *
+	 * @throws IOException
+	 *           if the file could not be written.
+	 */
+	public void save(InstanceDetails details, List<String> members)
+			throws IOException {
+		Membership.Builder membership = Membership.builder();
+		for (String member : members) {
+			membership.add(member);
+		}
+		save(details, membership.build());
+	}
+
+	/**
+	 * Atomically replaces the snapshot file.
+	 *
+	 * @throws IOException
+	 *           if the file could not be written.
+	 */
+	public void save(InstanceDetails details, Membership members)
+			throws IOException {
+		byte[] bytes = encode(System.currentTimeMillis(), details, members);
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("could not create " + parent);
+		}
+		File temp = File.createTempFile(file.getName(), ".tmp", parent);
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(temp);
+			BufferedOutputStream buffered = new BufferedOutputStream(out);
+			buffered.write(bytes);
+			buffered.flush();
+			out.getFD().sync();
+			out.close();
+			out = null;
+			Files.move(temp.toPath(), file.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			closeQuietly(out);
+			if (temp.exists()) {
+				temp.delete();
+			}
+		}
+	}
+
+	static byte[] encode(long savedAt, InstanceDetails details,
+			Membership members) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				64 + members.size() * 32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeLong(savedAt);
+		out.writeUTF(details.getInstanceId());
+		out.writeUTF(details.getAvailabilityZone());
+		out.writeUTF(details.getEndpoint());
+		Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < members.size(); i++) {
+			index(strings, members.availabilityZoneAt(i));
+			index(strings, members.stateAt(i));
+			for (String tag : members.tagsAt(i)) {
+				index(strings, tag);
+			}
+		}
+		out.writeInt(strings.size());
+		for (String string : strings.keySet()) {
+			out.writeUTF(string);
+		}
+		out.writeInt(members.size());
+		for (int i = 0; i < members.size(); i++) {
+			String instanceId = members.instanceIdAt(i);
+			out.writeInt(members.addressAt(i));
+			out.writeUTF(instanceId != null ? instanceId : "");
+			out.writeInt(index(strings, members.availabilityZoneAt(i)));
+			out.writeInt(index(strings, members.stateAt(i)));
+			out.writeLong(members.launchTimeAt(i));
+			String[] tags = members.tagsAt(i);
+			out.writeInt(tags.length / 2);
+			for (String tag : tags) {
+				out.writeInt(index(strings, tag));
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	static Snapshot decode(byte[] bytes) throws IOException {
+		if (bytes.length < 8) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length - 8);
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes));
+		if (in.readInt() != MAGIC) {
+			return null;
+		}
+		if (in.readByte() != VERSION) {
+			return null;
+		}
+		long savedAt = in.readLong();
+		InstanceDetails details = new InstanceDetails();
+		details.setInstanceId(in.readUTF());
+		details.setAvailabilityZone(in.readUTF());
+		details.setEndpoint(in.readUTF());
+		int stringCount = in.readInt();
+		if (stringCount < 0 || stringCount > bytes.length / 2) {
+			return null;
+		}
+		String[] strings = new String[stringCount];
+		for (int i = 0; i < stringCount; i++) {
+			strings[i] = in.readUTF();
+		}
+		int count = in.readInt();
+		if (count < 0 || count > (bytes.length / 4)) {
+			return null;
+		}
+		Membership.Builder members = Membership.builder();
+		for (int i = 0; i < count; i++) {
+			int address = in.readInt();
+			String instanceId = in.readUTF();
+			String zone = string(strings, in.readInt());
+			String state = string(strings, in.readInt());
+			long launchTime = in.readLong();
+			int tagCount = in.readInt();
+			if (tagCount < 0 || tagCount > bytes.length / 8) {
+				return null;
+			}
+			String[] tags = new String[tagCount * 2];
+			for (int j = 0; j < tags.length; j++) {
+				tags[j] = string(strings, in.readInt());
+			}
+			members.add(address, instanceId.isEmpty() ? null : instanceId, zone,
+					state, launchTime, tags);
+		}
+		if (in.readLong() != crc.getValue()) {
+			return null;
+		}
+		return new Snapshot(savedAt, details, members.build());
+	}
+
+	private static int index(Map<String, Integer> strings, String value) {
+		if (value == null) {
+			return -1;
+		}
+		Integer index = strings.get(value);
+		if (index == null) {
+			strings.put(value, index = strings.size());
+		}
+		return index;
+	}
+
+	private static String string(String[] strings, int index)
+			throws IOException {
+		if (index == -1) {
+			return null;
+		}
+		if (index < 0 || index >= strings.length) {
+			throw new IOException("bad string index " + index);
+		}
+		return strings[index];
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// nothing left to do.
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.Random;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Tracks how long discovery should stay away from EC2 after it has been
+ * throttled.
+ *
+ * Each consecutive throttling fault picks the next delay with decorrelated
+ * jitter, a random value between the base delay and three times the previous
+ * delay, capped at the maximum delay. Nodes that were throttled together spread
+ * out instead of retrying in lockstep. A successful call resets the delay back
+ * to the base.
+ */
+public class ThrottleBackoff {
+	private final long baseNanos;
+	private final long capNanos;
+	private final Random random;
+
+	private long previousNanos;
+	private long untilNanos;
+	private boolean backingOff = false;
+
+	public ThrottleBackoff(long baseNanos, long capNanos) {
+		this(baseNanos, capNanos, new Random());
+	}
+
+	ThrottleBackoff(long baseNanos, long capNanos, Random random) {
+		if (baseNanos <= 0 || capNanos < baseNanos) {
+			throw new IllegalArgumentException(
+					"the base delay must be positive and no greater than the cap");
+		}
+		this.baseNanos = baseNanos;
+		this.capNanos = capNanos;
+		this.random = random;
+		this.previousNanos = baseNanos;
+	}
+
+	/**
+	 * Records a throttling fault and starts the next backoff period.
+	 *
+	 * @return the length of the backoff period, in nanoseconds.
+	 */
+	public synchronized long onThrottled() {
+		long upper = Math.min(capNanos, previousNanos * 3);
+		long delay = baseNanos
+				+ (long) (random.nextDouble() * Math.max(0, upper - baseNanos));
+		previousNanos = delay;
+		untilNanos = System.nanoTime() + delay;
+		backingOff = true;
+		return delay;
+	}
+
+	/**
+	 * Records a successful call, ending any backoff period.
+	 */
+	public synchronized void onSuccess() {
+		previousNanos = baseNanos;
+		backingOff = false;
+	}
+
+	/**
+	 * @return true if calls to EC2 should be avoided right now.
+	 */
+	public boolean isBackingOff() {
+		return remainingNanos() > 0;
+	}
+
+	/**
+	 * @return the nanoseconds left in the current backoff period, zero if
+	 *         there is none.
+	 */
+	public synchronized long remainingNanos() {
+		if (!backingOff) {
+			return 0;
+		}
+		return Math.max(0, untilNanos - System.nanoTime());
+	}
+
+	/**
+	 * Returns true if the exception is an EC2 throttling fault.
+	 */
+	public static boolean isThrottle(Throwable t) {
+		if (!(t instanceof AmazonServiceException)) {
+			return false;
+		}
+		String code = ((AmazonServiceException) t).getErrorCode();
+		return "RequestLimitExceeded".equals(code) || "Throttling".equals(code)
+				|| "ThrottlingException".equals(code);
+	}
+}
@@ -0,0 +1,79 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter. Tokens are added at a fixed rate, up to the
+ * burst size, and each call takes one token. Callers that find the bucket
+ * empty reserve the next token and sleep until it is added, so waiting callers
+ * are served in the order they arrived. A caller interrupted while it waits
+ * gives its token back.
+ */
+public class TokenBucketRateLimiter implements RateLimiter {
+	private final double nanosPerToken;
+	private final double burst;
+
+	private double tokens;
+	private long refilledAt;
+
+	/**
+	 * Creates a limiter that allows the specified calls per second, with a
+	 * burst of one second's worth of calls.
+	 */
+	public TokenBucketRateLimiter(double callsPerSecond) {
+		this(callsPerSecond, Math.max(1, callsPerSecond));
+	}
+
+	/**
+	 * @param callsPerSecond
+	 *          the sustained rate of calls.
+	 * @param burst
+	 *          the number of calls that can be made at once after the limiter
+	 *          has been idle.
+	 */
+	public TokenBucketRateLimiter(double callsPerSecond, double burst) {
+		if (callsPerSecond <= 0 || burst < 1) {
+			throw new IllegalArgumentException(
+					"the rate must be positive and the burst at least one");
+		}
+		this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / callsPerSecond;
+		this.burst = burst;
+		this.tokens = burst;
+		this.refilledAt = System.nanoTime();
+	}
+
+	@Override
+	public void acquire() {
+		long waitNanos = reserve();
+		if (waitNanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		} catch (InterruptedException e) {
+			release();
+			Thread.currentThread().interrupt();
+			throw new DiscoveryException("interrupted while waiting to call EC2", e);
+		}
+	}
+
+	/**
+	 * Takes a token, going into debt if the bucket is empty.
+	 * 
+	 * @return the nanoseconds to wait before the token may be used.
+	 */
+	synchronized long reserve() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilledAt) / nanosPerToken);
+		refilledAt = now;
+		tokens -= 1;
+		return tokens >= 0 ? 0 : (long) (-tokens * nanosPerToken);
+	}
+
+	/**
+	 * Returns a reserved token that was not used.
+	 */
+	synchronized void release() {
+		tokens = Math.min(burst, tokens + 1);
+	}
+}
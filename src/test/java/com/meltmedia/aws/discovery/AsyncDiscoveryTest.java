@@ -0,0 +1,147 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class AsyncDiscoveryTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	ExecutorService executor;
+	AwsAutoDiscovery discovery;
+
+	@Before
+	public void setUp() throws Exception {
+		executor = Executors.newFixedThreadPool(2, new DaemonThreadFactory("async-test"));
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withCacheTtl(1, TimeUnit.MINUTES)
+				.withExecutor(executor)
+				.build()
+				.start();
+	}
+
+	@After
+	public void tearDown() {
+		discovery.stop();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void shouldQueryOnTheExecutor() throws Exception {
+		final AtomicReference<String> thread = new AtomicReference<String>();
+		discovery.stop();
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withExecutor(command -> executor.execute(() -> {
+					thread.set(Thread.currentThread().getName());
+					command.run();
+				}))
+				.build()
+				.start();
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.2", "10.0.0.1"));
+
+		List<String> members = discovery.getPrivateIpAddressesAsync().get(5, TimeUnit.SECONDS);
+
+		assertThat("members found", members, contains("10.0.0.1", "10.0.0.2"));
+		assertThat("queried on the executor", thread.get(), startsWith("async-test"));
+	}
+
+	@Test
+	public void shouldCompleteCachedMembersAtOnce() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1"));
+		discovery.getPrivateIpAddresses();
+
+		CompletableFuture<List<String>> members = discovery.getPrivateIpAddressesAsync();
+
+		assertThat("done without a query", members.isDone(), equalTo(true));
+		assertThat("members found", members.get(), contains("10.0.0.1"));
+	}
+
+	@Test
+	public void shouldFailAtDeadline() throws Exception {
+		stubSlowMembers(3000);
+
+		long start = System.nanoTime();
+		try {
+			discovery.getPrivateIpAddressesAsync(200, TimeUnit.MILLISECONDS).get();
+			throw new AssertionError("query should time out");
+		} catch (ExecutionException e) {
+			assertThat("timed out", e.getCause(), instanceOf(TimeoutException.class));
+		}
+		long elapsed = System.nanoTime() - start;
+
+		assertThat("failed at the deadline", elapsed, lessThan(TimeUnit.MILLISECONDS.toNanos(1500)));
+	}
+
+	@Test
+	public void shouldCancelQuery() throws Exception {
+		stubSlowMembers(3000);
+
+		CompletableFuture<List<String>> members = discovery.getPrivateIpAddressesAsync();
+		assertThat("cancelled", members.cancel(true), equalTo(true));
+		assertThat("cancelled", members.isCancelled(), equalTo(true));
+	}
+
+	@Test
+	public void shouldKeepSharedQueryRunningPastOneDeadline() throws Exception {
+		stubSlowMembers(1000);
+
+		// the first caller starts the query, the second joins it.
+		CompletableFuture<List<String>> hasty =
+				discovery.getPrivateIpAddressesAsync(200, TimeUnit.MILLISECONDS);
+		TimeUnit.MILLISECONDS.sleep(50);
+		CompletableFuture<List<String>> patient = discovery.getPrivateIpAddressesAsync();
+		try {
+			hasty.get();
+			throw new AssertionError("query should time out");
+		} catch (ExecutionException e) {
+			assertThat("timed out", e.getCause(), instanceOf(TimeoutException.class));
+		}
+
+		assertThat("shared query finished", patient.get(5, TimeUnit.SECONDS),
+				contains("10.0.0.1"));
+		new WireMock("localhost", 8089).verifyThat(1, postRequestedFor(urlEqualTo("/"))
+				.withRequestBody(containing("Action=DescribeInstances")));
+	}
+
+	static void stubSlowMembers(int delay) {
+		stubFor(post(urlEqualTo("/"))
+				.withRequestBody(containing("Action=DescribeInstances"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withFixedDelay(delay)
+						.withHeader("Content-Type", "text/xml")
+						.withBody(Ec2Responses.describeInstances("10.0.0.1"))));
+	}
+}
@@ -0,0 +1,193 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Tag;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class AwsAutoDiscoveryTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	WireMock ec2 = new WireMock("localhost", 8089);
+
+	AwsAutoDiscovery discovery;
+
+	@After
+	public void stop() {
+		if (discovery != null) {
+			discovery.stop();
+		}
+	}
+
+	@Test
+	public void shouldOnlyFilterOnNamedTags() {
+		List<Filter> filters = AwsAutoDiscovery.asFilters(
+				Arrays.asList("cluster", "environment"),
+				Arrays.asList(new Tag("cluster", "web"), new Tag("Name", "web-1"),
+						new Tag("environment", "prod")));
+
+		assertThat("correct filter count", filters.size(), equalTo(2));
+		assertThat("correct first name", filters.get(0).getName(), equalTo("tag:cluster"));
+		assertThat("correct first values", filters.get(0).getValues(), contains("web"));
+		assertThat("correct second name", filters.get(1).getName(), equalTo("tag:environment"));
+		assertThat("correct second values", filters.get(1).getValues(), contains("prod"));
+	}
+
+	@Test
+	public void shouldResolveTagsOnceAtStart() throws Exception {
+		stubSelfTags("web");
+		stubRoleMembers("web", "10.0.0.1");
+		discovery = tagged().build().start();
+
+		verifyTagLookups(1);
+		assertThat("self filter", discovery.getSelfFilters().get(0).getValues(), contains("web"));
+	}
+
+	@Test
+	public void shouldNotLookUpTagsOnMemberQueries() throws Exception {
+		stubSelfTags("web");
+		stubRoleMembers("web", "10.0.0.1");
+		discovery = tagged().build().start();
+
+		for (int i = 0; i < 3; i++) {
+			assertThat("members", discovery.getPrivateIpAddresses(), contains("10.0.0.1"));
+		}
+
+		verifyTagLookups(1);
+		verifyMemberQueries(3);
+	}
+
+	@Test
+	public void shouldInvalidateWhenTagsChange() throws Exception {
+		stubSelfTags("web");
+		stubRoleMembers("web", "10.0.0.1");
+		stubRoleMembers("worker", "10.0.0.2");
+		discovery = tagged()
+				.withCacheTtl(1, TimeUnit.MINUTES)
+				.withSelfTagRefreshInterval(100, TimeUnit.MILLISECONDS)
+				.build()
+				.start();
+		assertThat("web members", discovery.getPrivateIpAddresses(), contains("10.0.0.1"));
+
+		// the cache outlives the test, so only the refresh can change the
+		// members.
+		stubSelfTags("worker");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!discovery.getPrivateIpAddresses().contains("10.0.0.2")) {
+			if (System.nanoTime() > deadline) {
+				throw new AssertionError("cache not invalidated");
+			}
+			Thread.sleep(10);
+		}
+
+		assertThat("worker filter", discovery.getSelfFilters().get(0).getValues(), contains("worker"));
+		verifyMemberQueries(2);
+	}
+
+	@Test
+	public void shouldKeepPollingWithRefreshAhead() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1"));
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			discovery = AwsAutoDiscovery.builder()
+					.withCredentials("access", "secret")
+					.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+					.withCacheTtl(10, TimeUnit.SECONDS)
+					.withRefreshAhead(1, TimeUnit.MILLISECONDS)
+					.withPollInterval(20, TimeUnit.MILLISECONDS)
+					.withScheduler(scheduler)
+					.build()
+					.start();
+			discovery.getPrivateIpAddresses();
+
+			// hold the scheduler until a poll is due, then queue a refresh ahead
+			// behind that poll.
+			final CountDownLatch release = new CountDownLatch(1);
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			Thread.sleep(100);
+			discovery.getPrivateIpAddresses();
+			long loads = discovery.getCacheStats().getLoads();
+			release.countDown();
+
+			Thread.sleep(200);
+			assertThat("still polling", discovery.getCacheStats().getLoads(), greaterThan(loads + 1));
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+	static AwsAutoDiscovery.Builder tagged() {
+		return AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withTagNames(Parsers.tagNames("role"));
+	}
+
+	/**
+	 * Answers the lookup of this instance's tags.
+	 */
+	static void stubSelfTags(String role) {
+		stubFor(post(urlEqualTo("/"))
+				.withRequestBody(containing("InstanceId.1=i-00000000"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withHeader("Content-Type", "text/xml")
+						.withBody(Ec2Responses.describeInstanceItems(null,
+								Ec2Responses.instance("i-00000000", "10.0.0.9", "us-east-1a", "role=" + role)))));
+	}
+
+	/**
+	 * Answers the member query filtered on the role.
+	 */
+	static void stubRoleMembers(String role, String address) {
+		stubFor(post(urlEqualTo("/"))
+				.withRequestBody(containing("Filter.1.Value.1=" + role))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withHeader("Content-Type", "text/xml")
+						.withBody(Ec2Responses.describeInstances(address))));
+	}
+
+	void verifyTagLookups(int calls) {
+		ec2.verifyThat(calls, postRequestedFor(urlEqualTo("/"))
+				.withRequestBody(containing("InstanceId.1=i-00000000")));
+	}
+
+	void verifyMemberQueries(int calls) {
+		ec2.verifyThat(calls, postRequestedFor(urlEqualTo("/"))
+				.withRequestBody(containing("Filter.1.Name=tag%3Arole")));
+	}
+}
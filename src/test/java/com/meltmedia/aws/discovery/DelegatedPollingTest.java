@@ -0,0 +1,247 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+/**
+ * Runs a cluster of three nodes on the loopback addresses 127.0.0.1 to
+ * 127.0.0.3, where i-00000001 is elected.
+ */
+public class DelegatedPollingTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	WireMock ec2 = new WireMock("localhost", 8089);
+
+	int port = freePort();
+
+	List<AwsAutoDiscovery> nodes = new ArrayList<AwsAutoDiscovery>();
+
+	@After
+	public void stop() {
+		for (AwsAutoDiscovery node : nodes) {
+			node.stop();
+		}
+	}
+
+	@Test
+	public void shouldElectTheLowestInstanceId() throws Exception {
+		ThrottlingTest.stubMembers(members(3));
+		AwsAutoDiscovery second = start(2);
+		AwsAutoDiscovery third = start(3);
+		AwsAutoDiscovery leader = start(1);
+
+		assertThat("leader", leader.isFollower(), equalTo(false));
+		awaitFollowing(second);
+		awaitFollowing(third);
+	}
+
+	@Test
+	public void shouldServeFollowersWithoutCallingEc2() throws Exception {
+		ThrottlingTest.stubMembers(members(3));
+		AwsAutoDiscovery second = start(2);
+		AwsAutoDiscovery third = start(3);
+		start(1);
+		awaitFollowing(second);
+		awaitFollowing(third);
+
+		for (int i = 0; i < 10; i++) {
+			assertThat("shared members", second.getPrivateIpAddresses(),
+					contains("127.0.0.1", "127.0.0.2", "127.0.0.3"));
+			third.getMembership();
+		}
+		assertDescribeCalls(3);
+	}
+
+	@Test
+	public void shouldShareChangedMembers() throws Exception {
+		ThrottlingTest.stubMembers(members(3));
+		AwsAutoDiscovery second = start(2);
+		AwsAutoDiscovery leader = start(1);
+		awaitFollowing(second);
+		long version = second.currentSnapshot().getVersion();
+
+		ThrottlingTest.stubMembers(members(4));
+		leader.getMembership();
+
+		MembershipSnapshot changed = awaitChange(second, version);
+		assertThat("new member", changed.getPrivateIpAddresses(),
+				contains("127.0.0.1", "127.0.0.2", "127.0.0.3", "127.0.0.4"));
+		assertDescribeCalls(3);
+	}
+
+	@Test
+	public void shouldPollDirectlyWhenTheLeaderGoesQuiet() throws Exception {
+		ThrottlingTest.stubMembers(members(3));
+		AwsAutoDiscovery second = start(2);
+		AwsAutoDiscovery leader = start(1);
+		awaitFollowing(second);
+
+		leader.stop();
+		TimeUnit.MILLISECONDS.sleep(700);
+
+		assertThat("stale", second.isFollower(), equalTo(false));
+		second.getMembership();
+		assertDescribeCalls(3);
+	}
+
+	@Test
+	public void shouldLeadAgainAfterRestart() throws Exception {
+		ThrottlingTest.stubMembers(members(3));
+		AwsAutoDiscovery second = start(2);
+		AwsAutoDiscovery leader = start(1);
+		awaitFollowing(second);
+
+		leader.stop();
+		TimeUnit.MILLISECONDS.sleep(700);
+		assertThat("stale", second.isFollower(), equalTo(false));
+
+		leader.start();
+		leader.getMembership();
+		awaitFollowing(second);
+	}
+
+	@Test
+	public void shouldEncodeUnchangedMembersOnce() {
+		DelegatedPolling polling = new DelegatedPolling(port, TimeUnit.SECONDS.toNanos(1), instanceId(1));
+		try {
+			List<Filter> filters = Parsers.filters("tag:role=web");
+			polling.polled(membership(3), filters, 1);
+			byte[] first = polling.encoded();
+			assertThat("encoded", first, notNullValue());
+
+			polling.polled(membership(3), filters, 1);
+			assertThat("reused", polling.encoded(), sameInstance(first));
+
+			polling.polled(membership(4), filters, 2);
+			assertThat("encoded again", polling.encoded(), not(sameInstance(first)));
+		} finally {
+			polling.close();
+		}
+	}
+
+	@Test
+	public void shouldIgnoreNodesWithOtherFilters() throws Exception {
+		ThrottlingTest.stubMembers(members(3));
+		AwsAutoDiscovery second = start(2, "tag:role=worker");
+		AwsAutoDiscovery leader = start(1);
+
+		leader.getMembership();
+		TimeUnit.MILLISECONDS.sleep(200);
+		assertThat("other cluster", second.isFollower(), equalTo(false));
+	}
+
+	private AwsAutoDiscovery start(int node) throws Exception {
+		return start(node, "");
+	}
+
+	private AwsAutoDiscovery start(int node, String filters) throws Exception {
+		InstanceDetails details = Ec2Responses.instanceDetails("http://localhost:8089");
+		details.setInstanceId(instanceId(node));
+		AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(details)
+				.withFilters(Parsers.filters(filters))
+				.withDelegatedPolling(port)
+				.withDelegationStaleness(500, TimeUnit.MILLISECONDS)
+				.build()
+				.start();
+		nodes.add(discovery);
+		// the first query elects the leader and opens the channel.
+		discovery.getMembership();
+		return discovery;
+	}
+
+	private static String instanceId(int node) {
+		return String.format("i-%08d", node);
+	}
+
+	private static String members(int size) {
+		String[] items = new String[size];
+		for (int node = 1; node <= size; node++) {
+			items[node - 1] = Ec2Responses.instance(instanceId(node), "127.0.0." + node,
+					"us-east-1a");
+		}
+		return Ec2Responses.describeInstanceItems(null, items);
+	}
+
+	private static Membership membership(int size) {
+		Membership.Builder members = Membership.builder();
+		for (int node = 1; node <= size; node++) {
+			members.add(Ipv4.pack("127.0.0." + node), instanceId(node), "us-east-1a", "running", 0);
+		}
+		return members.build();
+	}
+
+	private void assertDescribeCalls(int calls) {
+		ec2.verifyThat(calls, postRequestedFor(urlEqualTo("/"))
+				.withRequestBody(containing("Action=DescribeInstances")));
+	}
+
+	private static void awaitFollowing(final AwsAutoDiscovery node) throws Exception {
+		await(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return node.isFollower();
+			}
+		});
+	}
+
+	private static MembershipSnapshot awaitChange(final AwsAutoDiscovery node,
+			final long version) throws Exception {
+		await(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				node.getMembership();
+				return node.snapshotIfNewerThan(version) != null;
+			}
+		});
+		return node.currentSnapshot();
+	}
+
+	private static void await(Callable<Boolean> condition) throws Exception {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!condition.call()) {
+			if (System.nanoTime() > deadline) {
+				throw new AssertionError("timed out");
+			}
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+	}
+
+	private static int freePort() {
+		try {
+			ServerSocket socket = new ServerSocket(0);
+			try {
+				return socket.getLocalPort();
+			} finally {
+				socket.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class DescribeInstancesProjectionTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	AwsAutoDiscovery full;
+	AwsAutoDiscovery projected;
+
+	@After
+	public void tearDown() {
+		if (full != null) {
+			full.stop();
+		}
+		if (projected != null) {
+			projected.stop();
+		}
+	}
+
+	@Test
+	public void shouldMatchSdkUnmarshaller() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.fleet(1000));
+		full = discovery(false);
+		projected = discovery(true);
+
+		Membership expected = full.getMembership();
+		Membership actual = projected.getMembership();
+
+		assertThat("whole fleet", actual.size(), equalTo(1000));
+		assertThat("same members", actual, equalTo(expected));
+		for (int i = 0; i < actual.size(); i++) {
+			assertThat("zone", actual.availabilityZoneAt(i), equalTo(expected.availabilityZoneAt(i)));
+			assertThat("launch time", actual.launchTimeAt(i), equalTo(expected.launchTimeAt(i)));
+		}
+		assertThat("filtered tag kept", actual.get(0).getTags().get("cluster"), equalTo("search"));
+		assertThat("other tags skipped", actual.get(0).getTags(), not(hasKey("Name")));
+		assertThat("all tags without projection", expected.get(0).getTags(), hasKey("Name"));
+	}
+
+	@Test
+	public void shouldSkipNestedElements() throws Exception {
+		DescribeInstancesResult result = new DescribeInstancesProjection(null)
+				.parse(new ByteArrayInputStream(Ec2Responses.fleet(1).getBytes("UTF-8")));
+
+		Instance instance = result.getReservations().get(0).getInstances().get(0);
+		assertThat("reservation", result.getReservations().get(0).getReservationId(), equalTo("r-1a2b3c4d"));
+		assertThat("instance id", instance.getInstanceId(), equalTo("i-00000000"));
+		assertThat("primary address, not the interface address", instance.getPrivateIpAddress(), equalTo("10.0.0.1"));
+		assertThat("state code", instance.getState().getCode(), equalTo(16));
+		assertThat("vpc", instance.getVpcId(), equalTo("vpc-1a2b3c4d"));
+		assertThat("instance type", instance.getInstanceType(), equalTo("m3.large"));
+		assertThat("all tags", instance.getTags().size(), equalTo(3));
+		assertThat("block devices skipped", instance.getBlockDeviceMappings().isEmpty(), equalTo(true));
+		assertThat("last page", result.getNextToken(), nullValue());
+	}
+
+	@Test
+	public void shouldReadNextToken() throws Exception {
+		DescribeInstancesResult result = new DescribeInstancesProjection(null)
+				.parse(new ByteArrayInputStream(Ec2Responses.describeInstancesPage("page-2", "10.0.0.1")
+						.getBytes("UTF-8")));
+
+		assertThat("next token", result.getNextToken(), equalTo("page-2"));
+	}
+
+	@Test
+	public void shouldStillUnmarshalFaults() throws Exception {
+		ThrottlingTest.stubThrottled();
+		projected = discovery(true);
+
+		try {
+			projected.getPrivateIpAddresses();
+			throw new AssertionError("expected a fault");
+		} catch (AmazonServiceException e) {
+			assertThat("error code", e.getErrorCode(), equalTo("RequestLimitExceeded"));
+		}
+	}
+
+	AwsAutoDiscovery discovery(boolean projection) throws Exception {
+		return AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withFilters(Arrays.asList(new Filter("tag:cluster", Arrays.asList("search"))))
+				.withProjection(projection)
+				.build()
+				.start();
+	}
+}
@@ -0,0 +1,167 @@
+package com.meltmedia.aws.discovery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class DiscoveryEventsTest {
+	static final String DESCRIBE = "com.meltmedia.aws.discovery.DescribeInstances";
+	static final String FETCH = "com.meltmedia.aws.discovery.MetadataFetch";
+	static final String FAULT = "com.meltmedia.aws.discovery.Fault";
+
+	Ec2Simulator simulator;
+	Recording recording;
+	AwsAutoDiscovery discovery;
+
+	@Before
+	public void start() throws Exception {
+		assumeTrue(DiscoveryEvents.AVAILABLE);
+		recording = new Recording();
+		recording.enable(DESCRIBE);
+		recording.enable(FETCH);
+		recording.enable(FAULT);
+		recording.start();
+	}
+
+	@After
+	public void stop() {
+		if (discovery != null) {
+			discovery.stop();
+		}
+		if (simulator != null) {
+			simulator.close();
+		}
+		if (recording != null) {
+			recording.close();
+		}
+	}
+
+	@Test
+	public void shouldRecordEachQueryAcrossItsPages() throws Exception {
+		simulator = Ec2Simulator.builder().withFleetSize(12).build().start();
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(simulator.instanceDetails(0))
+				.withFilters(Parsers.filters("instance-state-name=running"))
+				.withMaxResults(5)
+				.build()
+				.start();
+
+		discovery.getPrivateIpAddresses();
+
+		List<RecordedEvent> queries = events(DESCRIBE);
+		assertThat("one event per query", queries, hasSize(1));
+		RecordedEvent query = queries.get(0);
+		assertThat("operation", query.getString("operation"), equalTo("MEMBER_QUERY"));
+		assertThat("filters", query.getInt("filters"), equalTo(1));
+		assertThat("pages", query.getInt("pages"), equalTo(3));
+		assertThat("instances", query.getInt("instances"), equalTo(12));
+		assertThat("success", query.getBoolean("success"), equalTo(true));
+	}
+
+	@Test
+	public void shouldRecordEachMetadataFetch() throws Exception {
+		simulator = Ec2Simulator.builder().withFleetSize(1).build().start();
+		InstanceInspector inspector = InstanceInspector.builder()
+				.withBaseUri(simulator.metadataUri(0))
+				.build();
+		try {
+			inspector.inspect();
+		} finally {
+			inspector.close();
+		}
+
+		List<RecordedEvent> fetches = events(FETCH);
+		assertThat("instance id and availability zone", fetches, hasSize(2));
+		for (RecordedEvent fetch : fetches) {
+			assertThat("success", fetch.getBoolean("success"), equalTo(true));
+		}
+	}
+
+	@Test
+	public void shouldRecordFaults() throws Exception {
+		simulator = Ec2Simulator.builder().withFleetSize(1).withFaultRate(1).build().start();
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(simulator.instanceDetails(0))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withFaultEventListener(new FaultEventListener() {
+					@Override
+					public void fault(FaultEvent event) {
+					}
+				})
+				.build()
+				.start();
+
+		try {
+			discovery.getPrivateIpAddresses();
+		} catch (AmazonServiceException e) {
+			// expected, every call is throttled.
+		}
+
+		List<RecordedEvent> faults = events(FAULT);
+		assertThat("one fault", faults, hasSize(1));
+		assertThat("error code", faults.get(0).getString("errorCode"),
+				equalTo("RequestLimitExceeded"));
+		assertThat("status code", faults.get(0).getInt("statusCode"), greaterThan(0));
+		RecordedEvent query = events(DESCRIBE).get(0);
+		assertThat("failed query", query.getBoolean("success"), equalTo(false));
+		assertThat("no pages", query.getInt("pages"), equalTo(0));
+	}
+
+	@Test
+	public void shouldRecordFaultsWithoutAListener() throws Exception {
+		simulator = Ec2Simulator.builder().withFleetSize(1).withFaultRate(1).build().start();
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(simulator.instanceDetails(0))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.build()
+				.start();
+
+		try {
+			discovery.getPrivateIpAddresses();
+		} catch (AmazonServiceException e) {
+			// expected, every call is throttled.
+		}
+
+		assertThat("one fault", events(FAULT), hasSize(1));
+	}
+
+	private List<RecordedEvent> events(String name) throws Exception {
+		if (recording.getState() == RecordingState.RUNNING) {
+			recording.stop();
+		}
+		File file = File.createTempFile("discovery", ".jfr");
+		try {
+			recording.dump(file.toPath());
+			List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+				if (event.getEventType().getName().equals(name)) {
+					events.add(event);
+				}
+			}
+			return events;
+		} finally {
+			file.delete();
+		}
+	}
+}
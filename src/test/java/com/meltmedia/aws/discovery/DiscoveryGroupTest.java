@@ -0,0 +1,203 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Tag;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class DiscoveryGroupTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	AwsAutoDiscovery web;
+	AwsAutoDiscovery worker;
+	AwsAutoDiscovery unsupported;
+
+	@Before
+	public void setUp() throws Exception {
+		web = discovery("tag:env=prod;tag:role=web");
+		worker = discovery("tag:env=prod;tag:role=worker");
+		unsupported = discovery("tag:env=prod;key-name=deploy");
+	}
+
+	@After
+	public void tearDown() {
+		web.stop();
+		worker.stop();
+		unsupported.stop();
+	}
+
+	@Test
+	public void shouldPartitionOneQuery() {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstanceItems(null,
+				Ec2Responses.instance("i-1", "10.0.0.1", "us-east-1a", "env=prod", "role=web"),
+				Ec2Responses.instance("i-2", "10.0.0.2", "us-east-1a", "env=prod", "role=worker"),
+				Ec2Responses.instance("i-3", "10.0.0.3", "us-east-1b", "env=prod", "role=web")));
+
+		Map<AwsAutoDiscovery, List<String>> members = new DiscoveryGroup(Arrays.asList(web, worker))
+				.getPrivateIpAddresses();
+
+		assertThat("web members", members.get(web), contains("10.0.0.1", "10.0.0.3"));
+		assertThat("worker members", members.get(worker), contains("10.0.0.2"));
+		verify(1, postRequestedFor(urlEqualTo("/")));
+		verify(1, postRequestedFor(urlEqualTo("/")).withRequestBody(containing("Filter.1.Name=tag%3Aenv")));
+	}
+
+	@Test
+	public void shouldCacheBatchedMembers() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstanceItems(null,
+				Ec2Responses.instance("i-1", "10.0.0.1", "us-east-1a", "env=prod", "role=web")));
+		AwsAutoDiscovery cachedWeb = discovery("tag:env=prod;tag:role=web", 30, TimeUnit.SECONDS);
+		AwsAutoDiscovery cachedWorker = discovery("tag:env=prod;tag:role=worker", 30, TimeUnit.SECONDS);
+		try {
+			new DiscoveryGroup(Arrays.asList(cachedWeb, cachedWorker)).getMemberships();
+
+			assertThat("cached", cachedWeb.getPrivateIpAddresses(), contains("10.0.0.1"));
+			verify(1, postRequestedFor(urlEqualTo("/")));
+		} finally {
+			cachedWeb.stop();
+			cachedWorker.stop();
+		}
+	}
+
+	@Test
+	public void shouldBackOffWhenBatchIsThrottled() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstanceItems(null,
+				Ec2Responses.instance("i-1", "10.0.0.1", "us-east-1a", "env=prod", "role=web"),
+				Ec2Responses.instance("i-2", "10.0.0.2", "us-east-1a", "env=prod", "role=worker")));
+		AwsAutoDiscovery uncachedWeb = discovery("tag:env=prod;tag:role=web", 0, TimeUnit.SECONDS);
+		AwsAutoDiscovery uncachedWorker = discovery("tag:env=prod;tag:role=worker", 0, TimeUnit.SECONDS);
+		try {
+			DiscoveryGroup group = new DiscoveryGroup(Arrays.asList(uncachedWeb, uncachedWorker));
+			group.getMemberships();
+			ThrottlingTest.stubThrottled();
+
+			Map<AwsAutoDiscovery, Membership> members = group.getMemberships();
+
+			assertThat("last web members", members.get(uncachedWeb).getPrivateIpAddresses(), contains("10.0.0.1"));
+			assertThat("last worker members", members.get(uncachedWorker).getPrivateIpAddresses(), contains("10.0.0.2"));
+			assertThat("web backing off", uncachedWeb.isBackingOff(), equalTo(true));
+			assertThat("worker backing off", uncachedWorker.isBackingOff(), equalTo(true));
+
+			group.getMemberships();
+			verify(2, postRequestedFor(urlEqualTo("/")));
+		} finally {
+			uncachedWeb.stop();
+			uncachedWorker.stop();
+		}
+	}
+
+	@Test
+	public void shouldQueryUnsupportedFiltersAlone() {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances());
+
+		List<DiscoveryGroup.Batch> batches = new DiscoveryGroup(Arrays.asList(web, unsupported, worker)).batches();
+
+		assertThat("one batch", batches.size(), equalTo(1));
+		assertThat("others batched", batches.get(0).residuals.keySet(), contains(web, worker));
+		assertThat("common filter sent to EC2", batches.get(0).shared.size(), equalTo(1));
+	}
+
+	@Test
+	public void shouldQueryComponentsWithoutCommonFiltersAlone() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1"));
+		AwsAutoDiscovery east = discovery("tag:zone=east");
+		AwsAutoDiscovery west = discovery("tag:zone=west");
+		try {
+			DiscoveryGroup group = new DiscoveryGroup(Arrays.asList(east, west));
+			assertThat("no batch", group.batches().size(), equalTo(0));
+
+			group.getPrivateIpAddresses();
+
+			verify(2, postRequestedFor(urlEqualTo("/")));
+			verify(2, postRequestedFor(urlEqualTo("/")).withRequestBody(containing("Filter.1.Name=tag%3Azone")));
+		} finally {
+			east.stop();
+			west.stop();
+		}
+	}
+
+	@Test
+	public void shouldMatchTagsLikeEc2() {
+		Instance instance = new Instance().withInstanceId("i-1")
+				.withTags(new Tag("env", "prod"), new Tag("role", "web"));
+
+		assertThat("any value matches", FilterPredicate.compile(Parsers.filters("tag:role=worker,web"))
+				.matches(instance), equalTo(true));
+		assertThat("all filters must match", FilterPredicate.compile(Parsers.filters("tag:role=web;tag:env=dev"))
+				.matches(instance), equalTo(false));
+		assertThat("tag key matches", FilterPredicate.compile(Parsers.filters("tag-key=env"))
+				.matches(instance), equalTo(true));
+		assertThat("instance id matches", FilterPredicate.compile(Arrays.asList(new Filter("instance-id", Arrays.asList("i-1"))))
+				.matches(instance), equalTo(true));
+	}
+
+	@Test
+	public void shouldMatchWildcardsLikeEc2() {
+		Instance instance = new Instance().withInstanceId("i-1").withPrivateIpAddress("10.0.3.7")
+				.withTags(new Tag("env", "prod"), new Tag("role", "web-1"), new Tag("path", "a*b"));
+
+		assertThat("star matches a run", FilterPredicate.compile(Parsers.filters("tag:role=web*"))
+				.matches(instance), equalTo(true));
+		assertThat("star matches nothing", FilterPredicate.compile(Parsers.filters("tag:role=web-1*"))
+				.matches(instance), equalTo(true));
+		assertThat("question mark matches one", FilterPredicate.compile(Parsers.filters("tag:role=web-?"))
+				.matches(instance), equalTo(true));
+		assertThat("question mark needs one", FilterPredicate.compile(Parsers.filters("tag:role=web-1?"))
+				.matches(instance), equalTo(false));
+		assertThat("stars backtrack", FilterPredicate.compile(Parsers.filters("private-ip-address=10.*.7"))
+				.matches(instance), equalTo(true));
+		assertThat("whole value", FilterPredicate.compile(Parsers.filters("tag:role=eb*"))
+				.matches(instance), equalTo(false));
+		assertThat("escaped star", FilterPredicate.compile(Parsers.filters("tag:path=a\\*b"))
+				.matches(instance), equalTo(true));
+		assertThat("escaped star is literal", FilterPredicate.compile(Parsers.filters("tag:path=a\\*"))
+				.matches(instance), equalTo(false));
+		assertThat("wildcard tag keys", FilterPredicate.compile(Parsers.filters("tag-key=ro*"))
+				.matches(instance), equalTo(true));
+		assertThat("missing attributes never match", FilterPredicate.compile(Parsers.filters("vpc-id=*"))
+				.matches(instance), equalTo(false));
+	}
+
+	static AwsAutoDiscovery discovery(String filters) throws Exception {
+		return AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withFilters(Parsers.filters(filters))
+				.build()
+				.start();
+	}
+
+	static AwsAutoDiscovery discovery(String filters, long cacheTtl, TimeUnit unit) throws Exception {
+		return AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withFilters(Parsers.filters(filters))
+				.withCacheTtl(cacheTtl, unit)
+				.withThrottleBackoff(10, 60, TimeUnit.SECONDS)
+				.build()
+				.start();
+	}
+}
@@ -0,0 +1,116 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.meltmedia.aws.discovery.DiscoveryMetrics.Operation;
+
+public class DiscoveryMetricsTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	@Test
+	public void shouldBucketWithinPrecision() {
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+			long highest = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+			assertThat("bucket covers value", highest, greaterThanOrEqualTo(value));
+			assertThat("within precision", (double) highest - value, lessThanOrEqualTo(value / 64.0 + 1));
+		}
+	}
+
+	@Test
+	public void shouldReportPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 10000; micros++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+		}
+
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+		assertThat("count", snapshot.getCount(), equalTo(10000L));
+		assertThat("min", snapshot.getMin(), equalTo(1000L));
+		assertThat("max", snapshot.getMax(), equalTo(10000000L));
+		assertThat("mean", snapshot.getMean(), closeTo(5000500, 1));
+		assertThat("p50", snapshot.getValueAtPercentile(50, TimeUnit.MICROSECONDS), closeTo(5000, 80));
+		assertThat("p99", snapshot.getValueAtPercentile(99, TimeUnit.MICROSECONDS), closeTo(9900, 160));
+		assertThat("p100", snapshot.getValueAtPercentile(100), equalTo(10000000L));
+	}
+
+	@Test
+	public void shouldReportEmptyHistogram() {
+		LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+
+		assertThat("count", snapshot.getCount(), equalTo(0L));
+		assertThat("max", snapshot.getMax(), equalTo(0L));
+		assertThat("p99", snapshot.getValueAtPercentile(99), equalTo(0L));
+	}
+
+	@Test
+	public void shouldRecordDiscoveryCalls() throws Exception {
+		InMemoryDiscoveryMetrics metrics = new InMemoryDiscoveryMetrics();
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstanceItems(null,
+				Ec2Responses.instance("i-00000000", "10.0.0.1", "us-east-1a", "cluster=a"),
+				Ec2Responses.instance("i-00000001", "10.0.0.2", "us-east-1a", "cluster=a")));
+		AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withTagNames(Arrays.asList("cluster"))
+				.withMetrics(metrics)
+				.build()
+				.start();
+		try {
+			discovery.getPrivateIpAddresses();
+			ThrottlingTest.stubThrottled();
+			discovery.getPrivateIpAddresses();
+		} finally {
+			discovery.stop();
+		}
+
+		InMemoryDiscoveryMetrics.Snapshot snapshot = metrics.snapshot();
+		assertThat("self tag lookup", snapshot.getCalls(Operation.SELF_TAGS), equalTo(1L));
+		assertThat("member queries", snapshot.getCalls(Operation.MEMBER_QUERY), equalTo(2L));
+		assertThat("latency recorded", snapshot.getLatency(Operation.MEMBER_QUERY).getMax(), greaterThan(0L));
+		assertThat("failed query", snapshot.getFailures(Operation.MEMBER_QUERY), equalTo(1L));
+		assertThat("throttled query", snapshot.getThrottles(Operation.MEMBER_QUERY), equalTo(1L));
+		assertThat("no other faults", snapshot.getFaults(Operation.MEMBER_QUERY), equalTo(0L));
+		assertThat("members", snapshot.getMembers(), equalTo(2));
+		assertThat("one refresh", snapshot.getRefreshes(), equalTo(1L));
+		assertThat("refreshed recently", snapshot.getTimeSinceLastRefresh(TimeUnit.SECONDS), lessThanOrEqualTo(5L));
+	}
+
+	@Test
+	public void shouldRecordMetadataCalls() {
+		InMemoryDiscoveryMetrics metrics = new InMemoryDiscoveryMetrics();
+		InstanceInspectorTest.stubMetadata(0, 0);
+		InstanceInspector inspector = InstanceInspector.builder()
+				.withBaseUri(URI.create("http://localhost:8089/"))
+				.withMetrics(metrics)
+				.build();
+		try {
+			inspector.inspect();
+		} finally {
+			inspector.close();
+		}
+
+		assertThat("metadata requests", metrics.snapshot().getCalls(Operation.IMDS), equalTo(2L));
+		assertThat("never refreshed", metrics.snapshot().getTimeSinceLastRefresh(TimeUnit.SECONDS), equalTo(-1L));
+	}
+}
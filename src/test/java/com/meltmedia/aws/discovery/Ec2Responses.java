@@ -0,0 +1,106 @@
+package com.meltmedia.aws.discovery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Scanner;
+
+/**
+ * Canned EC2 API responses for WireMock stubs.
+ */
+public class Ec2Responses {
+
+	public static String describeInstances(String... addresses) {
+		return describeInstancesPage(null, addresses);
+	}
+
+	public static String describeInstancesPage(String nextToken, String... addresses) {
+		String[] items = new String[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			items[i] = instance(String.format("i-%08x", i), addresses[i], "us-east-1a");
+		}
+		return describeInstanceItems(nextToken, items);
+	}
+
+	/**
+	 * Renders one instance item, with tags given as `key=value` strings.
+	 */
+	public static String instance(String instanceId, String address, String availabilityZone, String... tags) {
+		StringBuilder item = new StringBuilder()
+				.append("<item><instanceId>").append(instanceId)
+				.append("</instanceId><instanceState><code>16</code><name>running</name></instanceState>")
+				.append("<placement><availabilityZone>").append(availabilityZone).append("</availabilityZone></placement>")
+				.append("<privateIpAddress>").append(address).append("</privateIpAddress>");
+		if (tags.length > 0) {
+			item.append("<tagSet>");
+			for (String tag : tags) {
+				String[] keyValue = tag.split("=", 2);
+				item.append("<item><key>").append(keyValue[0]).append("</key><value>")
+						.append(keyValue[1]).append("</value></item>");
+			}
+			item.append("</tagSet>");
+		}
+		return item.append("</item>").toString();
+	}
+
+	public static String describeInstanceItems(String nextToken, String... items) {
+		StringBuilder body = new StringBuilder()
+				.append("<DescribeInstancesResponse xmlns=\"http://ec2.amazonaws.com/doc/2014-06-15/\">")
+				.append("<requestId>8f7724cf-496f-496e-8fe3-example</requestId>")
+				.append("<reservationSet><item><reservationId>r-1a2b3c4d</reservationId><instancesSet>");
+		for (String item : items) {
+			body.append(item);
+		}
+		body.append("</instancesSet></item></reservationSet>");
+		if (nextToken != null) {
+			body.append("<nextToken>").append(nextToken).append("</nextToken>");
+		}
+		return body.append("</DescribeInstancesResponse>").toString();
+	}
+
+	/**
+	 * Renders a page of a large fleet from the captured instance in
+	 * `fixtures/describe-instances-item.xml`, spread over three availability
+	 * zones, starting at 10.0.0.1.
+	 */
+	public static String fleet(int size) {
+		String template = resource("fixtures/describe-instances-item.xml");
+		String[] zones = { "us-east-1a", "us-east-1b", "us-east-1c" };
+		String[] items = new String[size];
+		for (int i = 0; i < size; i++) {
+			String address = String.format("10.0.%d.%d", (i + 1) / 256, (i + 1) % 256);
+			items[i] = String.format(template, i, address, zones[i % zones.length],
+					address.replace('.', '-'));
+		}
+		return describeInstanceItems(null, items);
+	}
+
+	static String resource(String name) {
+		InputStream in = Ec2Responses.class.getClassLoader().getResourceAsStream(name);
+		try {
+			return new Scanner(in, "UTF-8").useDelimiter("\\A").next();
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing left to do.
+			}
+		}
+	}
+
+	public static String error(String code, String message) {
+		return "<Response><Errors><Error><Code>" + code + "</Code><Message>" + message
+				+ "</Message></Error></Errors><RequestID>ea966190-f9aa-478e-9ede-example</RequestID></Response>";
+	}
+
+	public static String throttled() {
+		return error("RequestLimitExceeded", "Request limit exceeded.");
+	}
+
+	public static InstanceDetails instanceDetails(String endpoint) {
+		InstanceDetails details = new InstanceDetails();
+		details.setInstanceId("i-00000000");
+		details.setAvailabilityZone("us-east-1a");
+		details.setEndpoint(endpoint);
+		return details;
+	}
+}
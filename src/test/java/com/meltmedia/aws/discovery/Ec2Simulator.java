@@ -0,0 +1,452 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
+
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Tag;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+
+/**
+ * A local stand-in for EC2 and the instance metadata service, for load tests.
+ *
+ * DescribeInstances is answered from a synthetic fleet, with the filters
+ * evaluated by `FilterPredicate`, `InstanceId` lookups, and `MaxResults` and
+ * `NextToken` paging. Each call can be delayed, and calls are answered with
+ * `RequestLimitExceeded` at random, or when they exceed a request rate, the
+ * way EC2 throttles an account. The EC2 side is a servlet on the Jetty server
+ * that WireMock runs on, since WireMock stubs cannot page or filter; the
+ * metadata service is plain WireMock stubs, one set per node.
+ *
+ * ```
+ * Ec2Simulator simulator = Ec2Simulator.builder()
+ *   .withFleetSize(2000)
+ *   .withTag("role", "web", "worker")
+ *   .withLatency(20, 80, TimeUnit.MILLISECONDS)
+ *   .build()
+ *   .start();
+ * ```
+ */
+public class Ec2Simulator implements Closeable {
+
+	public static class Builder {
+		int fleetSize = 100;
+		String[] zones = { "us-east-1a", "us-east-1b", "us-east-1c" };
+		Map<String, String[]> tags = new LinkedHashMap<String, String[]>();
+		long minLatencyNanos;
+		long maxLatencyNanos;
+		double faultRate;
+		double requestLimit;
+		int maxThreads = 256;
+
+		/**
+		 * The number of instances. Defaults to 100.
+		 */
+		public Builder withFleetSize(int fleetSize) {
+			this.fleetSize = fleetSize;
+			return this;
+		}
+
+		/**
+		 * The zones the instances are spread over, in turn.
+		 */
+		public Builder withZones(String... zones) {
+			this.zones = zones;
+			return this;
+		}
+
+		/**
+		 * Tags every instance with the key, taking the values in turn.
+		 */
+		public Builder withTag(String key, String... values) {
+			this.tags.put(key, values);
+			return this;
+		}
+
+		/**
+		 * Delays every EC2 call by a uniformly random time in the range.
+		 */
+		public Builder withLatency(long min, long max, TimeUnit unit) {
+			this.minLatencyNanos = unit.toNanos(min);
+			this.maxLatencyNanos = unit.toNanos(max);
+			return this;
+		}
+
+		/**
+		 * The fraction of EC2 calls answered with `RequestLimitExceeded`.
+		 */
+		public Builder withFaultRate(double faultRate) {
+			this.faultRate = faultRate;
+			return this;
+		}
+
+		/**
+		 * Throttles the EC2 calls beyond this many per second, with a burst of
+		 * one second's worth. Defaults to no limit.
+		 */
+		public Builder withRequestLimit(double callsPerSecond) {
+			this.requestLimit = callsPerSecond;
+			return this;
+		}
+
+		/**
+		 * The most EC2 calls served at once. Defaults to 256.
+		 */
+		public Builder withMaxThreads(int maxThreads) {
+			this.maxThreads = maxThreads;
+			return this;
+		}
+
+		public Ec2Simulator build() {
+			return new Ec2Simulator(this);
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	private final Builder config;
+	private final List<Instance> fleet = new ArrayList<Instance>();
+	private final String[] items;
+	private final Map<String, Integer> byInstanceId = new LinkedHashMap<String, Integer>();
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong pages = new AtomicLong();
+	private final AtomicLong instancesReturned = new AtomicLong();
+	private final Set<Integer> metadataNodes = new HashSet<Integer>();
+
+	private double tokens;
+	private long refilledAt = System.nanoTime();
+
+	private Server ec2;
+	private WireMockServer imds;
+	private WireMock imdsClient;
+	private int imdsPort;
+
+	Ec2Simulator(Builder config) {
+		this.config = config;
+		this.tokens = config.requestLimit;
+		this.items = new String[config.fleetSize];
+		for (int i = 0; i < config.fleetSize; i++) {
+			String zone = config.zones[i % config.zones.length];
+			List<Tag> instanceTags = new ArrayList<Tag>();
+			List<String> renderedTags = new ArrayList<String>();
+			for (Map.Entry<String, String[]> tag : config.tags.entrySet()) {
+				String value = tag.getValue()[i % tag.getValue().length];
+				instanceTags.add(new Tag(tag.getKey(), value));
+				renderedTags.add(tag.getKey() + "=" + value);
+			}
+			Instance instance = new Instance()
+					.withInstanceId(instanceId(i))
+					.withPrivateIpAddress(Ipv4.unpack(0x0a000001 + i))
+					.withPlacement(new Placement(zone))
+					.withState(new InstanceState().withCode(16).withName("running"))
+					.withTags(instanceTags);
+			fleet.add(instance);
+			byInstanceId.put(instance.getInstanceId(), i);
+			items[i] = Ec2Responses.instance(instance.getInstanceId(),
+					instance.getPrivateIpAddress(), zone,
+					renderedTags.toArray(new String[renderedTags.size()]));
+		}
+	}
+
+	/**
+	 * Starts the EC2 and metadata servers on free ports.
+	 */
+	public Ec2Simulator start() throws Exception {
+		ec2 = new Server(0);
+		QueuedThreadPool threads = new QueuedThreadPool(config.maxThreads);
+		threads.setDaemon(true);
+		ec2.setThreadPool(threads);
+		Context context = new Context(ec2, "/");
+		context.addServlet(new ServletHolder(new Ec2Servlet()), "/*");
+		ec2.start();
+
+		imdsPort = freePort();
+		imds = new WireMockServer(imdsPort);
+		imds.start();
+		imdsClient = new WireMock("localhost", imdsPort);
+		return this;
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (ec2 != null) {
+				ec2.stop();
+			}
+		} catch (Exception e) {
+			// nothing more to release.
+		}
+		if (imds != null) {
+			imds.stop();
+		}
+	}
+
+	/**
+	 * @return the EC2 endpoint, for `InstanceDetails.setEndpoint`.
+	 */
+	public String getEndpoint() {
+		return "http://localhost:" + ec2.getConnectors()[0].getLocalPort();
+	}
+
+	/**
+	 * @return the instances of the fleet.
+	 */
+	public List<Instance> getFleet() {
+		return fleet;
+	}
+
+	/**
+	 * @return the details of the node, pointed at the simulated EC2.
+	 */
+	public InstanceDetails instanceDetails(int node) {
+		InstanceDetails details = new InstanceDetails();
+		details.setInstanceId(fleet.get(node).getInstanceId());
+		details.setAvailabilityZone(fleet.get(node).getPlacement()
+				.getAvailabilityZone());
+		details.setEndpoint(getEndpoint());
+		return details;
+	}
+
+	/**
+	 * Serves the metadata of the node, with IMDSv2 tokens, and returns the
+	 * base URI to inspect it at.
+	 */
+	public synchronized URI metadataUri(int node) {
+		String base = "/node/" + node;
+		if (metadataNodes.add(node)) {
+			String token = "token-" + node;
+			imdsClient.register(put(urlEqualTo(base + "/latest/api/token"))
+					.willReturn(aResponse().withStatus(200).withBody(token)));
+			imdsClient.register(get(urlEqualTo(base + "/latest/meta-data/instance-id"))
+					.withHeader(InstanceInspector.TOKEN_HEADER, equalTo(token))
+					.willReturn(aResponse().withStatus(200)
+							.withBody(fleet.get(node).getInstanceId())));
+			imdsClient.register(get(urlEqualTo(base + "/latest/meta-data/placement/availability-zone"))
+					.withHeader(InstanceInspector.TOKEN_HEADER, equalTo(token))
+					.willReturn(aResponse().withStatus(200)
+							.withBody(fleet.get(node).getPlacement().getAvailabilityZone())));
+		}
+		return URI.create("http://localhost:" + imdsPort + base + "/");
+	}
+
+	/**
+	 * @return the EC2 calls received, throttled ones included.
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	/**
+	 * @return the EC2 calls answered with `RequestLimitExceeded`.
+	 */
+	public long getThrottled() {
+		return throttled.get();
+	}
+
+	/**
+	 * @return the DescribeInstances pages served.
+	 */
+	public long getPages() {
+		return pages.get();
+	}
+
+	/**
+	 * @return the instances returned over all pages.
+	 */
+	public long getInstancesReturned() {
+		return instancesReturned.get();
+	}
+
+	static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	static String instanceId(int node) {
+		return String.format("i-%08x", node);
+	}
+
+	private class Ec2Servlet extends HttpServlet {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void doPost(HttpServletRequest request,
+				HttpServletResponse response) throws IOException {
+			calls.incrementAndGet();
+			delay();
+			if (throttle()) {
+				throttled.incrementAndGet();
+				respond(response, 503, Ec2Responses.throttled());
+				return;
+			}
+			if (!"DescribeInstances".equals(request.getParameter("Action"))) {
+				respond(response, 400, Ec2Responses.error("InvalidAction",
+						"The action is not valid for this web service."));
+				return;
+			}
+			List<Filter> filters = filters(request);
+			if (!FilterPredicate.isSupported(filters)) {
+				respond(response, 400, Ec2Responses.error(
+						"InvalidParameterValue", "The filter is invalid"));
+				return;
+			}
+			FilterPredicate predicate = FilterPredicate.compile(filters);
+			Set<String> ids = new HashSet<String>(numbered(request, "InstanceId.").values());
+
+			List<Integer> matched = new ArrayList<Integer>();
+			if (!ids.isEmpty()) {
+				for (String id : ids) {
+					Integer index = byInstanceId.get(id);
+					if (index != null && predicate.matches(fleet.get(index))) {
+						matched.add(index);
+					}
+				}
+			} else {
+				for (int i = 0; i < fleet.size(); i++) {
+					if (predicate.matches(fleet.get(i))) {
+						matched.add(i);
+					}
+				}
+			}
+
+			int offset = 0;
+			String nextToken = request.getParameter("NextToken");
+			if (nextToken != null) {
+				offset = Integer.parseInt(nextToken.substring("page-".length()));
+			}
+			int end = matched.size();
+			String maxResults = request.getParameter("MaxResults");
+			if (maxResults != null) {
+				end = Math.min(end, offset + Integer.parseInt(maxResults));
+			}
+			String[] page = new String[end - offset];
+			for (int i = offset; i < end; i++) {
+				page[i - offset] = items[matched.get(i)];
+			}
+			pages.incrementAndGet();
+			instancesReturned.addAndGet(page.length);
+			respond(response, 200, Ec2Responses.describeInstanceItems(
+					end < matched.size() ? "page-" + end : null, page));
+		}
+
+		private void delay() {
+			long range = config.maxLatencyNanos - config.minLatencyNanos;
+			long delay = config.minLatencyNanos
+					+ (range > 0 ? ThreadLocalRandom.current().nextLong(range) : 0);
+			if (delay > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private boolean throttle() {
+			if (config.faultRate > 0
+					&& ThreadLocalRandom.current().nextDouble() < config.faultRate) {
+				return true;
+			}
+			if (config.requestLimit <= 0) {
+				return false;
+			}
+			synchronized (Ec2Simulator.this) {
+				long now = System.nanoTime();
+				tokens = Math.min(config.requestLimit, tokens
+						+ (now - refilledAt) * config.requestLimit / 1e9);
+				refilledAt = now;
+				if (tokens < 1) {
+					return true;
+				}
+				tokens--;
+				return false;
+			}
+		}
+
+		private void respond(HttpServletResponse response, int status,
+				String body) throws IOException {
+			response.setStatus(status);
+			response.setContentType("text/xml");
+			response.getWriter().write(body);
+		}
+	}
+
+	/**
+	 * Reads the `Filter.N.Name` and `Filter.N.Value.M` parameters.
+	 */
+	static List<Filter> filters(HttpServletRequest request) {
+		List<Filter> filters = new ArrayList<Filter>();
+		for (Map.Entry<Integer, String> name : numbered(request, "Filter.")
+				.entrySet()) {
+			filters.add(new Filter(name.getValue(), new ArrayList<String>(
+					numbered(request, "Filter." + name.getKey() + ".Value.")
+							.values())));
+		}
+		return filters;
+	}
+
+	/**
+	 * Reads the parameters named `PREFIX.N`, or `PREFIX.N.Name` for filters,
+	 * in the order of N.
+	 */
+	static Map<Integer, String> numbered(HttpServletRequest request,
+			String prefix) {
+		Map<Integer, String> values = new TreeMap<Integer, String>();
+		for (Object key : request.getParameterMap().keySet()) {
+			String name = (String) key;
+			if (!name.startsWith(prefix)) {
+				continue;
+			}
+			String rest = name.substring(prefix.length());
+			if ("Filter.".equals(prefix)) {
+				if (!rest.endsWith(".Name")) {
+					continue;
+				}
+				rest = rest.substring(0, rest.length() - ".Name".length());
+			}
+			if (rest.indexOf('.') >= 0) {
+				continue;
+			}
+			values.put(Integer.valueOf(rest), request.getParameter(name));
+		}
+		return values;
+	}
+}
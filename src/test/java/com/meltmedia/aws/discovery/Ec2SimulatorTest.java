@@ -0,0 +1,133 @@
+package com.meltmedia.aws.discovery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.ec2.model.Tag;
+
+public class Ec2SimulatorTest {
+	Ec2Simulator simulator;
+	AwsAutoDiscovery discovery;
+
+	@Before
+	public void setUp() throws Exception {
+		simulator = Ec2Simulator.builder()
+				.withFleetSize(12)
+				.withTag("role", "web", "worker", "db")
+				.build()
+				.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (discovery != null) {
+			discovery.stop();
+		}
+		simulator.close();
+	}
+
+	@Test
+	public void shouldPageThroughTheFleet() throws Exception {
+		discovery = discovery(AwsAutoDiscovery.builder().withMaxResults(5));
+
+		assertThat("whole fleet", discovery.getPrivateIpAddresses().size(), equalTo(12));
+		assertThat("three pages", simulator.getPages(), equalTo(3L));
+	}
+
+	@Test
+	public void shouldMatchFilters() throws Exception {
+		discovery = discovery(AwsAutoDiscovery.builder()
+				.withFilters(Parsers.filters("tag:role=w*;availability-zone=us-east-1a")));
+
+		// web is on every third node from 0, as is us-east-1a.
+		assertThat("matched", discovery.getPrivateIpAddresses(),
+				contains("10.0.0.1", "10.0.0.4", "10.0.0.7", "10.0.0.10"));
+	}
+
+	@Test
+	public void shouldLookUpTagsByInstanceId() throws Exception {
+		discovery = discovery(AwsAutoDiscovery.builder()
+				.withTagNames(Parsers.tagNames("role")));
+
+		assertThat("self tags", discovery.getSelfFilters().get(0).getValues(), contains("web"));
+		assertThat("same role", discovery.getPrivateIpAddresses(),
+				contains("10.0.0.1", "10.0.0.4", "10.0.0.7", "10.0.0.10"));
+		assertThat("one call for the tags", simulator.getCalls(), equalTo(2L));
+	}
+
+	@Test
+	public void shouldThrottleBeyondTheRequestLimit() throws Exception {
+		simulator.close();
+		simulator = Ec2Simulator.builder()
+				.withRequestLimit(2)
+				.build()
+				.start();
+		discovery = discovery(AwsAutoDiscovery.builder()
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0)));
+
+		int failures = 0;
+		for (int i = 0; i < 5; i++) {
+			try {
+				discovery.queryPrivateIpAddresses();
+			} catch (RuntimeException e) {
+				failures++;
+			}
+		}
+		assertThat("throttled", simulator.getThrottled(), greaterThanOrEqualTo(3L));
+		assertThat("failed calls", failures, greaterThanOrEqualTo(3));
+	}
+
+	@Test
+	public void shouldServeMetadata() throws Exception {
+		InstanceInspector inspector = InstanceInspector.builder()
+				.withBaseUri(simulator.metadataUri(4))
+				.withImdsPolicy(ImdsPolicy.V2_REQUIRED)
+				.build();
+		try {
+			InstanceDetails details = inspector.inspect();
+			assertThat("instance id", details.getInstanceId(), equalTo("i-00000004"));
+			assertThat("zone", details.getAvailabilityZone(), equalTo("us-east-1b"));
+		} finally {
+			inspector.close();
+		}
+	}
+
+	@Test
+	public void shouldDelayCalls() throws Exception {
+		simulator.close();
+		simulator = Ec2Simulator.builder()
+				.withLatency(100, 150, TimeUnit.MILLISECONDS)
+				.build()
+				.start();
+		discovery = discovery(AwsAutoDiscovery.builder());
+
+		long start = System.nanoTime();
+		List<String> members = discovery.getPrivateIpAddresses();
+		assertThat("members", members.size(), equalTo(100));
+		assertThat("delayed", System.nanoTime() - start, greaterThan(TimeUnit.MILLISECONDS.toNanos(100)));
+	}
+
+	@Test
+	public void shouldKeepTagsOnTheFleet() {
+		assertThat("tagged", simulator.getFleet().get(1).getTags(), contains(new Tag("role", "worker")));
+	}
+
+	AwsAutoDiscovery discovery(AwsAutoDiscovery.Builder builder) throws Exception {
+		return builder
+				.withCredentials("access", "secret")
+				.withInstanceDetails(simulator.instanceDetails(0))
+				.build()
+				.start();
+	}
+}
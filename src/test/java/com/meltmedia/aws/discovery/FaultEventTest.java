@@ -0,0 +1,145 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class FaultEventTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	List<FaultEvent> events = new CopyOnWriteArrayList<FaultEvent>();
+	List<String> messages = new CopyOnWriteArrayList<String>();
+	AwsAutoDiscovery discovery;
+
+	@Before
+	public void setUp() throws Exception {
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(2))
+				.withFaultEventListener(new FaultEventListener() {
+					@Override
+					public void fault(FaultEvent event) {
+						events.add(event);
+					}
+				})
+				.withFaultListener(new FaultListener() {
+					@Override
+					public void fault(String message) {
+						messages.add(message);
+					}
+				})
+				.build()
+				.start();
+	}
+
+	@After
+	public void tearDown() {
+		discovery.stop();
+	}
+
+	@Test
+	public void shouldReportOneEventPerFailedCall() {
+		ThrottlingTest.stubThrottled();
+		try {
+			discovery.getPrivateIpAddresses();
+			throw new AssertionError("expected a fault");
+		} catch (AmazonServiceException expected) {
+		}
+		verify(3, postRequestedFor(urlEqualTo("/")));
+
+		assertThat("one event", events, hasSize(1));
+		FaultEvent event = events.get(0);
+		assertThat("operation", event.getOperation(), equalTo("DescribeInstances"));
+		assertThat("error code", event.getErrorCode(), equalTo("RequestLimitExceeded"));
+		assertThat("request id", event.getRequestId(), equalTo("ea966190-f9aa-478e-9ede-example"));
+		assertThat("status code", event.getStatusCode(), equalTo(503));
+		assertThat("throttle", event.isThrottle(), equalTo(true));
+		assertThat("duration", event.getDuration(TimeUnit.NANOSECONDS), greaterThan(0L));
+		assertThat("fault document", event.getFaultXml(), containsString("<Code>RequestLimitExceeded</Code>"));
+	}
+
+	@Test
+	public void shouldReportFaultsOfASharedClientToTheCaller() throws Exception {
+		ThrottlingTest.stubThrottled();
+		Ec2ClientRegistry registry = new Ec2ClientRegistry();
+		List<FaultEvent> first = new CopyOnWriteArrayList<FaultEvent>();
+		List<FaultEvent> second = new CopyOnWriteArrayList<FaultEvent>();
+		AwsAutoDiscovery one = shared(registry, first);
+		AwsAutoDiscovery two = shared(registry, second);
+		try {
+			assertThat("one client", registry.size(), equalTo(1));
+			fail(one);
+			assertThat("caller told", first, hasSize(1));
+			assertThat("other component not told", second, hasSize(0));
+
+			fail(two);
+			assertThat("caller told", second, hasSize(1));
+			assertThat("other component not told", first, hasSize(1));
+		} finally {
+			one.stop();
+			two.stop();
+		}
+	}
+
+	@Test
+	public void shouldKeepTheFaultListenerMessage() {
+		ThrottlingTest.stubThrottled();
+		try {
+			discovery.getPrivateIpAddresses();
+			throw new AssertionError("expected a fault");
+		} catch (AmazonServiceException expected) {
+		}
+
+		assertThat("one message", messages, hasSize(1));
+		assertThat("message", messages.get(0), startsWith("AWS Exception: [<?xml"));
+		assertThat("message", messages.get(0), containsString("<Code>RequestLimitExceeded</Code>"));
+		assertThat("message", messages.get(0), containsString("] For request [POST http://localhost:8089"));
+	}
+
+	private static AwsAutoDiscovery shared(Ec2ClientRegistry registry,
+			final List<FaultEvent> events) throws Exception {
+		return AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withClientRegistry(registry)
+				.withFaultEventListener(new FaultEventListener() {
+					@Override
+					public void fault(FaultEvent event) {
+						events.add(event);
+					}
+				})
+				.build()
+				.start();
+	}
+
+	private static void fail(AwsAutoDiscovery discovery) {
+		try {
+			discovery.getPrivateIpAddresses();
+			throw new AssertionError("expected a fault");
+		} catch (AmazonServiceException expected) {
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.meltmedia.aws.discovery.DiscoveryMetrics.Operation;
+
+public class HedgingTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	InMemoryDiscoveryMetrics metrics = new InMemoryDiscoveryMetrics();
+	AwsAutoDiscovery discovery;
+	ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("hedging-test"));
+
+	@After
+	public void tearDown() {
+		if (discovery != null) {
+			discovery.stop();
+		}
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void shouldHedgeSlowCall() throws Exception {
+		stubDelays(2000, 0);
+		discovery = hedged(100);
+
+		long start = System.nanoTime();
+		List<String> members = discovery.getPrivateIpAddresses();
+		long elapsed = System.nanoTime() - start;
+
+		assertThat("members found", members, contains("10.0.0.1"));
+		assertThat("hedge answered first", elapsed, lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+		assertThat("one hedge", metrics.snapshot().getHedges(Operation.MEMBER_QUERY), equalTo(1L));
+		assertThat("hedge won", metrics.snapshot().getHedgeWins(Operation.MEMBER_QUERY), equalTo(1L));
+		verify(2, postRequestedFor(urlEqualTo("/")));
+	}
+
+	@Test
+	public void shouldNotHedgeFastCalls() throws Exception {
+		stubDelays(0, 0, 0);
+		discovery = hedged(500);
+
+		for (int i = 0; i < 3; i++) {
+			discovery.getPrivateIpAddresses();
+		}
+
+		assertThat("no hedges", metrics.snapshot().getHedges(Operation.MEMBER_QUERY), equalTo(0L));
+		verify(3, postRequestedFor(urlEqualTo("/")));
+	}
+
+	@Test
+	public void shouldCutTailLatencyUnderRandomDelays() throws Exception {
+		// one call in five is slow, but never two in a row, so a hedge sent
+		// after a slow call is always fast.
+		Random random = new Random(7);
+		int[] delays = new int[60];
+		for (int i = 0; i < delays.length; i++) {
+			boolean slow = random.nextInt(5) == 0 && (i == 0 || delays[i - 1] < 1000);
+			delays[i] = slow ? 1500 : random.nextInt(50);
+		}
+		stubDelays(delays);
+		discovery = hedged(200);
+
+		long slowest = 0;
+		for (int i = 0; i < 20; i++) {
+			long start = System.nanoTime();
+			discovery.getPrivateIpAddresses();
+			slowest = Math.max(slowest, System.nanoTime() - start);
+		}
+
+		assertThat("slow calls hedged", metrics.snapshot().getHedgeWins(Operation.MEMBER_QUERY), greaterThan(0L));
+		assertThat("tail latency cut", slowest, lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+	}
+
+	@Test
+	public void shouldCapHedgesInFlight() throws Exception {
+		final Hedger hedger = new Hedger(TimeUnit.MILLISECONDS.toNanos(10), 0, 1, executor, metrics);
+		final AtomicInteger calls = new AtomicInteger();
+		final Callable<String> slow = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				calls.incrementAndGet();
+				Thread.sleep(300);
+				return "done";
+			}
+		};
+
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < 3; i++) {
+			results.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return hedger.call(Operation.MEMBER_QUERY, slow);
+				}
+			}));
+		}
+		for (Future<String> result : results) {
+			assertThat("completed", result.get(5, TimeUnit.SECONDS), equalTo("done"));
+		}
+
+		assertThat("three calls and one hedge", calls.get(), equalTo(4));
+		assertThat("one hedge", metrics.snapshot().getHedges(Operation.MEMBER_QUERY), equalTo(1L));
+	}
+
+	@Test
+	public void shouldHoldPermitUntilCancelledHedgeFinishes() throws Exception {
+		Hedger hedger = new Hedger(TimeUnit.MILLISECONDS.toNanos(10), 0, 1, executor, metrics);
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch response = new CountDownLatch(1);
+		Callable<String> call = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				if (calls.incrementAndGet() == 2) {
+					// the hedge, a request that ignores the interrupt.
+					while (response.getCount() > 0) {
+						try {
+							response.await();
+						} catch (InterruptedException e) {
+							// keep waiting, like a socket read.
+						}
+					}
+					return "hedge";
+				}
+				Thread.sleep(100);
+				return "primary";
+			}
+		};
+
+		try {
+			assertThat("primary won", hedger.call(Operation.MEMBER_QUERY, call), equalTo("primary"));
+			assertThat("second call", hedger.call(Operation.MEMBER_QUERY, call), equalTo("primary"));
+
+			assertThat("no hedge while the first is in flight", calls.get(), equalTo(3));
+			assertThat("one hedge", metrics.snapshot().getHedges(Operation.MEMBER_QUERY), equalTo(1L));
+		} finally {
+			response.countDown();
+		}
+	}
+
+	@Test
+	public void shouldHedgeAtObservedPercentile() throws Exception {
+		Hedger hedger = new Hedger(TimeUnit.SECONDS.toNanos(1), 90, 1, executor, metrics);
+		assertThat("initial delay", hedger.threshold(Operation.MEMBER_QUERY), equalTo(TimeUnit.SECONDS.toNanos(1)));
+
+		for (int i = 0; i < Hedger.MIN_SAMPLES; i++) {
+			hedger.call(Operation.MEMBER_QUERY, new Callable<String>() {
+				@Override
+				public String call() {
+					return "fast";
+				}
+			});
+		}
+
+		assertThat("observed percentile", hedger.threshold(Operation.MEMBER_QUERY),
+				lessThan(TimeUnit.MILLISECONDS.toNanos(100)));
+		assertThat("other operations unchanged", hedger.threshold(Operation.SELF_TAGS),
+				equalTo(TimeUnit.SECONDS.toNanos(1)));
+	}
+
+	AwsAutoDiscovery hedged(long delayMillis) throws Exception {
+		return AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withHedging(delayMillis, TimeUnit.MILLISECONDS)
+				.withMetrics(metrics)
+				.build()
+				.start();
+	}
+
+	/**
+	 * Answers member queries with the delays in turn, the last one repeating.
+	 */
+	static void stubDelays(int... delays) {
+		for (int i = 0; i < delays.length; i++) {
+			String state = i == 0 ? Scenario.STARTED : "call-" + i;
+			stubFor(post(urlEqualTo("/"))
+					.inScenario("delays")
+					.whenScenarioStateIs(state)
+					.willSetStateTo(i + 1 < delays.length ? "call-" + (i + 1) : state)
+					.withRequestBody(containing("Action=DescribeInstances"))
+					.willReturn(aResponse()
+							.withStatus(200)
+							.withFixedDelay(delays[i])
+							.withHeader("Content-Type", "text/xml")
+							.withBody(Ec2Responses.describeInstances("10.0.0.1"))));
+		}
+	}
+}
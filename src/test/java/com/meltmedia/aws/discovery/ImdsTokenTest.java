@@ -0,0 +1,130 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class ImdsTokenTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	InstanceInspector inspector;
+
+	@After
+	public void tearDown() {
+		if (inspector != null) {
+			inspector.close();
+		}
+	}
+
+	@Test
+	public void shouldSendCachedToken() {
+		stubToken(200);
+		stubMetadata("session-token");
+		inspector = inspector(ImdsPolicy.V2_PREFERRED);
+
+		inspector.inspect();
+		InstanceDetails details = inspector.inspect();
+
+		assertThat("instance id", details.getInstanceId(), is("i-1234abcd"));
+		verify(1, putRequestedFor(urlEqualTo("/latest/api/token"))
+				.withHeader(InstanceInspector.TOKEN_TTL_HEADER, equalTo("21600")));
+	}
+
+	@Test
+	public void shouldFallBackToV1() {
+		stubToken(404);
+		InstanceInspectorTest.stubMetadata(0, 0);
+		inspector = inspector(ImdsPolicy.V2_PREFERRED);
+
+		inspector.inspect();
+		inspector.inspect();
+
+		assertThat("instance id", inspector.inspect().getInstanceId(), is("i-1234abcd"));
+		verify(1, putRequestedFor(urlEqualTo("/latest/api/token")));
+	}
+
+	@Test
+	public void shouldRequestTokenWhenV1IsRejected() {
+		stubToken(404);
+		stubFor(get(urlEqualTo("/latest/meta-data/instance-id"))
+				.willReturn(aResponse().withStatus(401)));
+		stubFor(get(urlEqualTo("/latest/meta-data/placement/availability-zone"))
+				.willReturn(aResponse().withStatus(401)));
+		stubMetadata("session-token");
+		inspector = inspector(ImdsPolicy.V2_PREFERRED);
+
+		try {
+			inspector.inspect();
+			fail("the token was required");
+		}
+		catch (InspectionException e) {
+			// the token request failed.
+		}
+		stubToken(200);
+
+		assertThat("instance id", inspector.inspect().getInstanceId(), is("i-1234abcd"));
+	}
+
+	@Test(expected = InspectionException.class)
+	public void shouldRequireToken() {
+		stubToken(404);
+		InstanceInspectorTest.stubMetadata(0, 0);
+		inspector = inspector(ImdsPolicy.V2_REQUIRED);
+
+		inspector.inspect();
+	}
+
+	@Test
+	public void shouldSkipTokenForV1() {
+		InstanceInspectorTest.stubMetadata(0, 0);
+		inspector = inspector(ImdsPolicy.V1_ONLY);
+
+		inspector.inspect();
+		verify(0, putRequestedFor(urlEqualTo("/latest/api/token")));
+	}
+
+	InstanceInspector inspector(ImdsPolicy policy) {
+		return InstanceInspector.builder()
+				.withBaseUri(URI.create("http://localhost:8089/"))
+				.withImdsPolicy(policy)
+				.build();
+	}
+
+	static void stubToken(int status) {
+		stubFor(put(urlEqualTo("/latest/api/token"))
+				.willReturn(aResponse()
+						.withStatus(status)
+						.withBody("session-token")));
+	}
+
+	static void stubMetadata(String token) {
+		stubFor(get(urlEqualTo("/latest/meta-data/instance-id"))
+				.withHeader(InstanceInspector.TOKEN_HEADER, equalTo(token))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody("i-1234abcd")));
+		stubFor(get(urlEqualTo("/latest/meta-data/placement/availability-zone"))
+				.withHeader(InstanceInspector.TOKEN_HEADER, equalTo(token))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody("us-west-2b")));
+	}
+}
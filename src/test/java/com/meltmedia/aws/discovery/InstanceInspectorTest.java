@@ -0,0 +1,139 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.net.URI;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class InstanceInspectorTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	InstanceInspector inspector;
+
+	@Before
+	public void setUp() {
+		inspector = InstanceInspector.builder()
+				.withBaseUri(URI.create("http://localhost:8089/"))
+				.withDeadline(1, TimeUnit.SECONDS)
+				.build();
+	}
+
+	@After
+	public void tearDown() {
+		inspector.close();
+	}
+
+	@Test
+	public void shouldInspectInstance() {
+		stubMetadata(0, 0);
+
+		InstanceDetails details = inspector.inspect();
+
+		assertThat("instance id", details.getInstanceId(), equalTo("i-1234abcd"));
+		assertThat("availability zone", details.getAvailabilityZone(), equalTo("us-west-2b"));
+		assertThat("endpoint", details.getEndpoint(), equalTo("ec2.us-west-2.amazonaws.com"));
+	}
+
+	@Test
+	public void shouldReuseInspector() {
+		stubMetadata(0, 0);
+
+		inspector.inspect();
+		assertThat("second inspection", inspector.inspect().getInstanceId(), equalTo("i-1234abcd"));
+	}
+
+	@Test
+	public void shouldFetchConcurrently() {
+		stubMetadata(400, 400);
+
+		long start = System.nanoTime();
+		inspector.inspect();
+		long elapsed = System.nanoTime() - start;
+
+		assertThat("paths fetched together", elapsed, lessThan(TimeUnit.MILLISECONDS.toNanos(750)));
+	}
+
+	@Test
+	public void shouldFailAtDeadline() {
+		stubMetadata(0, 3000);
+
+		long start = System.nanoTime();
+		try {
+			inspector.inspect();
+			throw new AssertionError("inspection should time out");
+		}
+		catch( InspectionException e ) {
+			// expected.
+		}
+		long elapsed = System.nanoTime() - start;
+
+		assertThat("failed at the deadline", elapsed, lessThan(TimeUnit.MILLISECONDS.toNanos(2000)));
+	}
+
+	@Test(expected = InspectionException.class)
+	public void shouldFailOnMissingMetadata() {
+		stubFor(get(urlEqualTo("/latest/meta-data/instance-id"))
+				.willReturn(aResponse().withStatus(404)));
+		stubFor(get(urlEqualTo("/latest/meta-data/placement/availability-zone"))
+				.willReturn(aResponse().withStatus(404)));
+
+		inspector.inspect();
+	}
+
+	@Test
+	public void shouldInspectAsynchronously() throws Exception {
+		stubMetadata(0, 0);
+
+		InstanceDetails details = inspector.inspectAsync().get(1, TimeUnit.SECONDS);
+
+		assertThat("instance id", details.getInstanceId(), equalTo("i-1234abcd"));
+		assertThat("endpoint", details.getEndpoint(), equalTo("ec2.us-west-2.amazonaws.com"));
+	}
+
+	@Test
+	public void shouldFailAsynchronouslyAtDeadline() throws Exception {
+		stubMetadata(0, 3000);
+
+		long start = System.nanoTime();
+		try {
+			inspector.inspectAsync().get();
+			throw new AssertionError("inspection should time out");
+		}
+		catch( ExecutionException e ) {
+			assertThat("inspection failure", e.getCause(), instanceOf(InspectionException.class));
+		}
+		long elapsed = System.nanoTime() - start;
+
+		assertThat("failed at the deadline", elapsed, lessThan(TimeUnit.MILLISECONDS.toNanos(2000)));
+	}
+
+	static void stubMetadata(int instanceIdDelay, int availabilityZoneDelay) {
+		stubFor(get(urlEqualTo("/latest/meta-data/instance-id"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withFixedDelay(instanceIdDelay)
+						.withBody("i-1234abcd")));
+		stubFor(get(urlEqualTo("/latest/meta-data/placement/availability-zone"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withFixedDelay(availabilityZoneDelay)
+						.withBody("us-west-2b")));
+	}
+}
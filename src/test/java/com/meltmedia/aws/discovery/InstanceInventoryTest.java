@@ -0,0 +1,120 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class InstanceInventoryTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	List<AwsAutoDiscovery> started = new ArrayList<AwsAutoDiscovery>();
+	InstanceInventory inventory;
+
+	@Before
+	public void setUp() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstanceItems(null,
+				Ec2Responses.instance("i-1", "10.0.0.1", "us-east-1a", "env=prod", "role=web-1"),
+				Ec2Responses.instance("i-2", "10.0.0.2", "us-east-1a", "env=prod", "role=worker"),
+				Ec2Responses.instance("i-3", "10.0.0.3", "us-east-1b", "env=dev", "role=web-2")));
+		inventory = InstanceInventory.builder(discovery(null, ""))
+				.withRefreshInterval(1, TimeUnit.HOURS)
+				.build()
+				.start();
+	}
+
+	@After
+	public void tearDown() {
+		inventory.close();
+		for (AwsAutoDiscovery discovery : started) {
+			discovery.stop();
+		}
+	}
+
+	@Test
+	public void shouldAnswerEveryViewFromOneQuery() throws Exception {
+		AwsAutoDiscovery web = discovery(inventory, "tag:role=web*");
+		AwsAutoDiscovery prodWorkers = discovery(inventory, "tag:env=prod;tag:role=worker");
+		AwsAutoDiscovery zone = discovery(inventory, "availability-zone=us-east-1?;tag:env=dev");
+
+		assertThat("web members", web.getPrivateIpAddresses(), contains("10.0.0.1", "10.0.0.3"));
+		assertThat("worker members", prodWorkers.getPrivateIpAddresses(), contains("10.0.0.2"));
+		assertThat("dev members", zone.getPrivateIpAddresses(), contains("10.0.0.3"));
+		assertThat("no match", inventory.select(Parsers.filters("tag:role=db")).getPrivateIpAddresses(),
+				empty());
+		verify(1, postRequestedFor(urlEqualTo("/")));
+	}
+
+	@Test
+	public void shouldQueryEc2ForUnsupportedFilters() throws Exception {
+		AwsAutoDiscovery keyed = discovery(inventory, "key-name=deploy");
+
+		assertThat("server side result", keyed.getPrivateIpAddresses().size(), equalTo(3));
+		verify(1, postRequestedFor(urlEqualTo("/")));
+		assertThat("inventory not loaded", inventory.getStats().getLoads(), equalTo(0L));
+	}
+
+	@Test
+	public void shouldBeAnsweredAloneInAGroup() throws Exception {
+		AwsAutoDiscovery web = discovery(inventory, "tag:role=web*");
+		AwsAutoDiscovery worker = discovery(null, "tag:role=worker");
+
+		assertThat("grouped", new DiscoveryGroup(Arrays.asList(web, worker)).getPrivateIpAddresses()
+				.get(web), contains("10.0.0.1", "10.0.0.3"));
+		verify(2, postRequestedFor(urlEqualTo("/")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectFilteredSource() throws Exception {
+		InstanceInventory.builder(discovery(null, "tag:env=prod")).build();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectOtherCredentials() throws Exception {
+		AwsAutoDiscovery.builder()
+				.withCredentials("access", "other")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withInventory(inventory)
+				.build();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectOtherEndpoint() throws Exception {
+		AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8090"))
+				.withInventory(inventory)
+				.build();
+	}
+
+	AwsAutoDiscovery discovery(InstanceInventory inventory, String filters) throws Exception {
+		AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withFilters(Parsers.filters(filters))
+				.withInventory(inventory)
+				.build()
+				.start();
+		started.add(discovery);
+		return discovery;
+	}
+}
@@ -0,0 +1,84 @@
+package com.meltmedia.aws.discovery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.Reservation;
+
+public class InstancePagerTest {
+
+	@Test
+	public void shouldFollowNextToken() {
+		final List<String> tokens = new ArrayList<String>();
+		InstancePager pager = new InstancePager(new InstancePager.Fetcher() {
+			@Override
+			public DescribeInstancesResult fetch(DescribeInstancesRequest request) {
+				tokens.add(request.getNextToken());
+				if (request.getNextToken() == null) {
+					return page("page-2", "10.0.0.1", "10.0.0.2");
+				}
+				return page(null, "10.0.0.3");
+			}
+		}, new DescribeInstancesRequest().withMaxResults(5));
+
+		List<String> addresses = new ArrayList<String>();
+		while (pager.hasNext()) {
+			addresses.add(pager.next().getPrivateIpAddress());
+		}
+
+		assertThat("all pages walked", addresses, contains("10.0.0.1", "10.0.0.2", "10.0.0.3"));
+		assertThat("tokens passed", tokens.size(), equalTo(2));
+		assertThat("first page without token", tokens.get(0), nullValue());
+		assertThat("second page with token", tokens.get(1), equalTo("page-2"));
+		assertThat("page count", pager.getPages(), equalTo(2));
+	}
+
+	@Test
+	public void shouldFetchPagesLazily() {
+		final List<String> tokens = new ArrayList<String>();
+		InstancePager pager = new InstancePager(new InstancePager.Fetcher() {
+			@Override
+			public DescribeInstancesResult fetch(DescribeInstancesRequest request) {
+				tokens.add(request.getNextToken());
+				return page("more", "10.0.0.1");
+			}
+		}, new DescribeInstancesRequest());
+
+		pager.next();
+		assertThat("only the first page requested", tokens.size(), equalTo(1));
+	}
+
+	@Test
+	public void shouldSkipEmptyPages() {
+		InstancePager pager = new InstancePager(new InstancePager.Fetcher() {
+			@Override
+			public DescribeInstancesResult fetch(DescribeInstancesRequest request) {
+				if (request.getNextToken() == null) {
+					return page("page-2");
+				}
+				return page(null, "10.0.0.1");
+			}
+		}, new DescribeInstancesRequest());
+
+		assertThat("instance found", pager.next().getPrivateIpAddress(), equalTo("10.0.0.1"));
+		assertThat("no more instances", pager.hasNext(), equalTo(false));
+	}
+
+	static DescribeInstancesResult page(String nextToken, String... addresses) {
+		Reservation reservation = new Reservation();
+		for (String address : addresses) {
+			reservation.getInstances().add(new Instance().withPrivateIpAddress(address));
+		}
+		return new DescribeInstancesResult().withReservations(reservation).withNextToken(nextToken);
+	}
+}
@@ -0,0 +1,244 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class LivenessProberTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	List<ServerSocket> servers = new ArrayList<ServerSocket>();
+	int port;
+
+	@Before
+	public void setUp() throws Exception {
+		port = listen("127.0.0.2", 0);
+		listen("127.0.0.3", port);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (ServerSocket server : servers) {
+			server.close();
+		}
+	}
+
+	@Test
+	public void shouldProbeMembers() {
+		LivenessProber prober = new LivenessProber(port, TimeUnit.SECONDS.toNanos(1), 0, ProbePolicy.FILTER);
+
+		boolean[] reachable = prober.probe(new int[] {
+				Ipv4.pack("127.0.0.2"), Ipv4.pack("127.0.0.4"), Ipv4.pack("127.0.0.3") });
+
+		assertThat("listening", reachable[0], equalTo(true));
+		assertThat("not listening", reachable[1], equalTo(false));
+		assertThat("listening", reachable[2], equalTo(true));
+	}
+
+	@Test
+	public void shouldCacheResults() throws Exception {
+		LivenessProber prober = new LivenessProber(port, TimeUnit.SECONDS.toNanos(1),
+				TimeUnit.MILLISECONDS.toNanos(300), ProbePolicy.FILTER);
+		int[] member = { Ipv4.pack("127.0.0.2") };
+		assertThat("reachable", prober.probe(member)[0], equalTo(true));
+
+		servers.remove(0).close();
+		assertThat("cached", prober.probe(member)[0], equalTo(true));
+
+		Thread.sleep(400);
+		assertThat("probed again", prober.probe(member)[0], equalTo(false));
+	}
+
+	@Test
+	public void shouldProbeThousandsOfMembers() {
+		LivenessProber prober = new LivenessProber(port, TimeUnit.SECONDS.toNanos(2), 0, ProbePolicy.FILTER);
+		int[] addresses = new int[3000];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = Ipv4.pack("127.0." + (1 + i / 250) + "." + (1 + i % 250));
+		}
+		addresses[1500] = Ipv4.pack("127.0.0.2");
+
+		long start = System.nanoTime();
+		boolean[] reachable = prober.probe(addresses);
+		long elapsed = System.nanoTime() - start;
+
+		int count = 0;
+		for (boolean alive : reachable) {
+			count += alive ? 1 : 0;
+		}
+		assertThat("only the listener", count, equalTo(1));
+		assertThat("listener found", reachable[1500], equalTo(true));
+		assertThat("within the deadline", elapsed, lessThan(TimeUnit.SECONDS.toNanos(3)));
+	}
+
+	@Test
+	public void shouldProbeMembersQueuedBehindSlowOnes() throws Exception {
+		// a listener whose accept queue is full leaves new connections hanging.
+		ServerSocket full = new ServerSocket();
+		full.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.5"), port), 1);
+		servers.add(full);
+		List<SocketChannel> queued = new ArrayList<SocketChannel>();
+		try {
+			for (int i = 0; i < 3; i++) {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(new InetSocketAddress("127.0.0.5", port));
+				queued.add(channel);
+			}
+			LivenessProber prober = new LivenessProber(port, TimeUnit.MILLISECONDS.toNanos(300), 0,
+					ProbePolicy.FILTER);
+			int[] addresses = new int[LivenessProber.MAX_IN_FLIGHT + 1];
+			Arrays.fill(addresses, Ipv4.pack("127.0.0.5"));
+			addresses[LivenessProber.MAX_IN_FLIGHT] = Ipv4.pack("127.0.0.2");
+
+			boolean[] reachable = prober.probe(addresses);
+
+			assertThat("slow member", reachable[0], equalTo(false));
+			assertThat("probed after the slow ones", reachable[LivenessProber.MAX_IN_FLIGHT], equalTo(true));
+		} finally {
+			for (SocketChannel channel : queued) {
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void shouldFilterUnreachableMembers() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("127.0.0.4", "127.0.0.3", "127.0.0.2"));
+		AwsAutoDiscovery discovery = discovery(ProbePolicy.FILTER);
+		try {
+			discovery.getMembership();
+			discovery.awaitSnapshotNewerThan(0, 5, TimeUnit.SECONDS);
+			assertThat("reachable members", discovery.getPrivateIpAddresses(), contains("127.0.0.2", "127.0.0.3"));
+		} finally {
+			discovery.stop();
+		}
+	}
+
+	@Test
+	public void shouldRankUnreachableMembersLast() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("127.0.0.1", "127.0.0.3", "127.0.0.2"));
+		AwsAutoDiscovery discovery = discovery(ProbePolicy.RANK_LAST);
+		try {
+			discovery.getMembership();
+			discovery.awaitSnapshotNewerThan(0, 5, TimeUnit.SECONDS);
+			assertThat("unreachable last", discovery.getPrivateIpAddressesAsync().get(5, TimeUnit.SECONDS),
+					contains("127.0.0.2", "127.0.0.3", "127.0.0.1"));
+		} finally {
+			discovery.stop();
+		}
+	}
+
+	@Test
+	public void shouldProbeOffTheLoadPath() throws Exception {
+		ServerSocket full = new ServerSocket();
+		full.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.5"), port), 1);
+		servers.add(full);
+		List<SocketChannel> queued = new ArrayList<SocketChannel>();
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("127.0.0.2", "127.0.0.5"));
+		AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withLivenessProbe(port, 3, TimeUnit.SECONDS)
+				.withProbePolicy(ProbePolicy.FILTER)
+				.build()
+				.start();
+		try {
+			for (int i = 0; i < 3; i++) {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(new InetSocketAddress("127.0.0.5", port));
+				queued.add(channel);
+			}
+
+			long start = System.nanoTime();
+			discovery.getMembership();
+			assertThat("load not held by the probe", System.nanoTime() - start,
+					lessThan(TimeUnit.MILLISECONDS.toNanos(2000)));
+
+			MembershipSnapshot probed = discovery.awaitSnapshotNewerThan(0, 5, TimeUnit.SECONDS);
+			assertThat("probed members published", probed.getPrivateIpAddresses(), contains("127.0.0.2"));
+		} finally {
+			discovery.stop();
+			for (SocketChannel channel : queued) {
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void shouldNotHoldGettersOnTheProbe() throws Exception {
+		ServerSocket full = new ServerSocket();
+		full.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.5"), port), 1);
+		servers.add(full);
+		List<SocketChannel> queued = new ArrayList<SocketChannel>();
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("127.0.0.2", "127.0.0.5"));
+		AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withCacheTtl(30, TimeUnit.SECONDS)
+				.withLivenessProbe(port, 3, TimeUnit.SECONDS)
+				.withProbePolicy(ProbePolicy.FILTER)
+				.build()
+				.start();
+		try {
+			for (int i = 0; i < 3; i++) {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(new InetSocketAddress("127.0.0.5", port));
+				queued.add(channel);
+			}
+			discovery.getMembership();
+
+			long start = System.nanoTime();
+			List<String> unprobed = discovery.getPrivateIpAddresses();
+			assertThat("getter not held by the probe", System.nanoTime() - start,
+					lessThan(TimeUnit.MILLISECONDS.toNanos(1000)));
+			assertThat("not probed yet", unprobed, contains("127.0.0.2", "127.0.0.5"));
+
+			discovery.awaitSnapshotNewerThan(0, 5, TimeUnit.SECONDS);
+			assertThat("last results", discovery.getPrivateIpAddresses(), contains("127.0.0.2"));
+		} finally {
+			discovery.stop();
+			for (SocketChannel channel : queued) {
+				channel.close();
+			}
+		}
+	}
+
+	AwsAutoDiscovery discovery(ProbePolicy policy) throws Exception {
+		return AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withLivenessProbe(port, 1, TimeUnit.SECONDS)
+				.withProbePolicy(policy)
+				.build()
+				.start();
+	}
+
+	int listen(String address, int port) throws Exception {
+		ServerSocket server = new ServerSocket();
+		server.bind(new InetSocketAddress(InetAddress.getByName(address), port));
+		servers.add(server);
+		return server.getLocalPort();
+	}
+}
@@ -0,0 +1,381 @@
+package com.meltmedia.aws.discovery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs many discovery clients against an `Ec2Simulator` at once and reports
+ * the throughput, the latency of each member lookup and the EC2 calls made,
+ * to size polling intervals and cache ttls before a rollout.
+ *
+ * Each client is one node of the fleet. It looks up the members every call
+ * interval, from a random offset so the clients do not start in lockstep, on
+ * a shared pool of threads.
+ *
+ * ```
+ * LoadHarness.Report report = LoadHarness.builder(simulator)
+ *   .withClients(2000)
+ *   .withCallInterval(1, TimeUnit.SECONDS)
+ *   .withClientOptions(b -&gt; b.withCacheTtl(30, TimeUnit.SECONDS))
+ *   .build()
+ *   .run();
+ * ```
+ *
+ * It can also be run from the benchmarks jar, for example
+ * `java -cp benchmarks/target/benchmarks.jar com.meltmedia.aws.discovery.LoadHarness --clients 2000 --cache-ttl 30`.
+ */
+public class LoadHarness {
+
+	public static class Builder {
+		final Ec2Simulator simulator;
+		int clients = 100;
+		long durationNanos = TimeUnit.SECONDS.toNanos(10);
+		long callIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+		int threads = 16;
+		boolean inspect;
+		Consumer<AwsAutoDiscovery.Builder> clientOptions = b -> {
+		};
+
+		Builder(Ec2Simulator simulator) {
+			this.simulator = simulator;
+		}
+
+		/**
+		 * The number of clients, one per node of the fleet. Defaults to 100.
+		 */
+		public Builder withClients(int clients) {
+			this.clients = clients;
+			return this;
+		}
+
+		/**
+		 * How long the clients run for. Defaults to 10 seconds.
+		 */
+		public Builder withDuration(long duration, TimeUnit unit) {
+			this.durationNanos = unit.toNanos(duration);
+			return this;
+		}
+
+		/**
+		 * How often each client looks up the members. Defaults to one second.
+		 */
+		public Builder withCallInterval(long interval, TimeUnit unit) {
+			this.callIntervalNanos = unit.toNanos(interval);
+			return this;
+		}
+
+		/**
+		 * The threads the lookups run on. Defaults to 16.
+		 */
+		public Builder withThreads(int threads) {
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * Looks up each client's instance details from the simulated metadata
+		 * service, instead of handing them over.
+		 */
+		public Builder withInspection(boolean inspect) {
+			this.inspect = inspect;
+			return this;
+		}
+
+		/**
+		 * Configures each client, such as its filters, cache ttl or rate limit.
+		 */
+		public Builder withClientOptions(
+				Consumer<AwsAutoDiscovery.Builder> clientOptions) {
+			this.clientOptions = clientOptions;
+			return this;
+		}
+
+		public LoadHarness build() {
+			if (clients > simulator.getFleet().size()) {
+				throw new IllegalArgumentException(
+						"there cannot be more clients than instances in the fleet");
+			}
+			return new LoadHarness(this);
+		}
+	}
+
+	/**
+	 * The results of a run.
+	 */
+	public static class Report {
+		final int clients;
+		final long elapsedNanos;
+		final long lookups;
+		final long failures;
+		final LatencyHistogram.Snapshot latency;
+		final long startupCalls;
+		final long apiCalls;
+		final long throttled;
+
+		Report(int clients, long elapsedNanos, long lookups, long failures,
+				LatencyHistogram.Snapshot latency, long startupCalls,
+				long apiCalls, long throttled) {
+			this.clients = clients;
+			this.elapsedNanos = elapsedNanos;
+			this.lookups = lookups;
+			this.failures = failures;
+			this.latency = latency;
+			this.startupCalls = startupCalls;
+			this.apiCalls = apiCalls;
+			this.throttled = throttled;
+		}
+
+		/**
+		 * @return the member lookups made, failed ones included.
+		 */
+		public long getLookups() {
+			return lookups;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * @return the lookups completed per second.
+		 */
+		public double getThroughput() {
+			return perSecond(lookups - failures);
+		}
+
+		/**
+		 * @return the latency of the lookups.
+		 */
+		public LatencyHistogram.Snapshot getLatency() {
+			return latency;
+		}
+
+		/**
+		 * @return the EC2 calls made while the clients started, such as tag
+		 *         lookups.
+		 */
+		public long getStartupCalls() {
+			return startupCalls;
+		}
+
+		/**
+		 * @return the EC2 calls made during the run.
+		 */
+		public long getApiCalls() {
+			return apiCalls;
+		}
+
+		public double getApiCallsPerSecond() {
+			return perSecond(apiCalls);
+		}
+
+		/**
+		 * @return the EC2 calls throttled during the run.
+		 */
+		public long getThrottled() {
+			return throttled;
+		}
+
+		private double perSecond(long count) {
+			return elapsedNanos == 0 ? 0 : count * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%d clients for %.1fs: %d lookups (%d failed), %.1f/s, "
+							+ "latency p50 %.2fms p99 %.2fms p99.9 %.2fms max %.2fms; "
+							+ "EC2 calls %d at start, %d during the run (%.1f/s), %d throttled",
+					clients, elapsedNanos / 1e9, lookups, failures,
+					getThroughput(),
+					latency.getValueAtPercentile(50, TimeUnit.MILLISECONDS),
+					latency.getValueAtPercentile(99, TimeUnit.MILLISECONDS),
+					latency.getValueAtPercentile(99.9, TimeUnit.MILLISECONDS),
+					latency.getMax() / 1e6, startupCalls, apiCalls,
+					getApiCallsPerSecond(), throttled);
+		}
+	}
+
+	public static Builder builder(Ec2Simulator simulator) {
+		return new Builder(simulator);
+	}
+
+	private final Builder config;
+
+	LoadHarness(Builder config) {
+		this.config = config;
+	}
+
+	/**
+	 * Starts the clients, runs them for the duration and stops them.
+	 */
+	public Report run() throws Exception {
+		Ec2Simulator simulator = config.simulator;
+		long callsBefore = simulator.getCalls();
+		List<AwsAutoDiscovery> clients = new ArrayList<AwsAutoDiscovery>();
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+				config.threads, new DaemonThreadFactory("load-harness"));
+		try {
+			for (int node = 0; node < config.clients; node++) {
+				AwsAutoDiscovery.Builder builder = AwsAutoDiscovery.builder()
+						.withCredentials("access", "secret")
+						.withInstanceDetails(instanceDetails(node));
+				config.clientOptions.accept(builder);
+				clients.add(builder.build().start());
+			}
+
+			long callsAtStart = simulator.getCalls();
+			long throttledAtStart = simulator.getThrottled();
+			final LatencyHistogram latency = new LatencyHistogram();
+			final AtomicLong lookups = new AtomicLong();
+			final AtomicLong failures = new AtomicLong();
+			long start = System.nanoTime();
+			for (final AwsAutoDiscovery client : clients) {
+				scheduler.scheduleAtFixedRate(() -> {
+					long begin = System.nanoTime();
+					try {
+						client.getPrivateIpAddresses();
+					} catch (RuntimeException e) {
+						failures.incrementAndGet();
+					} finally {
+						latency.record(System.nanoTime() - begin);
+						lookups.incrementAndGet();
+					}
+				}, ThreadLocalRandom.current().nextLong(config.callIntervalNanos),
+						config.callIntervalNanos, TimeUnit.NANOSECONDS);
+			}
+			TimeUnit.NANOSECONDS.sleep(config.durationNanos);
+
+			// let the lookups in flight finish, rather than failing them.
+			scheduler.shutdown();
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+			long elapsed = System.nanoTime() - start;
+
+			return new Report(config.clients, elapsed, lookups.get(),
+					failures.get(), latency.snapshot(), callsAtStart
+							- callsBefore, simulator.getCalls() - callsAtStart,
+					simulator.getThrottled() - throttledAtStart);
+		} finally {
+			scheduler.shutdownNow();
+			for (AwsAutoDiscovery client : clients) {
+				client.stop();
+			}
+		}
+	}
+
+	private InstanceDetails instanceDetails(int node) {
+		if (!config.inspect) {
+			return config.simulator.instanceDetails(node);
+		}
+		InstanceInspector inspector = InstanceInspector.builder()
+				.withBaseUri(config.simulator.metadataUri(node))
+				.build();
+		try {
+			InstanceDetails details = inspector.inspect();
+			details.setEndpoint(config.simulator.getEndpoint());
+			return details;
+		} finally {
+			inspector.close();
+		}
+	}
+
+	/**
+	 * Runs a simulated fleet and a harness from the command line, and prints
+	 * the report.
+	 *
+	 * ```
+	 * --fleet N          instances in the fleet, 2000
+	 * --clients N        discovery clients, 2000
+	 * --duration S       seconds to run for, 60
+	 * --interval S       seconds between each client's lookups, 1
+	 * --cache-ttl S      the clients' cache ttl in seconds, 30
+	 * --threads N        threads the lookups run on, 64
+	 * --latency MS       the EC2 latency in milliseconds, 50
+	 * --fault-rate F     the fraction of EC2 calls throttled, 0
+	 * --request-limit N  the EC2 calls allowed per second, no limit
+	 * --page-size N      the clients' MaxResults, no paging
+	 * ```
+	 */
+	public static void main(String[] args) throws Exception {
+		int fleet = 2000;
+		int clients = 2000;
+		long duration = 60;
+		long interval = 1;
+		long cacheTtl = 30;
+		int threads = 64;
+		long latency = 50;
+		double faultRate = 0;
+		double requestLimit = 0;
+		int pageSize = 0;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "--fleet":
+				fleet = Integer.parseInt(value);
+				break;
+			case "--clients":
+				clients = Integer.parseInt(value);
+				break;
+			case "--duration":
+				duration = Long.parseLong(value);
+				break;
+			case "--interval":
+				interval = Long.parseLong(value);
+				break;
+			case "--cache-ttl":
+				cacheTtl = Long.parseLong(value);
+				break;
+			case "--threads":
+				threads = Integer.parseInt(value);
+				break;
+			case "--latency":
+				latency = Long.parseLong(value);
+				break;
+			case "--fault-rate":
+				faultRate = Double.parseDouble(value);
+				break;
+			case "--request-limit":
+				requestLimit = Double.parseDouble(value);
+				break;
+			case "--page-size":
+				pageSize = Integer.parseInt(value);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+		final long ttl = cacheTtl;
+		final int maxResults = pageSize;
+		Ec2Simulator simulator = Ec2Simulator.builder()
+				.withFleetSize(fleet)
+				.withTag("role", "web", "worker")
+				.withLatency(latency / 2, latency * 3 / 2, TimeUnit.MILLISECONDS)
+				.withFaultRate(faultRate)
+				.withRequestLimit(requestLimit)
+				.build()
+				.start();
+		try {
+			Report report = builder(simulator)
+					.withClients(clients)
+					.withDuration(duration, TimeUnit.SECONDS)
+					.withCallInterval(interval, TimeUnit.SECONDS)
+					.withThreads(threads)
+					.withClientOptions(b -> {
+						b.withCacheTtl(ttl, TimeUnit.SECONDS);
+						if (maxResults > 0) {
+							b.withMaxResults(maxResults);
+						}
+					})
+					.build()
+					.run();
+			System.out.println(report);
+		} finally {
+			simulator.close();
+		}
+	}
+}
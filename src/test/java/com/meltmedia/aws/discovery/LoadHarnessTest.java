@@ -0,0 +1,53 @@
+package com.meltmedia.aws.discovery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoadHarnessTest {
+	Ec2Simulator simulator;
+
+	@Before
+	public void setUp() throws Exception {
+		simulator = Ec2Simulator.builder()
+				.withFleetSize(200)
+				.withTag("role", "web", "worker")
+				.withLatency(5, 15, TimeUnit.MILLISECONDS)
+				.build()
+				.start();
+	}
+
+	@After
+	public void tearDown() {
+		simulator.close();
+	}
+
+	@Test
+	public void shouldReportTheRun() throws Exception {
+		LoadHarness.Report report = LoadHarness.builder(simulator)
+				.withClients(50)
+				.withDuration(2, TimeUnit.SECONDS)
+				.withCallInterval(200, TimeUnit.MILLISECONDS)
+				.withInspection(true)
+				.withClientOptions(b -> b
+						.withTagNames(Parsers.tagNames("role"))
+						.withCacheTtl(1, TimeUnit.SECONDS))
+				.build()
+				.run();
+
+		assertThat("lookups", report.getLookups(), greaterThan(250L));
+		assertThat("no failures", report.getFailures(), equalTo(0L));
+		assertThat("latency", report.getLatency().getCount(), equalTo(report.getLookups()));
+		assertThat("a tag lookup per client", report.getStartupCalls(), equalTo(50L));
+		// with a one second ttl each client queries at most about twice.
+		assertThat("cached", report.getApiCalls(), lessThan(report.getLookups() / 2));
+		assertThat("report", report.toString().startsWith("50 clients"), equalTo(true));
+	}
+}
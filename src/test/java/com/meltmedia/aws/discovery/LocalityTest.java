@@ -0,0 +1,80 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class LocalityTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	Membership membership = Membership.builder()
+			.add(Ipv4.pack("10.0.0.1"), "i-1", "us-west-2a", "running", 0)
+			.add(Ipv4.pack("10.0.0.2"), "i-2", "us-east-1b", "running", 0)
+			.add(Ipv4.pack("10.0.0.3"), "i-3", "us-east-1a", "running", 0)
+			.add(Ipv4.pack("10.0.0.4"), "i-4", null, "running", 0)
+			.add(Ipv4.pack("10.0.0.5"), "i-5", "us-east-1a", "running", 0)
+			.add(Ipv4.pack("10.0.0.6"), "i-6", "us-east-1c", "running", 0)
+			.build();
+
+	@Test
+	public void shouldKeepAddressOrder() {
+		assertThat("address order", Locality.ANY.privateIpAddresses(membership, "us-east-1a"),
+				contains("10.0.0.1", "10.0.0.2", "10.0.0.3", "10.0.0.4", "10.0.0.5", "10.0.0.6"));
+	}
+
+	@Test
+	public void shouldRankZoneThenRegion() {
+		assertThat("zone, then region, then the rest",
+				Locality.PREFER_ZONE.privateIpAddresses(membership, "us-east-1a"),
+				contains("10.0.0.3", "10.0.0.5", "10.0.0.2", "10.0.0.6", "10.0.0.1", "10.0.0.4"));
+	}
+
+	@Test
+	public void shouldKeepOnlyTheZone() {
+		assertThat("zone only", Locality.zoneOnly(2).privateIpAddresses(membership, "us-east-1a"),
+				contains("10.0.0.3", "10.0.0.5"));
+	}
+
+	@Test
+	public void shouldFallBackWhenTheZoneIsSmall() {
+		assertThat("ranked fallback", Locality.zoneOnly(3).privateIpAddresses(membership, "us-east-1a"),
+				contains("10.0.0.3", "10.0.0.5", "10.0.0.2", "10.0.0.6", "10.0.0.1", "10.0.0.4"));
+		assertThat("unknown zone", Locality.zoneOnly(1).privateIpAddresses(membership, null),
+				contains("10.0.0.1", "10.0.0.2", "10.0.0.3", "10.0.0.4", "10.0.0.5", "10.0.0.6"));
+	}
+
+	@Test
+	public void shouldFindRegions() {
+		assertThat("region", Locality.region("us-east-1a"), equalTo("us-east-1"));
+		assertThat("local zone", Locality.region("us-west-2-lax-1a"), equalTo("us-west-2"));
+		assertThat("gov cloud", Locality.region("us-gov-west-1a"), equalTo("us-gov-west-1"));
+		assertThat("no zone", Locality.region(null), nullValue());
+	}
+
+	@Test
+	public void shouldRankDiscoveredMembers() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.fleet(6));
+		AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withLocality(Locality.PREFER_ZONE)
+				.build()
+				.start();
+		try {
+			assertThat("same zone first", discovery.getPrivateIpAddresses(),
+					contains("10.0.0.1", "10.0.0.4", "10.0.0.2", "10.0.0.3", "10.0.0.5", "10.0.0.6"));
+			assertThat("ranked members", discovery.getRankedMembers().get(1).getAvailabilityZone(),
+					equalTo("us-east-1a"));
+		} finally {
+			discovery.stop();
+		}
+	}
+}
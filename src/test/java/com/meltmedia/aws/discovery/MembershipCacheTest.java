@@ -0,0 +1,189 @@
+package com.meltmedia.aws.discovery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MembershipCacheTest {
+
+	ExecutorService executor;
+	AtomicInteger loads;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newCachedThreadPool();
+		loads = new AtomicInteger();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void shouldServeHitsInsideTtl() {
+		MembershipCache<Integer> cache = new MembershipCache<Integer>(
+				counting(), 1, 0, TimeUnit.MINUTES, null);
+
+		assertThat("first value loaded", cache.get(), equalTo(1));
+		assertThat("second value cached", cache.get(), equalTo(1));
+		assertThat("one hit", cache.getStats().getHits(), equalTo(1L));
+		assertThat("one miss", cache.getStats().getMisses(), equalTo(1L));
+	}
+
+	@Test
+	public void shouldLoadEveryCallWithoutTtl() {
+		MembershipCache<Integer> cache = new MembershipCache<Integer>(
+				counting(), 0, 0, TimeUnit.MINUTES, null);
+
+		cache.get();
+		assertThat("value reloaded", cache.get(), equalTo(2));
+	}
+
+	@Test
+	public void shouldShareInFlightLoad() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final MembershipCache<Integer> cache = new MembershipCache<Integer>(
+				new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						release.await();
+						return loads.incrementAndGet();
+					}
+				}, 1, 0, TimeUnit.MINUTES, null);
+
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return cache.get();
+				}
+			}));
+		}
+		Thread.sleep(100);
+		release.countDown();
+
+		for (Future<Integer> result : results) {
+			assertThat("shared value", result.get(5, TimeUnit.SECONDS),
+					equalTo(1));
+		}
+		assertThat("loaded once", loads.get(), equalTo(1));
+	}
+
+	@Test
+	public void shouldRefreshAhead() throws Exception {
+		MembershipCache<Integer> cache = new MembershipCache<Integer>(
+				counting(), 10000, 50, TimeUnit.MILLISECONDS, executor);
+
+		cache.get();
+		Thread.sleep(100);
+		assertThat("stale value served", cache.get(), equalTo(1));
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (cache.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat("refreshed value served", cache.get(), equalTo(2));
+		assertThat("one refresh", cache.getStats().getRefreshes(), equalTo(1L));
+	}
+
+	@Test
+	public void shouldNotCacheLoadsStartedBeforeInvalidate() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final MembershipCache<Integer> cache = new MembershipCache<Integer>(
+				new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int load = loads.incrementAndGet();
+						if (load == 1) {
+							started.countDown();
+							release.await();
+						}
+						return load;
+					}
+				}, 1, 0, TimeUnit.MINUTES, null);
+
+		Future<Integer> stale = executor.submit(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return cache.get();
+			}
+		});
+		started.await();
+		cache.invalidate();
+		release.countDown();
+
+		assertThat("waiting caller answered", stale.get(), equalTo(1));
+		assertThat("stale value not cached", cache.getIfFresh(), nullValue());
+		assertThat("fresh value loaded", cache.get(), equalTo(2));
+		assertThat("fresh value cached", cache.get(), equalTo(2));
+	}
+
+	@Test
+	public void shouldRunRefreshQueuedBehindTheCaller() throws Exception {
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		try {
+			final MembershipCache<Integer> cache = new MembershipCache<Integer>(
+					counting(), TimeUnit.MINUTES.toNanos(1), 1, TimeUnit.NANOSECONDS,
+					single);
+			cache.get();
+
+			// a poll on the refresh executor's only thread. Its hit queues a
+			// refresh ahead behind itself, which the refresh must not wait on.
+			Future<Integer> poll = single.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					cache.get();
+					return cache.refresh();
+				}
+			});
+			assertThat("poll finished", poll.get(5, TimeUnit.SECONDS), equalTo(2));
+			assertThat("one refresh ahead", cache.getStats().getRefreshes(), equalTo(1L));
+		} finally {
+			single.shutdownNow();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectRefreshAheadPastTtl() {
+		new MembershipCache<Integer>(counting(), 10, 10, TimeUnit.SECONDS,
+				executor);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void shouldRethrowLoadFailures() {
+		MembershipCache<Integer> cache = new MembershipCache<Integer>(
+				new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						throw new IllegalStateException();
+					}
+				}, 1, 0, TimeUnit.MINUTES, null);
+		cache.get();
+	}
+
+	Callable<Integer> counting() {
+		return new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return loads.incrementAndGet();
+			}
+		};
+	}
+}
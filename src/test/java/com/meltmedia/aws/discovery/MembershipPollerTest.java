@@ -0,0 +1,141 @@
+package com.meltmedia.aws.discovery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MembershipPollerTest {
+
+	ScheduledExecutorService scheduler;
+	LinkedList<Membership> responses;
+	List<MembershipEvent> events;
+	List<MembershipListener> listeners;
+
+	@Before
+	public void setUp() {
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+		responses = new LinkedList<Membership>();
+		events = new CopyOnWriteArrayList<MembershipEvent>();
+		listeners = new CopyOnWriteArrayList<MembershipListener>();
+		listeners.add(new MembershipListener() {
+			@Override
+			public void membershipChanged(MembershipEvent event) {
+				events.add(event);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+	}
+
+	@Test
+	public void shouldReportJoinedAndLeft() throws Exception {
+		responses.add(members("10.0.0.1", "10.0.0.2"));
+		responses.add(members("10.0.0.2", "10.0.0.3"));
+		MembershipPoller poller = poller(1000, 0);
+
+		poller.poll();
+		poller.poll();
+
+		assertThat("two events", events.size(), equalTo(2));
+		assertThat("initial members joined", events.get(0).getJoined(), contains("10.0.0.1", "10.0.0.2"));
+		assertThat("new member joined", events.get(1).getJoined(), contains("10.0.0.3"));
+		assertThat("old member left", events.get(1).getLeft(), contains("10.0.0.1"));
+		assertThat("current members", events.get(1).getMembers(), contains("10.0.0.2", "10.0.0.3"));
+	}
+
+	@Test
+	public void shouldNotNotifyWhenUnchanged() throws Exception {
+		responses.add(members("10.0.0.1"));
+		responses.add(members("10.0.0.1"));
+		MembershipPoller poller = poller(1000, 0);
+
+		poller.poll();
+		poller.poll();
+
+		assertThat("one event", events.size(), equalTo(1));
+		assertThat("nothing left", events.get(0).getLeft(), empty());
+	}
+
+	@Test
+	public void shouldReportReplacedInstances() throws Exception {
+		responses.add(Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-1", "us-east-1a", "running", 0)
+				.add(Ipv4.pack("10.0.0.2"), "i-2", "us-east-1a", "running", 0).build());
+		responses.add(Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-3", "us-east-1a", "running", 0)
+				.add(Ipv4.pack("10.0.0.2"), "i-2", "us-east-1a", "stopping", 0).build());
+		MembershipPoller poller = poller(1000, 0);
+
+		poller.poll();
+		poller.poll();
+
+		assertThat("two events", events.size(), equalTo(2));
+		assertThat("nothing joined", events.get(1).getJoined(), empty());
+		assertThat("nothing left", events.get(1).getLeft(), empty());
+		assertThat("both changed", events.get(1).getChanged(), contains("10.0.0.1", "10.0.0.2"));
+		assertThat("new instance", events.get(1).getMembership().get(0).getInstanceId(), equalTo("i-3"));
+	}
+
+	@Test
+	public void shouldPollOnSchedule() throws Exception {
+		final CountDownLatch polls = new CountDownLatch(3);
+		MembershipPoller poller = new MembershipPoller(new Callable<Membership>() {
+			@Override
+			public Membership call() {
+				polls.countDown();
+				return Membership.EMPTY;
+			}
+		}, scheduler, TimeUnit.MILLISECONDS.toNanos(10), 0, listeners, null);
+
+		poller.start();
+		assertThat("polled repeatedly", polls.await(5, TimeUnit.SECONDS), equalTo(true));
+		poller.stop();
+	}
+
+	@Test
+	public void shouldJitterInterval() {
+		MembershipPoller poller = poller(1000, 500);
+
+		for (int i = 0; i < 100; i++) {
+			long delay = poller.nextDelay();
+			assertThat("at least the interval", delay, greaterThanOrEqualTo(1000L));
+			assertThat("within the jitter", delay, lessThan(1500L));
+		}
+	}
+
+	static Membership members(String... addresses) {
+		Membership.Builder builder = Membership.builder();
+		for (String address : addresses) {
+			builder.add(address);
+		}
+		return builder.build();
+	}
+
+	MembershipPoller poller(long intervalNanos, long jitterNanos) {
+		return new MembershipPoller(new Callable<Membership>() {
+			@Override
+			public Membership call() {
+				return responses.removeFirst();
+			}
+		}, scheduler, intervalNanos, jitterNanos, listeners, null);
+	}
+}
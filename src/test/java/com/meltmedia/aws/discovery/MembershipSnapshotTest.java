@@ -0,0 +1,109 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class MembershipSnapshotTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	AwsAutoDiscovery discovery;
+
+	@Before
+	public void setUp() throws Exception {
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.build()
+				.start();
+	}
+
+	@After
+	public void tearDown() {
+		discovery.stop();
+	}
+
+	@Test
+	public void shouldStartEmpty() {
+		assertThat("empty", discovery.currentSnapshot(), sameInstance(MembershipSnapshot.EMPTY));
+		assertThat("version zero", discovery.currentSnapshot().getVersion(), equalTo(0L));
+		assertThat("nothing newer", discovery.snapshotIfNewerThan(0), nullValue());
+	}
+
+	@Test
+	public void shouldOnlyPublishChanges() {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.2"));
+		discovery.getMembership();
+		MembershipSnapshot first = discovery.currentSnapshot();
+		assertThat("first version", first.getVersion(), equalTo(1L));
+		assertThat("addresses", first.getPrivateIpAddresses(), contains("10.0.0.1", "10.0.0.2"));
+
+		discovery.getMembership();
+		assertThat("unchanged poll", discovery.currentSnapshot(), sameInstance(first));
+		assertThat("nothing newer", discovery.snapshotIfNewerThan(1), nullValue());
+
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.3"));
+		discovery.getMembership();
+		MembershipSnapshot second = discovery.snapshotIfNewerThan(1);
+		assertThat("next version", second.getVersion(), equalTo(2L));
+		assertThat("new addresses", second.getPrivateIpAddresses(), contains("10.0.0.1", "10.0.0.3"));
+		assertThat("new hash", second.getContentHash(), not(equalTo(first.getContentHash())));
+	}
+
+	@Test
+	public void shouldWakeWaitersOnChange() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1"));
+		discovery.getMembership();
+
+		CompletableFuture<MembershipSnapshot> waiter = CompletableFuture.supplyAsync(() -> {
+			try {
+				return discovery.awaitSnapshotNewerThan(1, 5, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		discovery.getMembership();
+		Thread.sleep(100);
+		assertThat("not woken by the same members", waiter.isDone(), equalTo(false));
+
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.2"));
+		discovery.getMembership();
+		assertThat("woken", waiter.get(1, TimeUnit.SECONDS).getVersion(), equalTo(2L));
+	}
+
+	@Test
+	public void shouldTimeOutWithoutChanges() throws Exception {
+		assertThat("timed out", discovery.awaitSnapshotNewerThan(0, 50, TimeUnit.MILLISECONDS), nullValue());
+	}
+
+	@Test
+	public void shouldHashContent() {
+		Membership membership = Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-1", "us-east-1a", "running", 0)
+				.build();
+		Membership stopping = Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-1", "us-east-1a", "stopping", 0)
+				.build();
+
+		MembershipSnapshot snapshot = MembershipSnapshot.EMPTY.next(membership, membership.getPrivateIpAddresses());
+		assertThat("same content", snapshot.next(membership, membership.getPrivateIpAddresses()),
+				sameInstance(snapshot));
+		assertThat("state change", snapshot.next(stopping, stopping.getPrivateIpAddresses()).getVersion(),
+				equalTo(2L));
+	}
+}
@@ -0,0 +1,113 @@
+package com.meltmedia.aws.discovery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceState;
+import com.amazonaws.services.ec2.model.Placement;
+import com.amazonaws.services.ec2.model.Tag;
+
+public class MembershipTest {
+
+	@Test
+	public void shouldOrderAddressesAsUnsigned() {
+		Membership membership = Membership.builder()
+				.add("192.168.0.1").add("10.0.0.2").add("172.16.0.1").add("10.0.0.1")
+				.build();
+
+		assertThat("sorted", membership.getPrivateIpAddresses(),
+				contains("10.0.0.1", "10.0.0.2", "172.16.0.1", "192.168.0.1"));
+	}
+
+	@Test
+	public void shouldFindMembers() {
+		Membership membership = Membership.builder()
+				.add("10.0.0.1").add("192.168.0.1").build();
+
+		assertThat("high address", membership.contains("192.168.0.1"), equalTo(true));
+		assertThat("packed", membership.contains(Ipv4.pack("10.0.0.1")), equalTo(true));
+		assertThat("missing", membership.contains("10.0.0.3"), equalTo(false));
+		assertThat("not an address", membership.contains("bogus"), equalTo(false));
+		assertThat("index", membership.indexOf(Ipv4.pack("192.168.0.1")), equalTo(1));
+	}
+
+	@Test
+	public void shouldDropDuplicateAddresses() {
+		Membership membership = Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-1", null, "running", 0)
+				.add(Ipv4.pack("10.0.0.1"), "i-2", null, "running", 0)
+				.build();
+
+		assertThat("one member", membership.size(), equalTo(1));
+		assertThat("first wins", membership.instanceIdAt(0), equalTo("i-1"));
+	}
+
+	@Test
+	public void shouldOrderSharedAddressesByRegion() {
+		Membership membership = Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-west", "us-west-2a", "running", 0)
+				.add(Ipv4.pack("10.0.0.1"), "i-east", "us-east-1a", "running", 0)
+				.add(Ipv4.pack("10.0.0.1"), "i-east-again", "us-east-1b", "running", 0)
+				.build();
+
+		assertThat("one member per region", membership.size(), equalTo(2));
+		assertThat("first region", membership.instanceIdAt(0), equalTo("i-east"));
+		assertThat("second region", membership.instanceIdAt(1), equalTo("i-west"));
+	}
+
+	@Test
+	public void shouldReadInstances() {
+		Membership membership = Membership.builder()
+				.add(instance("i-1", "10.0.0.1", "us-east-1a", "cluster=a"))
+				.add(instance("i-2", "10.0.0.2", "us-east-1a", "cluster=a"))
+				.add(instance("i-3", null, "us-east-1a"))
+				.build();
+
+		assertThat("instances without an address skipped", membership.size(), equalTo(2));
+		Member member = membership.get(1);
+		assertThat("address", member.getPrivateIpAddress(), equalTo("10.0.0.2"));
+		assertThat("instance id", member.getInstanceId(), equalTo("i-2"));
+		assertThat("state", member.getState(), equalTo("running"));
+		assertThat("launch time", member.getLaunchTime(), equalTo(1000L));
+		assertThat("tags", member.getTags(), hasEntry("cluster", "a"));
+		assertThat("zones interned", membership.availabilityZoneAt(0),
+				sameInstance(membership.availabilityZoneAt(1)));
+	}
+
+	@Test
+	public void shouldCompareInstancesAndStates() {
+		Membership running = Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-1", null, "running", 0).build();
+		Membership same = Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-1", "us-east-1a", "running", 5).build();
+		Membership stopping = Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-1", null, "stopping", 0).build();
+
+		assertThat("equal", running, equalTo(same));
+		assertThat("same hash", running.hashCode(), equalTo(same.hashCode()));
+		assertThat("state differs", running, not(equalTo(stopping)));
+	}
+
+	static Instance instance(String instanceId, String address, String zone, String... tags) {
+		Instance instance = new Instance()
+				.withInstanceId(instanceId)
+				.withPrivateIpAddress(address)
+				.withPlacement(new Placement(new String(zone)))
+				.withState(new InstanceState().withName("running"))
+				.withLaunchTime(new Date(1000));
+		for (String tag : tags) {
+			String[] parts = tag.split("=", 2);
+			instance.withTags(new Tag(parts[0], parts[1]));
+		}
+		return instance;
+	}
+}
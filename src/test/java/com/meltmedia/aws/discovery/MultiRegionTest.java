@@ -0,0 +1,184 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class MultiRegionTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	/**
+	 * Stands in for the endpoint of another region.
+	 */
+	@Rule
+	public WireMockRule westRule = new WireMockRule(wireMockConfig().port(8090));
+
+	WireMock west = new WireMock("localhost", 8090);
+
+	AwsAutoDiscovery discovery;
+
+	@After
+	public void stop() {
+		if (discovery != null) {
+			discovery.stop();
+		}
+	}
+
+	@Test
+	public void shouldMergeRegions() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.2"));
+		stubWest(members());
+		discovery = start();
+
+		Membership membership = discovery.getMembership();
+		assertThat("merged", membership.getPrivateIpAddresses(),
+				contains("10.0.0.1", "10.0.0.2", "10.1.0.1"));
+		assertThat("home region", membership.get(0).getRegion(), equalTo("us-east-1"));
+		assertThat("remote region", membership.get(2).getRegion(), equalTo("us-west-2"));
+		assertThat("every region answered", discovery.getUnavailableRegions(), empty());
+	}
+
+	@Test
+	public void shouldKeepMembersOfOtherRegionsSharingAnAddress() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1"));
+		stubWest(aResponse()
+				.withStatus(200)
+				.withHeader("Content-Type", "text/xml")
+				.withBody(Ec2Responses.describeInstanceItems(null,
+						Ec2Responses.instance("i-west0001", "10.0.0.1", "us-west-2a"))));
+		discovery = start();
+
+		Membership membership = discovery.getMembership();
+		assertThat("both members", membership.getPrivateIpAddresses(),
+				contains("10.0.0.1", "10.0.0.1"));
+		assertThat("home region", membership.get(0).getRegion(), equalTo("us-east-1"));
+		assertThat("remote member", membership.get(1).getInstanceId(), equalTo("i-west0001"));
+	}
+
+	@Test
+	public void shouldLeaveOutSlowRegions() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.2"));
+		stubWest(members().withFixedDelay(5000));
+		discovery = start();
+
+		long start = System.nanoTime();
+		Membership membership = discovery.getMembership();
+		assertThat("not blocked by the slow region",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(3000L));
+		assertThat("partial", membership.getPrivateIpAddresses(), contains("10.0.0.1", "10.0.0.2"));
+		assertThat("slow region", discovery.getUnavailableRegions(), contains("us-west-2"));
+	}
+
+	@Test
+	public void shouldLeaveOutFailingRegions() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.2"));
+		stubWest(aResponse()
+				.withStatus(403)
+				.withHeader("Content-Type", "text/xml")
+				.withBody(Ec2Responses.error("UnauthorizedOperation", "not here")));
+		discovery = start();
+
+		assertThat("partial", discovery.getPrivateIpAddresses(), contains("10.0.0.1", "10.0.0.2"));
+		assertThat("failed region", discovery.getUnavailableRegions(), contains("us-west-2"));
+
+		stubWest(members());
+		assertThat("recovered", discovery.queryMembership().getPrivateIpAddresses(),
+				contains("10.0.0.1", "10.0.0.2", "10.1.0.1"));
+		assertThat("every region answered", discovery.getUnavailableRegions(), empty());
+	}
+
+	@Test
+	public void shouldLeaveOutSlowHomeRegion() throws Exception {
+		AsyncDiscoveryTest.stubSlowMembers(5000);
+		stubWest(members());
+		discovery = start();
+
+		long start = System.nanoTime();
+		Membership membership = discovery.getMembership();
+		assertThat("not blocked by the slow region",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(3000L));
+		assertThat("partial", membership.getPrivateIpAddresses(), contains("10.1.0.1"));
+		assertThat("slow region", discovery.getUnavailableRegions(), contains("us-east-1"));
+	}
+
+	@Test
+	public void shouldNotApplyTheLocalLimiterToOtherRegions() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1"));
+		stubWest(members());
+		final AtomicInteger acquired = new AtomicInteger();
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withRegion("us-west-2", "http://localhost:8090")
+				.withRateLimiter(new RateLimiter() {
+					@Override
+					public void acquire() {
+						acquired.incrementAndGet();
+					}
+				})
+				.build()
+				.start();
+
+		assertThat("merged", discovery.getPrivateIpAddresses(), contains("10.0.0.1", "10.1.0.1"));
+		assertThat("only the local call limited", acquired.get(), equalTo(1));
+	}
+
+	@Test
+	public void shouldSkipTheHomeRegion() throws Exception {
+		ThrottlingTest.stubMembers(Ec2Responses.describeInstances("10.0.0.1"));
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withRegion("us-east-1", "http://localhost:8090")
+				.build()
+				.start();
+
+		assertThat("home region only", discovery.getPrivateIpAddresses(), contains("10.0.0.1"));
+		west.verifyThat(0, postRequestedFor(urlEqualTo("/")));
+	}
+
+	AwsAutoDiscovery start() throws Exception {
+		return AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withRegion("us-west-2", "http://localhost:8090")
+				.withRegionTimeout(1, TimeUnit.SECONDS)
+				.build()
+				.start();
+	}
+
+	ResponseDefinitionBuilder members() {
+		return aResponse()
+				.withStatus(200)
+				.withHeader("Content-Type", "text/xml")
+				.withBody(Ec2Responses.describeInstanceItems(null,
+						Ec2Responses.instance("i-west0001", "10.1.0.1", "us-west-2a")));
+	}
+
+	void stubWest(ResponseDefinitionBuilder response) {
+		west.resetMappings();
+		west.register(post(urlEqualTo("/"))
+				.withRequestBody(containing("Action=DescribeInstances"))
+				.willReturn(response));
+	}
+}
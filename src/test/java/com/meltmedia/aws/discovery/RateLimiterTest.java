@@ -0,0 +1,112 @@
+package com.meltmedia.aws.discovery;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.BasicSessionCredentials;
+import com.amazonaws.internal.StaticCredentialsProvider;
+
+public class RateLimiterTest {
+
+	@Test
+	public void shouldAllowBurst() {
+		TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10, 3);
+
+		assertThat("first call free", limiter.reserve(), equalTo(0L));
+		assertThat("second call free", limiter.reserve(), equalTo(0L));
+		assertThat("third call free", limiter.reserve(), equalTo(0L));
+		assertThat("fourth call waits", limiter.reserve(), greaterThan(0L));
+	}
+
+	@Test
+	public void shouldHoldRate() {
+		TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(100, 1);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 11; i++) {
+			limiter.acquire();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		assertThat("ten intervals waited", elapsed,
+				greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(90)));
+	}
+
+	@Test
+	public void shouldGiveBackTokenWhenInterrupted() {
+		TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1, 1);
+		limiter.acquire();
+
+		Thread.currentThread().interrupt();
+		try {
+			limiter.acquire();
+			fail("the wait was interrupted");
+		} catch (DiscoveryException e) {
+			// expected.
+		} finally {
+			Thread.interrupted();
+		}
+
+		assertThat("one token owed", limiter.reserve(),
+				lessThanOrEqualTo(TimeUnit.SECONDS.toNanos(1)));
+	}
+
+	@Test
+	public void shouldShareClientForSameEndpointAndCredentials() {
+		Ec2ClientRegistry registry = new Ec2ClientRegistry(5);
+		ClientConfiguration config = new ClientConfiguration();
+
+		Ec2ClientRegistry.Lease first = registry.lease("http://localhost:8089", credentials("a"), config);
+		Ec2ClientRegistry.Lease second = registry.lease("http://localhost:8089", credentials("a"), config);
+		Ec2ClientRegistry.Lease other = registry.lease("http://localhost:8089", credentials("b"), config);
+
+		assertThat("client shared", second.getClient(), sameInstance(first.getClient()));
+		assertThat("limiter shared", second.getRateLimiter(), sameInstance(first.getRateLimiter()));
+		assertThat("other credentials not shared", other.getClient(), not(sameInstance(first.getClient())));
+		assertThat("two clients", registry.size(), equalTo(2));
+
+		first.close();
+		first.close();
+		assertThat("client kept while leased", registry.size(), equalTo(2));
+		second.close();
+		other.close();
+		assertThat("clients released", registry.size(), equalTo(0));
+	}
+
+	@Test
+	public void shouldNotShareClientAcrossSecretsOrSessions() {
+		Ec2ClientRegistry registry = new Ec2ClientRegistry();
+		ClientConfiguration config = new ClientConfiguration();
+
+		Ec2ClientRegistry.Lease first = registry.lease("http://localhost:8089",
+				new StaticCredentialsProvider(new BasicAWSCredentials("a", "secret")), config);
+		Ec2ClientRegistry.Lease rotated = registry.lease("http://localhost:8089",
+				new StaticCredentialsProvider(new BasicAWSCredentials("a", "rotated")), config);
+		Ec2ClientRegistry.Lease session = registry.lease("http://localhost:8089",
+				new StaticCredentialsProvider(new BasicSessionCredentials("a", "secret", "token")), config);
+
+		assertThat("other secret not shared", rotated.getClient(), not(sameInstance(first.getClient())));
+		assertThat("session not shared", session.getClient(), not(sameInstance(first.getClient())));
+		assertThat("three clients", registry.size(), equalTo(3));
+
+		first.close();
+		rotated.close();
+		session.close();
+	}
+
+	static StaticCredentialsProvider credentials(String accessKey) {
+		return new StaticCredentialsProvider(new BasicAWSCredentials(accessKey, "secret"));
+	}
+}
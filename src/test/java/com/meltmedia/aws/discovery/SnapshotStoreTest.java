@@ -0,0 +1,192 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.amazonaws.ClientConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class SnapshotStoreTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	File file;
+	SnapshotStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("discovery", ".snapshot");
+		file.delete();
+		store = new SnapshotStore(file);
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void shouldRoundTripMemberDetails() throws IOException {
+		store.save(Ec2Responses.instanceDetails("ec2.us-east-1.amazonaws.com"), Membership.builder()
+				.add(Ipv4.pack("10.0.0.1"), "i-1", "us-east-1a", "running", 1000L, "role", "web")
+				.add(Ipv4.pack("10.0.0.2"), null, null, null, 0).build());
+
+		Membership members = store.load().getMembership();
+
+		assertThat("instance id", members.instanceIdAt(0), equalTo("i-1"));
+		assertThat("zone", members.availabilityZoneAt(0), equalTo("us-east-1a"));
+		assertThat("state", members.stateAt(0), equalTo("running"));
+		assertThat("launch time", members.launchTimeAt(0), equalTo(1000L));
+		assertThat("tags", members.get(0).getTags(), hasEntry("role", "web"));
+		assertThat("missing instance id", members.instanceIdAt(1), nullValue());
+		assertThat("missing zone", members.availabilityZoneAt(1), nullValue());
+	}
+
+	@Test
+	public void shouldRoundTrip() throws IOException {
+		store.save(Ec2Responses.instanceDetails("ec2.us-east-1.amazonaws.com"),
+				Arrays.asList("10.0.0.1", "172.31.255.254"));
+
+		SnapshotStore.Snapshot snapshot = store.load();
+
+		assertThat("instance id", snapshot.getInstanceDetails().getInstanceId(), equalTo("i-00000000"));
+		assertThat("endpoint", snapshot.getInstanceDetails().getEndpoint(), equalTo("ec2.us-east-1.amazonaws.com"));
+		assertThat("members", snapshot.getMembers(), contains("10.0.0.1", "172.31.255.254"));
+	}
+
+	@Test
+	public void shouldIgnoreMissingFile() {
+		assertThat("no snapshot", store.load(), nullValue());
+	}
+
+	@Test
+	public void shouldIgnoreCorruptFile() throws IOException {
+		store.save(Ec2Responses.instanceDetails("ec2.us-east-1.amazonaws.com"), Arrays.asList("10.0.0.1"));
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+
+		assertThat("no snapshot", store.load(), nullValue());
+	}
+
+	@Test
+	public void shouldServeSnapshotWhileResolvingTagsAndQuerying() throws Exception {
+		store.save(Ec2Responses.instanceDetails("http://localhost:8089"), Arrays.asList("10.0.0.1"));
+		stubFor(post(urlEqualTo("/"))
+				.withRequestBody(containing("InstanceId.1=i-00000000"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(Ec2Responses.describeInstanceItems(null,
+								Ec2Responses.instance("i-00000000", "10.0.0.1", "us-east-1a", "role=web")))));
+		stubFor(post(urlEqualTo("/"))
+				.withRequestBody(containing("Filter.1.Name=tag%3Arole"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withFixedDelay(1500)
+						.withBody(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.2"))));
+
+		AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withTagNames(Parsers.tagNames("role"))
+				.withSnapshotFile(file)
+				.build()
+				.start();
+		try {
+			// wait for the tags, the member query is then in flight.
+			while (discovery.getSelfFilters().isEmpty()) {
+				Thread.sleep(10);
+			}
+			long start = System.nanoTime();
+			assertThat("snapshot still served", discovery.getPrivateIpAddresses(), contains("10.0.0.1"));
+			assertThat("served without waiting", System.nanoTime() - start,
+					lessThan(TimeUnit.MILLISECONDS.toNanos(250)));
+
+			Thread.sleep(2000);
+			assertThat("fresh members served", discovery.getPrivateIpAddresses(), contains("10.0.0.1", "10.0.0.2"));
+		}
+		finally {
+			discovery.stop();
+		}
+	}
+
+	@Test
+	public void shouldNotServeOldSnapshot() throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(SnapshotStore.encode(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2),
+				Ec2Responses.instanceDetails("http://localhost:8089"),
+				Membership.builder().add("10.0.0.1").build()));
+		out.close();
+		stubFor(post(urlEqualTo("/"))
+				.withRequestBody(containing("Action=DescribeInstances"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withBody(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.2"))));
+
+		AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withSnapshotFile(file)
+				.build()
+				.start();
+		try {
+			assertThat("queried instead", discovery.getPrivateIpAddresses(), contains("10.0.0.1", "10.0.0.2"));
+			assertThat("details still read from the file", discovery.getInstanceDetails().getEndpoint(),
+					equalTo("http://localhost:8089"));
+		}
+		finally {
+			discovery.stop();
+		}
+	}
+
+	@Test
+	public void shouldServeSnapshotWhileQuerying() throws Exception {
+		store.save(Ec2Responses.instanceDetails("http://localhost:8089"), Arrays.asList("10.0.0.1"));
+		stubFor(post(urlEqualTo("/"))
+				.withRequestBody(containing("Action=DescribeInstances"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withFixedDelay(500)
+						.withBody(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.2"))));
+
+		AwsAutoDiscovery discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withSnapshotFile(file)
+				.build()
+				.start();
+		try {
+			long start = System.nanoTime();
+			assertThat("snapshot served", discovery.getPrivateIpAddresses(), contains("10.0.0.1"));
+			assertThat("served without waiting", System.nanoTime() - start,
+					lessThan(TimeUnit.MILLISECONDS.toNanos(250)));
+
+			Thread.sleep(1000);
+			assertThat("fresh members served", discovery.getPrivateIpAddresses(), contains("10.0.0.1", "10.0.0.2"));
+			assertThat("snapshot rewritten", store.load().getMembers(), contains("10.0.0.1", "10.0.0.2"));
+		}
+		finally {
+			discovery.stop();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.meltmedia.aws.discovery;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+public class ThrottlingTest {
+	@Rule
+	public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().port(8089));
+
+	AwsAutoDiscovery discovery;
+
+	@Before
+	public void setUp() throws Exception {
+		discovery = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0))
+				.withThrottleBackoff(200, 400, TimeUnit.MILLISECONDS)
+				.build()
+				.start();
+	}
+
+	@After
+	public void tearDown() {
+		discovery.stop();
+	}
+
+	@Test
+	public void shouldServeLastGoodWhileBackingOff() throws Exception {
+		stubMembers(Ec2Responses.describeInstances("10.0.0.1"));
+		assertThat("members found", discovery.getPrivateIpAddresses(), contains("10.0.0.1"));
+
+		stubThrottled();
+		assertThat("last good served", discovery.getPrivateIpAddresses(), contains("10.0.0.1"));
+		assertThat("backing off", discovery.isBackingOff(), equalTo(true));
+		assertThat("last good served", discovery.getPrivateIpAddresses(), contains("10.0.0.1"));
+		verify(2, postRequestedFor(urlEqualTo("/")));
+
+		stubMembers(Ec2Responses.describeInstances("10.0.0.1", "10.0.0.2"));
+		Thread.sleep(500);
+		assertThat("fresh members found", discovery.getPrivateIpAddresses(), contains("10.0.0.1", "10.0.0.2"));
+		assertThat("backoff reset", discovery.isBackingOff(), equalTo(false));
+	}
+
+	@Test(expected = AmazonServiceException.class)
+	public void shouldFailWithoutLastGood() {
+		stubThrottled();
+		discovery.getPrivateIpAddresses();
+	}
+
+	@Test
+	public void shouldNotRetryAroundTheRateLimiter() throws Exception {
+		stubThrottled();
+		AwsAutoDiscovery limited = AwsAutoDiscovery.builder()
+				.withCredentials("access", "secret")
+				.withInstanceDetails(Ec2Responses.instanceDetails("http://localhost:8089"))
+				.withMaxCallsPerSecond(100)
+				.build()
+				.start();
+		try {
+			limited.getPrivateIpAddresses();
+			fail("every call is throttled");
+		} catch (AmazonServiceException e) {
+			// expected.
+		} finally {
+			limited.stop();
+		}
+
+		verify(1, postRequestedFor(urlEqualTo("/")));
+	}
+
+	@Test
+	public void shouldKeepBackoffInBounds() {
+		ThrottleBackoff backoff = new ThrottleBackoff(100, 1000, new Random(42));
+		long previous = 100;
+		for (int i = 0; i < 50; i++) {
+			long delay = backoff.onThrottled();
+			assertThat("at least the base", delay, greaterThanOrEqualTo(100L));
+			assertThat("at most the cap", delay, lessThanOrEqualTo(1000L));
+			assertThat("at most three times the previous", delay, lessThanOrEqualTo(previous * 3));
+			previous = delay;
+		}
+		backoff.onSuccess();
+		assertThat("reset on success", backoff.isBackingOff(), equalTo(false));
+	}
+
+	static void stubMembers(String body) {
+		stubFor(post(urlEqualTo("/"))
+				.withRequestBody(containing("Action=DescribeInstances"))
+				.willReturn(aResponse()
+						.withStatus(200)
+						.withHeader("Content-Type", "text/xml")
+						.withBody(body)));
+	}
+
+	static void stubThrottled() {
+		stubFor(post(urlEqualTo("/"))
+				.withRequestBody(containing("Action=DescribeInstances"))
+				.willReturn(aResponse()
+						.withStatus(503)
+						.withHeader("Content-Type", "text/xml")
+						.withBody(Ec2Responses.throttled())));
+	}
+}